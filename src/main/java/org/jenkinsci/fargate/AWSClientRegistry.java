@@ -0,0 +1,421 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Protocol;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
+import com.amazonaws.client.builder.ExecutorFactory;
+import com.amazonaws.services.ecs.AmazonECSAsync;
+import com.amazonaws.services.ecs.AmazonECSAsyncClientBuilder;
+import com.amazonaws.services.ecs.model.DescribeClustersRequest;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.cloudbees.jenkins.plugins.awscredentials.AWSCredentialsHelper;
+import com.cloudbees.jenkins.plugins.awscredentials.AmazonWebServicesCredentials;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.codahale.metrics.Gauge;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.ProxyConfiguration;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process wide registry of Amazon ECS, EC2 and S3 clients.
+ *
+ * Building a client allocates a new http connection pool and resolves credentials, so clients are shared between
+ * every cluster using the same credentials, region and proxy settings. Cached clients are dropped whenever the
+ * Jenkins proxy or the system credentials are saved. Every call made by these clients goes through an
+ * {@link AdaptiveRateLimiter}, S3 calls through limiters of their own.
+ */
+final class AWSClientRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(AWSClientRegistry.class.getName());
+
+    /**
+     * Size of the keep-alive connection pool of each client.
+     */
+    static final int MAX_CONNECTIONS = Integer.getInteger(AWSClientRegistry.class.getName() + ".maxConnections", 100);
+
+    /**
+     * How long an idle pooled connection is kept open before being reaped.
+     */
+    static final long CONNECTION_MAX_IDLE_MILLIS = Long.getLong(AWSClientRegistry.class.getName() + ".connectionMaxIdleMillis", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * Number of threads completing asynchronous ECS calls for each client.
+     */
+    static final int ASYNC_THREADS = Integer.getInteger(AWSClientRegistry.class.getName() + ".asyncThreads", 4);
+
+    /**
+     * System properties holding endpoints replacing the public ECS and EC2 ones, for instance a local stand-in of the
+     * AWS APIs used to load test the plugin. The region of the cluster is still used to sign requests. They are read
+     * whenever a client is built, cached clients keep the endpoint they were built with until {@link #invalidateAll}.
+     */
+    static final String ECS_ENDPOINT_PROPERTY = AWSClientRegistry.class.getName() + ".ecsEndpoint";
+    static final String EC2_ENDPOINT_PROPERTY = AWSClientRegistry.class.getName() + ".ec2Endpoint";
+
+    /**
+     * Grace period before a replaced client is shut down, so in-flight calls can complete.
+     */
+    private static final long SHUTDOWN_DELAY_SECONDS = 60;
+
+    private static final AWSClientRegistry INSTANCE = new AWSClientRegistry();
+
+    private final ConcurrentMap<ClientKey, AmazonECSAsync> ecsClients = new ConcurrentHashMap<ClientKey, AmazonECSAsync>();
+    private final ConcurrentMap<ClientKey, AmazonEC2> ec2Clients = new ConcurrentHashMap<ClientKey, AmazonEC2>();
+    /**
+     * Keyed by the S3 compatible endpoint too, empty for AWS.
+     */
+    private final ConcurrentMap<Pair<ClientKey, String>, AmazonS3> s3Clients = new ConcurrentHashMap<Pair<ClientKey, String>, AmazonS3>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private AWSClientRegistry() {
+    }
+
+    static AWSClientRegistry get() {
+        return INSTANCE;
+    }
+
+    AmazonECSAsync getEcsClient(@Nullable String credentialsId, @Nullable String regionName) {
+        ClientKey key = new ClientKey(credentialsId, regionName, Jenkins.getInstance().proxy);
+        AmazonECSAsync client = ecsClients.get(key);
+        if (client != null) {
+            hits.incrementAndGet();
+            return client;
+        }
+        synchronized (ecsClients) {
+            client = ecsClients.get(key);
+            if (client == null) {
+                misses.incrementAndGet();
+                client = createEcsClient(key);
+                ecsClients.put(key, client);
+            } else {
+                hits.incrementAndGet();
+            }
+        }
+        return client;
+    }
+
+    AmazonEC2 getEc2Client(@Nullable String credentialsId, @Nullable String regionName) {
+        ClientKey key = new ClientKey(credentialsId, regionName, Jenkins.getInstance().proxy);
+        AmazonEC2 client = ec2Clients.get(key);
+        if (client != null) {
+            hits.incrementAndGet();
+            return client;
+        }
+        synchronized (ec2Clients) {
+            client = ec2Clients.get(key);
+            if (client == null) {
+                misses.incrementAndGet();
+                client = createEc2Client(key);
+                ec2Clients.put(key, client);
+            } else {
+                hits.incrementAndGet();
+            }
+        }
+        return client;
+    }
+
+    /**
+     * @param endpoint an S3 compatible store such as MinIO, addressed with path style requests, or empty for AWS.
+     */
+    AmazonS3 getS3Client(@Nullable String credentialsId, @Nullable String regionName, @Nullable String endpoint) {
+        Pair<ClientKey, String> key = Pair.of(new ClientKey(credentialsId, regionName, Jenkins.getInstance().proxy), StringUtils.defaultString(endpoint));
+        AmazonS3 client = s3Clients.get(key);
+        if (client != null) {
+            hits.incrementAndGet();
+            return client;
+        }
+        synchronized (s3Clients) {
+            client = s3Clients.get(key);
+            if (client == null) {
+                misses.incrementAndGet();
+                client = createS3Client(key.getLeft(), key.getRight());
+                s3Clients.put(key, client);
+            } else {
+                hits.incrementAndGet();
+            }
+        }
+        return client;
+    }
+
+    private AmazonECSAsync createEcsClient(final ClientKey key) {
+        AmazonECSAsyncClientBuilder builder = AmazonECSAsyncClientBuilder.standard()
+                .withClientConfiguration(createClientConfiguration(key.proxy))
+                .withExecutorFactory(new ExecutorFactory() {
+                    @Override
+                    public ExecutorService newExecutor() {
+                        return Executors.newFixedThreadPool(ASYNC_THREADS,
+                                new NamingThreadFactory(new DaemonThreadFactory(), "ECS async client " + key.region));
+                    }
+                })
+                .withRequestHandlers(new AdaptiveRateLimiter.Handler(key.credentialsId, key.region));
+        String endpoint = System.getProperty(ECS_ENDPOINT_PROPERTY);
+        if (StringUtils.isNotEmpty(endpoint)) {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, key.region));
+        } else {
+            builder.withRegion(key.region);
+        }
+
+        AmazonWebServicesCredentials credentials = getCredentials(key.credentialsId);
+        if (credentials != null) {
+            builder.withCredentials(credentials);
+        }
+        // no credentials provided, rely on com.amazonaws.auth.DefaultAWSCredentialsProviderChain
+        // to use IAM Role define at the EC2 instance level ...
+        LOGGER.log(Level.FINE, "Created ECS client for credentials={0}, region={1}, endpoint={2}",
+                new Object[]{key.credentialsId, key.region, StringUtils.defaultIfEmpty(endpoint, "default")});
+        return builder.build();
+    }
+
+    private AmazonEC2 createEc2Client(ClientKey key) {
+        AmazonEC2ClientBuilder builder = AmazonEC2ClientBuilder.standard()
+                .withClientConfiguration(createClientConfiguration(key.proxy))
+                .withRequestHandlers(new AdaptiveRateLimiter.Handler(key.credentialsId, key.region));
+        String endpoint = System.getProperty(EC2_ENDPOINT_PROPERTY);
+        if (StringUtils.isNotEmpty(endpoint)) {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, key.region));
+        } else {
+            builder.withRegion(key.region);
+        }
+
+        AmazonWebServicesCredentials credentials = getCredentials(key.credentialsId);
+        if (credentials != null) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                String awsAccessKeyId = credentials.getCredentials().getAWSAccessKeyId();
+                String obfuscatedAccessKeyId = StringUtils.left(awsAccessKeyId, 4) + StringUtils.repeat("*", awsAccessKeyId.length() - (2 * 4)) + StringUtils.right(awsAccessKeyId, 4);
+                LOGGER.log(Level.FINE, "Connect to Amazon EC2 with IAM Access Key {0}", obfuscatedAccessKeyId);
+            }
+            builder.withCredentials(credentials);
+        }
+        LOGGER.log(Level.FINE, "Created EC2 client for credentials={0}, region={1}, endpoint={2}",
+                new Object[]{key.credentialsId, key.region, StringUtils.defaultIfEmpty(endpoint, "default")});
+        return builder.build();
+    }
+
+    private AmazonS3 createS3Client(ClientKey key, String endpoint) {
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                .withClientConfiguration(createClientConfiguration(key.proxy))
+                .withRequestHandlers(new AdaptiveRateLimiter.Handler(key.credentialsId, key.region, "S3."));
+        if (StringUtils.isNotEmpty(endpoint)) {
+            // the scheme of the endpoint wins over the protocol of the configuration, plain http works for local stores
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, key.region))
+                    .withPathStyleAccessEnabled(true);
+        } else {
+            builder.withRegion(key.region);
+        }
+
+        AmazonWebServicesCredentials credentials = getCredentials(key.credentialsId);
+        if (credentials != null) {
+            builder.withCredentials(credentials);
+        }
+        LOGGER.log(Level.FINE, "Created S3 client for credentials={0}, region={1}, endpoint={2}",
+                new Object[]{key.credentialsId, key.region, StringUtils.defaultIfEmpty(endpoint, "default")});
+        return builder.build();
+    }
+
+    private ClientConfiguration createClientConfiguration(@CheckForNull ProxyConfiguration proxy) {
+        ClientConfiguration clientConfiguration = new ClientConfiguration();
+        clientConfiguration.setProtocol(Protocol.HTTPS);
+        clientConfiguration.setUseTcpKeepAlive(true);
+        clientConfiguration.setMaxConnections(MAX_CONNECTIONS);
+        clientConfiguration.setConnectionMaxIdleMillis(CONNECTION_MAX_IDLE_MILLIS);
+        if (proxy != null) {
+            clientConfiguration.setProxyHost(proxy.name);
+            clientConfiguration.setProxyPort(proxy.port);
+            clientConfiguration.setProxyUsername(proxy.getUserName());
+            clientConfiguration.setProxyPassword(proxy.getPassword());
+        }
+        return clientConfiguration;
+    }
+
+    @CheckForNull
+    private AmazonWebServicesCredentials getCredentials(@Nullable String credentialsId) {
+        return AWSCredentialsHelper.getCredentials(credentialsId, Jenkins.getActiveInstance());
+    }
+
+    /**
+     * Drops every cached client. Replaced clients are shut down once in-flight calls had time to complete.
+     */
+    void invalidateAll() {
+        final List<Object> retired = new ArrayList<Object>();
+        synchronized (ecsClients) {
+            retired.addAll(ecsClients.values());
+            ecsClients.clear();
+        }
+        synchronized (ec2Clients) {
+            retired.addAll(ec2Clients.values());
+            ec2Clients.clear();
+        }
+        synchronized (s3Clients) {
+            retired.addAll(s3Clients.values());
+            s3Clients.clear();
+        }
+        if (retired.isEmpty()) {
+            return;
+        }
+        invalidations.incrementAndGet();
+        LOGGER.log(Level.INFO, "Proxy or credentials changed, dropping {0} cached AWS clients.", retired.size());
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                for (Object client : retired) {
+                    if (client instanceof AmazonECSAsync) {
+                        ((AmazonECSAsync) client).shutdown();
+                    } else if (client instanceof AmazonEC2) {
+                        ((AmazonEC2) client).shutdown();
+                    } else if (client instanceof AmazonS3) {
+                        ((AmazonS3) client).shutdown();
+                    }
+                }
+            }
+        }, SHUTDOWN_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return a snapshot of the registry statistics, suitable for display or logging.
+     */
+    Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put("ecsClients", (long) ecsClients.size());
+        stats.put("ec2Clients", (long) ec2Clients.size());
+        stats.put("s3Clients", (long) s3Clients.size());
+        stats.put("maxConnectionsPerClient", (long) MAX_CONNECTIONS);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("invalidations", invalidations.get());
+        return stats;
+    }
+
+    /**
+     * Creates the clients of every configured cluster and opens their connection pools in the background, so the
+     * first launches after a restart do not pay for the TLS handshake.
+     */
+    @Initializer(after = InitMilestone.JOBS_LOADED)
+    public static void warmUp() {
+        registerMetrics();
+        final ECSFargateConfig config = ECSFargateConfig.getEcsFargateConfig();
+        if (config == null) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                for (ECSCluster cluster : config.getClusters()) {
+                    try {
+                        AmazonECSAsync client = INSTANCE.getEcsClient(cluster.getCredentialId(), cluster.getRegion());
+                        client.describeClusters(new DescribeClustersRequest().withClusters(cluster.getClusterArn()));
+                        LOGGER.log(Level.FINE, "Warmed up ECS client for cluster {0}", cluster.getName());
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.INFO, "Unable to warm up ECS client for cluster " + cluster.getName() + ": " + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    private static void registerMetrics() {
+        FargateMetrics.gauge(new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return INSTANCE.ecsClients.size() + INSTANCE.ec2Clients.size() + INSTANCE.s3Clients.size();
+            }
+        }, "clients", "count");
+        FargateMetrics.gauge(new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return INSTANCE.hits.get();
+            }
+        }, "clients", "hits");
+        FargateMetrics.gauge(new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return INSTANCE.misses.get();
+            }
+        }, "clients", "misses");
+        FargateMetrics.gauge(new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return INSTANCE.invalidations.get();
+            }
+        }, "clients", "invalidations");
+    }
+
+    /**
+     * Drops cached clients when the settings they were built from change.
+     */
+    @Extension
+    public static class ConfigurationListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof ProxyConfiguration || o instanceof SystemCredentialsProvider) {
+                INSTANCE.invalidateAll();
+                AWSMetadataCache.invalidateAll();
+            }
+        }
+    }
+
+    private static final class ClientKey {
+        private final String credentialsId;
+        private final String region;
+        @CheckForNull
+        private final ProxyConfiguration proxy;
+        private final String proxySpec;
+
+        ClientKey(@Nullable String credentialsId, @Nullable String region, @CheckForNull ProxyConfiguration proxy) {
+            this.credentialsId = StringUtils.defaultString(credentialsId);
+            this.region = StringUtils.isNotEmpty(region) ? region : Regions.US_EAST_1.getName();
+            this.proxy = proxy;
+            this.proxySpec = proxy == null ? "" : proxy.name + ':' + proxy.port + ':' + StringUtils.defaultString(proxy.getUserName());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey that = (ClientKey) o;
+            return credentialsId.equals(that.credentialsId) && region.equals(that.region) && proxySpec.equals(that.proxySpec);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = credentialsId.hashCode();
+            result = 31 * result + region.hashCode();
+            result = 31 * result + proxySpec.hashCode();
+            return result;
+        }
+    }
+}
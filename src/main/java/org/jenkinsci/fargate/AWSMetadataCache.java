@@ -0,0 +1,167 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.services.ec2.model.SecurityGroup;
+import com.amazonaws.services.ec2.model.Subnet;
+import com.amazonaws.services.ec2.model.Vpc;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Clusters, VPCs, subnets and security groups of a region, as shown and validated by the configuration pages.
+ *
+ * Each list is fetched completely, following pagination, the first time it is needed and then served from memory.
+ * Once older than {@link #TTL_MILLIS} it is still served while a background refresh replaces it, so pages never wait
+ * on AWS after the first load. A failed refresh keeps the previous list.
+ */
+final class AWSMetadataCache {
+
+    private static final Logger LOGGER = Logger.getLogger(AWSMetadataCache.class.getName());
+
+    static final long TTL_MILLIS = Long.getLong(AWSMetadataCache.class.getName() + ".ttlMillis", TimeUnit.MINUTES.toMillis(5));
+
+    private static final ConcurrentMap<String, AWSMetadataCache> CACHES = new ConcurrentHashMap<String, AWSMetadataCache>();
+
+    private final Entry<List<String>> clusterArns;
+    private final Entry<List<Vpc>> vpcs;
+    private final Entry<List<Subnet>> subnets;
+    private final Entry<List<SecurityGroup>> securityGroups;
+
+    private AWSMetadataCache(final String credentialsId, final String regionName) {
+        final EC2Service ec2Service = new EC2Service(credentialsId, regionName);
+        String key = credentialsId + '@' + regionName;
+        clusterArns = new Entry<List<String>>("clusters of " + key, new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return ECSService.get(credentialsId, regionName).listClusterArns();
+            }
+        });
+        vpcs = new Entry<List<Vpc>>("VPCs of " + key, new Callable<List<Vpc>>() {
+            @Override
+            public List<Vpc> call() {
+                return ec2Service.listVpcs();
+            }
+        });
+        subnets = new Entry<List<Subnet>>("subnets of " + key, new Callable<List<Subnet>>() {
+            @Override
+            public List<Subnet> call() {
+                return ec2Service.listSubnets();
+            }
+        });
+        securityGroups = new Entry<List<SecurityGroup>>("security groups of " + key, new Callable<List<SecurityGroup>>() {
+            @Override
+            public List<SecurityGroup> call() {
+                return ec2Service.listSecurityGroups();
+            }
+        });
+    }
+
+    static AWSMetadataCache get(String credentialsId, String regionName) {
+        String key = StringUtils.defaultString(credentialsId) + '|' + StringUtils.defaultString(regionName);
+        AWSMetadataCache cache = CACHES.get(key);
+        if (cache == null) {
+            cache = new AWSMetadataCache(credentialsId, regionName);
+            AWSMetadataCache existing = CACHES.putIfAbsent(key, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Forgets everything, for instance because credentials changed.
+     */
+    static void invalidateAll() {
+        CACHES.clear();
+    }
+
+    List<String> getClusterArns() throws Exception {
+        return clusterArns.get();
+    }
+
+    List<Vpc> getVpcs() throws Exception {
+        return vpcs.get();
+    }
+
+    List<Subnet> getSubnets(String vpcId) throws Exception {
+        List<Subnet> inVpc = new ArrayList<Subnet>();
+        for (Subnet subnet : subnets.get()) {
+            if (StringUtils.equals(vpcId, subnet.getVpcId())) {
+                inVpc.add(subnet);
+            }
+        }
+        return inVpc;
+    }
+
+    List<SecurityGroup> getSecurityGroups(String vpcId) throws Exception {
+        List<SecurityGroup> inVpc = new ArrayList<SecurityGroup>();
+        for (SecurityGroup group : securityGroups.get()) {
+            if (StringUtils.equals(vpcId, group.getVpcId())) {
+                inVpc.add(group);
+            }
+        }
+        return inVpc;
+    }
+
+    /**
+     * A list loaded on first use and refreshed in the background once stale.
+     */
+    private static final class Entry<T> {
+        private final String name;
+        private final Callable<T> loader;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile T value;
+        private volatile long loadedAt;
+
+        Entry(String name, Callable<T> loader) {
+            this.name = name;
+            this.loader = loader;
+        }
+
+        T get() throws Exception {
+            T current = value;
+            if (current == null) {
+                synchronized (this) {
+                    if (value == null) {
+                        FargateMetrics.meter("metadata", "misses").mark();
+                        load();
+                    }
+                    return value;
+                }
+            }
+            FargateMetrics.meter("metadata", "hits").mark();
+            if (System.currentTimeMillis() - loadedAt > TTL_MILLIS && refreshing.compareAndSet(false, true)) {
+                Timer.get().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            load();
+                        } catch (Exception e) {
+                            LOGGER.log(Level.INFO, "Failed to refresh the " + name + ", keeping the previous ones: " + e);
+                        } finally {
+                            refreshing.set(false);
+                        }
+                    }
+                });
+            }
+            return current;
+        }
+
+        private void load() throws Exception {
+            long start = System.currentTimeMillis();
+            value = loader.call();
+            loadedAt = System.currentTimeMillis();
+            LOGGER.log(Level.FINE, "Loaded the {0} in {1}ms", new Object[]{name, loadedAt - start});
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryUtils;
+import com.codahale.metrics.Gauge;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Token bucket whose rate adapts to AWS throttling, one per account, region and API.
+ *
+ * The rate grows additively while calls succeed and is halved when AWS throttles a call (AIMD), so bursts of launches
+ * settle at the highest rate the account sustains instead of burning retries on ThrottlingException. Limiters are
+ * plugged into every ECS and EC2 client through {@link Handler}, which waits for a token before each attempt.
+ */
+final class AdaptiveRateLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(AdaptiveRateLimiter.class.getName());
+
+    /**
+     * Calls per second allowed before anything is known about an API.
+     */
+    static final double INITIAL_RATE = Double.parseDouble(System.getProperty(AdaptiveRateLimiter.class.getName() + ".initialRate", "10"));
+
+    static final double MAX_RATE = Double.parseDouble(System.getProperty(AdaptiveRateLimiter.class.getName() + ".maxRate", "50"));
+
+    static final double MIN_RATE = 0.2;
+
+    /**
+     * Calls per second added after each successful call.
+     */
+    private static final double INCREASE = 0.1;
+
+    /**
+     * Factor applied to the rate when a call is throttled.
+     */
+    private static final double DECREASE = 0.5;
+
+    /**
+     * Throttles reported within this period after a decrease are answers to calls sent at the old rate.
+     */
+    static final long DECREASE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ConcurrentMap<String, AdaptiveRateLimiter> LIMITERS = new ConcurrentHashMap<String, AdaptiveRateLimiter>();
+
+    private final String api;
+
+    /**
+     * Credentials and region of the limiter, part of its metric names.
+     */
+    private final String account;
+    private final String regionName;
+
+    /**
+     * Guarded by this.
+     */
+    private double rate = INITIAL_RATE;
+    private double tokens = 1;
+    private long refilledAt = System.nanoTime();
+    private long decreasedAt;
+
+    AdaptiveRateLimiter(String credentialsId, String regionName, String api) {
+        this.account = StringUtils.defaultIfEmpty(credentialsId, "default");
+        this.regionName = StringUtils.defaultIfEmpty(regionName, "default");
+        this.api = api;
+    }
+
+    static AdaptiveRateLimiter get(String credentialsId, String regionName, String api) {
+        String key = StringUtils.defaultString(credentialsId) + '|' + StringUtils.defaultString(regionName) + '|' + api;
+        AdaptiveRateLimiter limiter = LIMITERS.get(key);
+        if (limiter == null) {
+            limiter = new AdaptiveRateLimiter(credentialsId, regionName, api);
+            AdaptiveRateLimiter existing = LIMITERS.putIfAbsent(key, limiter);
+            if (existing != null) {
+                return existing;
+            }
+            final AdaptiveRateLimiter registered = limiter;
+            FargateMetrics.gauge(new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return registered.getRate();
+                }
+            }, "api", registered.account, registered.regionName, api, "rate");
+        }
+        return limiter;
+    }
+
+    synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Waits until a call may be sent.
+     */
+    void acquire() throws InterruptedException {
+        long wait = reserve();
+        if (wait <= 0) {
+            return;
+        }
+        FargateMetrics.timer("api", account, regionName, api, "wait").update(wait, TimeUnit.NANOSECONDS);
+        TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Takes a token, possibly borrowing from the future.
+     *
+     * @return how long the caller has to wait before using it, in nanoseconds.
+     */
+    long reserve() {
+        return reserve(System.nanoTime());
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}.
+     */
+    synchronized long reserve(long now) {
+        tokens = Math.min(Math.max(1, rate), tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+        refilledAt = now;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    synchronized void onSuccess() {
+        rate = Math.min(MAX_RATE, rate + INCREASE);
+    }
+
+    void onThrottled() {
+        onThrottled(System.nanoTime());
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}.
+     */
+    void onThrottled(long now) {
+        FargateMetrics.meter("api", account, regionName, api, "throttled").mark();
+        double decreased;
+        synchronized (this) {
+            if (decreasedAt != 0 && now - decreasedAt < DECREASE_COOLDOWN_NANOS) {
+                return;
+            }
+            decreasedAt = now;
+            rate = Math.max(MIN_RATE, rate * DECREASE);
+            decreased = rate;
+        }
+        LOGGER.log(Level.FINE, "{0} throttled in {1} of {2}, lowering rate to {3} calls/s", new Object[]{api, regionName, account, decreased});
+    }
+
+    /**
+     * Rate limits every attempt made by a client and feeds the outcome back to the limiter of the called API.
+     */
+    static final class Handler extends RequestHandler2 {
+        private final String credentialsId;
+        private final String regionName;
+        /**
+         * Prepended to the API names of services whose limits are not shared with ECS and EC2.
+         */
+        private final String service;
+
+        Handler(String credentialsId, String regionName) {
+            this(credentialsId, regionName, "");
+        }
+
+        Handler(String credentialsId, String regionName, String service) {
+            this.credentialsId = credentialsId;
+            this.regionName = regionName;
+            this.service = service;
+        }
+
+        @Override
+        public void beforeAttempt(HandlerBeforeAttemptContext context) {
+            try {
+                limiter(context.getRequest()).acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting to call AWS", e);
+            }
+        }
+
+        @Override
+        public void afterAttempt(HandlerAfterAttemptContext context) {
+            AdaptiveRateLimiter limiter = limiter(context.getRequest());
+            Exception exception = context.getException();
+            if (exception == null) {
+                limiter.onSuccess();
+            } else if (exception instanceof SdkBaseException && RetryUtils.isThrottlingException((SdkBaseException) exception)) {
+                limiter.onThrottled();
+            }
+        }
+
+        private AdaptiveRateLimiter limiter(Request<?> request) {
+            AmazonWebServiceRequest original = request.getOriginalRequest();
+            String api = service + (original == null ? "unknown" : StringUtils.removeEnd(original.getClass().getSimpleName(), "Request"));
+            return get(credentialsId, regionName, api);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package org.jenkinsci.fargate;
+
+import com.codahale.metrics.Gauge;
+import hudson.Extension;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution;
+
+import javax.annotation.CheckForNull;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps queue items bound to a fargate template waiting while their cluster is out of budget.
+ *
+ * A cluster budget is a number of agents ({@link ECSCluster#getMaxSlaves()}), of vCPUs and of GBs of memory, summed
+ * over the agents of the cluster and the queue items already admitted but not yet given an agent. An admission is
+ * dropped once the agent of the item is created or the item leaves the queue, so capacity is handed to the next item
+ * as soon as an agent goes away. Items are admitted on clusters without a budget too, so the agent of an item is always
+ * started on the cluster that admitted it.
+ */
+@Extension
+public class AdmissionController extends QueueTaskDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(AdmissionController.class.getName());
+
+    /**
+     * Queue items admitted that have no agent yet, keyed by queue item id.
+     */
+    private static final Map<Long, Admission> ADMITTED = new ConcurrentHashMap<Long, Admission>();
+
+    /**
+     * Arns of the clusters that blocked each queue item, so every blocked item is counted once per cluster rather
+     * than on every dispatcher pass.
+     */
+    private static final Map<Long, Set<String>> BLOCKED = new ConcurrentHashMap<Long, Set<String>>();
+
+    /**
+     * Usage of the existing agents per cluster arn, recomputed after nodes were added or removed.
+     */
+    @CheckForNull
+    private static volatile Snapshot snapshot;
+
+    private static final Set<String> GAUGES = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public CauseOfBlockage canRun(Queue.Item item) {
+        Label label = item.getAssignedLabel();
+        if (label == null || !label.isAtom() || item.task instanceof ExecutorStepExecution.PlaceholderTask
+                || ADMITTED.containsKey(item.getId())) {
+            return null;
+        }
+        List<Pair<ECSCluster, ECSFargateTaskDefinition>> candidates = ClusterRouter.rank(label.getName());
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        ECSFargateTaskDefinition template = candidates.get(0).getValue();
+        ECSFargateTaskOverrideAction overrides = ECSFargateProvisioner.getDefinitionOverrides(item.task);
+        if (overrides == null && (template.isPooled() || template.isReusable()) && !ECSFargatePool.getIdleAgents(template.getName()).isEmpty()) {
+            // runs on an agent that is already accounted for
+            return null;
+        }
+        // the first cluster in routing order with budget left takes the item, the launch paths stick to it
+        BudgetExceeded blocked = null;
+        for (Pair<ECSCluster, ECSFargateTaskDefinition> candidate : candidates) {
+            ECSCluster cluster = candidate.getKey();
+            registerGauges(cluster, candidate.getValue());
+            Usage needed = Usage.of(candidate.getValue(), overrides);
+            synchronized (AdmissionController.class) {
+                String exceeded = hasBudget(cluster) ? exceeded(cluster, needed) : null;
+                if (exceeded == null) {
+                    ADMITTED.put(item.getId(), new Admission(cluster.getClusterArn(), needed));
+                    LOGGER.log(Level.FINE, "Admitted {0} on cluster {1}", new Object[]{item.task, cluster.getName()});
+                    return null;
+                }
+                if (blockedBy(item.getId()).add(cluster.getClusterArn())) {
+                    FargateMetrics.meter("admission", cluster.getName(), "blocked").mark();
+                }
+                if (blocked == null) {
+                    blocked = new BudgetExceeded(cluster.getName(), exceeded);
+                }
+            }
+        }
+        return blocked;
+    }
+
+    private static Set<String> blockedBy(long itemId) {
+        Set<String> clusters = BLOCKED.get(itemId);
+        if (clusters == null) {
+            clusters = ConcurrentHashMap.newKeySet();
+            Set<String> existing = BLOCKED.putIfAbsent(itemId, clusters);
+            if (existing != null) {
+                clusters = existing;
+            }
+        }
+        return clusters;
+    }
+
+    /**
+     * @return the arn of the cluster the item was admitted on, null once its agent was created or when it does not
+     * run on a new fargate agent.
+     */
+    @CheckForNull
+    static String getAdmittedCluster(long itemId) {
+        Admission admission = ADMITTED.get(itemId);
+        return admission == null ? null : admission.clusterArn;
+    }
+
+    /**
+     * @return true when one more agent of the template fits in the budget of the cluster, used for agents that are
+     * not started for a queue item.
+     */
+    static synchronized boolean hasCapacity(ECSCluster cluster, ECSFargateTaskDefinition template) {
+        return !hasBudget(cluster) || exceeded(cluster, Usage.of(template, null)) == null;
+    }
+
+    private static boolean hasBudget(ECSCluster cluster) {
+        return cluster.getMaxSlaves() > 0 || cluster.getMaxCpu() > 0 || cluster.getMaxMemory() > 0;
+    }
+
+    /**
+     * @return which part of the budget the additional usage would exceed, or null when it fits.
+     */
+    @CheckForNull
+    private static String exceeded(ECSCluster cluster, Usage needed) {
+        Usage current = getUsage(cluster.getClusterArn());
+        if (current.agents == 0) {
+            // a single agent larger than the budget must not wait forever
+            return null;
+        }
+        if (cluster.getMaxSlaves() > 0 && current.agents + 1 > cluster.getMaxSlaves()) {
+            return current.agents + " of " + cluster.getMaxSlaves() + " agents";
+        }
+        if (cluster.getMaxCpu() > 0 && current.cpu + needed.cpu > cluster.getMaxCpu()) {
+            return current.cpu + " of " + cluster.getMaxCpu() + " vCPU";
+        }
+        if (cluster.getMaxMemory() > 0 && current.memory + needed.memory > cluster.getMaxMemory()) {
+            return current.memory + " of " + cluster.getMaxMemory() + " GB of memory";
+        }
+        return null;
+    }
+
+    /**
+     * @return the usage of the agents and admitted items of the cluster.
+     */
+    static Usage getUsage(String clusterArn) {
+        Usage usage = new Usage();
+        Usage agents = getSnapshot().clusters.get(clusterArn);
+        if (agents != null) {
+            usage.add(agents);
+        }
+        for (Admission admission : ADMITTED.values()) {
+            if (admission.clusterArn.equals(clusterArn)) {
+                usage.add(admission.usage);
+            }
+        }
+        return usage;
+    }
+
+    private static synchronized Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            current = new Snapshot();
+            ECSFargateConfig config = ECSFargateConfig.getEcsFargateConfig();
+            for (Node node : Jenkins.getInstance().getNodes()) {
+                if (!(node instanceof FargateAgent)) {
+                    continue;
+                }
+                FargateAgent agent = (FargateAgent) node;
+                Pair<ECSCluster, ECSFargateTaskDefinition> pair = config == null ? null : config.getTemplate(agent.getTemplateLabel(), agent.getClusterArn());
+                // agents of removed templates still count, without resources
+                Usage usage = pair == null ? Usage.agent() : Usage.of(pair.getValue(), agent.getOverrideAction());
+                current.add(agent.getClusterArn(), agent.getTemplateLabel(), usage);
+            }
+            snapshot = current;
+        }
+        return current;
+    }
+
+    private static synchronized void invalidate() {
+        snapshot = null;
+    }
+
+    private static void release(long itemId) {
+        BLOCKED.remove(itemId);
+        if (ADMITTED.remove(itemId) != null) {
+            LOGGER.log(Level.FINE, "Released admission of queue item {0}", itemId);
+        }
+    }
+
+    private static void registerGauges(final ECSCluster cluster, final ECSFargateTaskDefinition template) {
+        if (GAUGES.add(template.getName())) {
+            FargateMetrics.gauge(new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    Usage usage = getSnapshot().templates.get(template.getName());
+                    return usage == null ? 0 : usage.agents;
+                }
+            }, "admission", "template", template.getName(), "agents");
+        }
+        if (!GAUGES.add(cluster.getClusterArn())) {
+            return;
+        }
+        final String clusterArn = cluster.getClusterArn();
+        FargateMetrics.gauge(new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getUsage(clusterArn).agents;
+            }
+        }, "admission", cluster.getName(), "agents");
+        FargateMetrics.gauge(new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return getUsage(clusterArn).cpu;
+            }
+        }, "admission", cluster.getName(), "vcpu");
+        FargateMetrics.gauge(new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return getUsage(clusterArn).memory;
+            }
+        }, "admission", cluster.getName(), "memory");
+    }
+
+    /**
+     * Number of agents, vCPUs and GBs of memory.
+     */
+    static final class Usage {
+        int agents;
+        double cpu;
+        double memory;
+
+        static Usage agent() {
+            Usage usage = new Usage();
+            usage.agents = 1;
+            return usage;
+        }
+
+        static Usage of(ECSFargateTaskDefinition template, @CheckForNull ECSFargateTaskOverrideAction overrides) {
+            Usage usage = agent();
+            usage.cpu = parse(overrides == null || StringUtils.isEmpty(overrides.getCpu()) ? template.getCpu() : overrides.getCpu());
+            usage.memory = parse(overrides == null || StringUtils.isEmpty(overrides.getMemory()) ? template.getMemory() : overrides.getMemory());
+            return usage;
+        }
+
+        private static double parse(String value) {
+            try {
+                return StringUtils.isBlank(value) ? 0 : Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        void add(Usage other) {
+            agents += other.agents;
+            cpu += other.cpu;
+            memory += other.memory;
+        }
+    }
+
+    /**
+     * Usage of the existing agents, per cluster arn and per template.
+     */
+    private static final class Snapshot {
+        private final Map<String, Usage> clusters = new HashMap<String, Usage>();
+        private final Map<String, Usage> templates = new HashMap<String, Usage>();
+
+        void add(String clusterArn, String template, Usage usage) {
+            get(clusters, clusterArn).add(usage);
+            get(templates, template).add(usage);
+        }
+
+        private static Usage get(Map<String, Usage> map, String key) {
+            Usage usage = map.get(key);
+            if (usage == null) {
+                usage = new Usage();
+                map.put(key, usage);
+            }
+            return usage;
+        }
+    }
+
+    private static final class Admission {
+        private final String clusterArn;
+        private final Usage usage;
+
+        Admission(String clusterArn, Usage usage) {
+            this.clusterArn = clusterArn;
+            this.usage = usage;
+        }
+    }
+
+    public static final class BudgetExceeded extends CauseOfBlockage {
+        private final String cluster;
+        private final String exceeded;
+
+        BudgetExceeded(String cluster, String exceeded) {
+            this.cluster = cluster;
+            this.exceeded = exceeded;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Waiting for capacity on Fargate cluster " + cluster + ", " + exceeded + " in use";
+        }
+    }
+
+    /**
+     * Hands the admission of an item over to its agent once created.
+     */
+    @Extension
+    public static class AgentListener extends NodeListener {
+        @Override
+        protected void onCreated(Node node) {
+            if (node instanceof FargateAgent) {
+                invalidate();
+                if (node instanceof ECSFargateSlave) {
+                    release(((ECSFargateSlave) node).getQueueItemId());
+                } else if (node instanceof ECSFargatePoolSlave && ((ECSFargatePoolSlave) node).isDemanded()) {
+                    release(((ECSFargatePoolSlave) node).getQueueItemId());
+                }
+            }
+        }
+
+        @Override
+        protected void onUpdated(Node oldOne, Node newOne) {
+            if (newOne instanceof FargateAgent) {
+                invalidate();
+            }
+        }
+
+        @Override
+        protected void onDeleted(Node node) {
+            if (node instanceof FargateAgent) {
+                invalidate();
+            }
+        }
+    }
+
+    /**
+     * Drops the admission of items cancelled or started before their agent was created.
+     */
+    @Extension
+    public static class AdmissionQueueListener extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            release(li.getId());
+        }
+    }
+}
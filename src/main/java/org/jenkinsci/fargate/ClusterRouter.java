@@ -0,0 +1,232 @@
+package org.jenkinsci.fargate;
+
+import com.codahale.metrics.Gauge;
+import org.apache.commons.lang3.tuple.Pair;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Picks the cluster a template is launched on when several clusters define a template with the same name.
+ *
+ * Clusters are drawn at random in proportion to their {@link ECSCluster#getWeight() weight}, scaled down by their
+ * recent launch failure rate and by how slow their recent launches were compared to the fastest candidate. A cluster
+ * whose failure rate spikes is skipped for {@link #COOLDOWN_MILLIS}, and clusters of weight 0 are only used while
+ * every weighted cluster is skipped.
+ */
+final class ClusterRouter {
+
+    private static final Logger LOGGER = Logger.getLogger(ClusterRouter.class.getName());
+
+    /**
+     * Failure rate above which a cluster stops receiving launches.
+     */
+    static final double FAILURE_THRESHOLD = Double.parseDouble(System.getProperty(ClusterRouter.class.getName() + ".failureThreshold", "0.5"));
+
+    static final long COOLDOWN_MILLIS = Long.getLong(ClusterRouter.class.getName() + ".cooldownMillis", TimeUnit.MINUTES.toMillis(2));
+
+    /**
+     * Weight of the latest outcome in the failure rate and latency averages.
+     */
+    private static final double ALPHA = 0.2;
+
+    /**
+     * Outcomes needed before a failure rate can take a cluster out.
+     */
+    private static final int MIN_SAMPLES = 3;
+
+    private static final ConcurrentMap<String, Health> HEALTH = new ConcurrentHashMap<String, Health>();
+
+    private ClusterRouter() {
+    }
+
+    /**
+     * @return the cluster and template a new agent of the template should be launched with, or null when no cluster
+     * defines the template.
+     */
+    @CheckForNull
+    static Pair<ECSCluster, ECSFargateTaskDefinition> route(String templateName) {
+        List<Pair<ECSCluster, ECSFargateTaskDefinition>> ranked = rank(templateName);
+        return ranked.isEmpty() ? null : ranked.get(0);
+    }
+
+    /**
+     * @return every cluster defining the template, in the order they should be tried. The first one is drawn
+     * according to the weights and health of the clusters.
+     */
+    static List<Pair<ECSCluster, ECSFargateTaskDefinition>> rank(String templateName) {
+        ECSFargateConfig config = ECSFargateConfig.getEcsFargateConfig();
+        List<Pair<ECSCluster, ECSFargateTaskDefinition>> candidates = config == null
+                ? Collections.<Pair<ECSCluster, ECSFargateTaskDefinition>>emptyList() : config.getTemplates(templateName);
+        if (candidates.size() < 2) {
+            return candidates;
+        }
+
+        long now = System.currentTimeMillis();
+        double fastest = Double.MAX_VALUE;
+        for (Pair<ECSCluster, ECSFargateTaskDefinition> candidate : candidates) {
+            Health health = HEALTH.get(candidate.getKey().getClusterArn());
+            if (health != null && health.latencyMillis > 0) {
+                fastest = Math.min(fastest, health.latencyMillis);
+            }
+        }
+
+        double[] scores = new double[candidates.size()];
+        double total = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            double score = score(candidates.get(i).getKey(), fastest, now);
+            // negative or NaN scores never win the draw
+            scores[i] = score > 0 ? score : 0;
+            total += scores[i];
+        }
+        if (total <= 0) {
+            // every weighted cluster is out, fall back to the standby ones and then to any
+            for (int i = 0; i < candidates.size(); i++) {
+                ECSCluster cluster = candidates.get(i).getKey();
+                scores[i] = cluster.getWeight() == 0 && isAvailable(cluster, now) ? 1 : 0;
+                total += scores[i];
+            }
+            if (total <= 0) {
+                LOGGER.log(Level.FINE, "Every cluster defining {0} is unhealthy, routing by configuration order", templateName);
+                return candidates;
+            }
+        }
+
+        // draw the first cluster, the others follow by decreasing score; a positive total guarantees a draw
+        double draw = ThreadLocalRandom.current().nextDouble(total);
+        int first = 0;
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] > 0) {
+                first = i;
+                draw -= scores[i];
+                if (draw < 0) {
+                    break;
+                }
+            }
+        }
+        List<Pair<ECSCluster, ECSFargateTaskDefinition>> ranked = new ArrayList<Pair<ECSCluster, ECSFargateTaskDefinition>>(candidates.size());
+        boolean[] taken = new boolean[candidates.size()];
+        ranked.add(candidates.get(first));
+        taken[first] = true;
+        while (ranked.size() < candidates.size()) {
+            int best = -1;
+            for (int i = 0; i < scores.length; i++) {
+                if (!taken[i] && (best < 0 || scores[i] > scores[best])) {
+                    best = i;
+                }
+            }
+            ranked.add(candidates.get(best));
+            taken[best] = true;
+        }
+        return ranked;
+    }
+
+    private static double score(ECSCluster cluster, double fastest, long now) {
+        if (cluster.getWeight() == 0 || !isAvailable(cluster, now)) {
+            return 0;
+        }
+        Health health = HEALTH.get(cluster.getClusterArn());
+        if (health == null) {
+            return cluster.getWeight();
+        }
+        double latency = health.latencyMillis > 0 && fastest < Double.MAX_VALUE ? Math.max(0.25, fastest / health.latencyMillis) : 1;
+        return cluster.getWeight() * (1 - health.failureRate) * latency;
+    }
+
+    private static boolean isAvailable(ECSCluster cluster, long now) {
+        Health health = HEALTH.get(cluster.getClusterArn());
+        return health == null || health.openUntil <= now;
+    }
+
+    /**
+     * Records a launch sent to the cluster, a failover when the cluster only stands by for the others defining the
+     * template. Ranking alone counts nothing, the queue ranks waiting items on every pass.
+     */
+    static void launching(ECSCluster cluster, ECSFargateTaskDefinition template) {
+        if (cluster.getWeight() != 0) {
+            return;
+        }
+        ECSFargateConfig config = ECSFargateConfig.getEcsFargateConfig();
+        if (config != null && config.getTemplates(template.getName()).size() > 1) {
+            FargateMetrics.meter("router", "failovers").mark();
+        }
+    }
+
+    /**
+     * Records a launch that connected after the given time.
+     */
+    static void succeeded(ECSCluster cluster, long latencyMillis) {
+        getHealth(cluster).succeeded(latencyMillis);
+    }
+
+    /**
+     * Records a launch attempt that failed.
+     */
+    static void failed(ECSCluster cluster) {
+        if (getHealth(cluster).failed(System.currentTimeMillis())) {
+            LOGGER.log(Level.WARNING, "Fargate cluster {0} fails too many launches, routing launches elsewhere for {1}s",
+                    new Object[]{cluster.getName(), TimeUnit.MILLISECONDS.toSeconds(COOLDOWN_MILLIS)});
+            FargateMetrics.meter("router", cluster.getName(), "tripped").mark();
+        }
+    }
+
+    private static Health getHealth(final ECSCluster cluster) {
+        Health health = HEALTH.get(cluster.getClusterArn());
+        if (health == null) {
+            health = new Health();
+            Health existing = HEALTH.putIfAbsent(cluster.getClusterArn(), health);
+            if (existing != null) {
+                health = existing;
+            } else {
+                final Health registered = health;
+                FargateMetrics.gauge(new Gauge<Double>() {
+                    @Override
+                    public Double getValue() {
+                        return registered.failureRate;
+                    }
+                }, "router", cluster.getName(), "failureRate");
+            }
+        }
+        return health;
+    }
+
+    /**
+     * Recent launch outcomes of a cluster.
+     */
+    private static final class Health {
+        private volatile double failureRate;
+        private volatile double latencyMillis;
+        private volatile long openUntil;
+        private int samples;
+
+        synchronized void succeeded(long latency) {
+            samples++;
+            failureRate = (1 - ALPHA) * failureRate;
+            latencyMillis = latencyMillis == 0 ? latency : ALPHA * latency + (1 - ALPHA) * latencyMillis;
+            // launches sent before the cluster tripped still complete, the cooldown runs out on its own
+        }
+
+        /**
+         * @return true when this failure takes the cluster out.
+         */
+        synchronized boolean failed(long now) {
+            samples++;
+            failureRate = ALPHA + (1 - ALPHA) * failureRate;
+            if (samples >= MIN_SAMPLES && failureRate > FAILURE_THRESHOLD && openUntil <= now) {
+                openUntil = now + COOLDOWN_MILLIS;
+                // give the cluster a fair chance once the cooldown is over
+                failureRate = FAILURE_THRESHOLD / 2;
+                return true;
+            }
+            return false;
+        }
+    }
+}
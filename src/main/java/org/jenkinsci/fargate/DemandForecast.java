@@ -0,0 +1,284 @@
+package org.jenkinsci.fargate;
+
+import com.codahale.metrics.Gauge;
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Learns when builds arrive for each template label and predicts how many will arrive shortly.
+ *
+ * Every label keeps an exponentially weighted arrival rate over the last minutes and one weighted hourly rate per
+ * hour of the week, so Monday 9am learns from previous Mondays at 9am. The prediction blends both and is used by
+ * {@link ECSFargatePool} to start pooled agents ahead of demand, never above the template maximum of idle agents.
+ */
+final class DemandForecast implements Saveable {
+
+    private static final Logger LOGGER = Logger.getLogger(DemandForecast.class.getName());
+
+    /**
+     * How far ahead, in minutes, arrivals are predicted. Roughly the time a cold agent needs to connect.
+     */
+    static final int HORIZON_MINUTES = Integer.getInteger(DemandForecast.class.getName() + ".horizonMinutes", 3);
+
+    /**
+     * Set to false to only keep the configured minimum of idle agents.
+     */
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(DemandForecast.class.getName() + ".enabled", "true"));
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private static volatile DemandForecast instance;
+
+    private ConcurrentHashMap<String, LabelForecast> labels = new ConcurrentHashMap<String, LabelForecast>();
+
+    private transient volatile boolean dirty;
+
+    private DemandForecast() {
+    }
+
+    private Object readResolve() {
+        if (labels == null) {
+            labels = new ConcurrentHashMap<String, LabelForecast>();
+        }
+        return this;
+    }
+
+    static DemandForecast get() {
+        DemandForecast forecast = instance;
+        if (forecast == null) {
+            synchronized (DemandForecast.class) {
+                forecast = instance;
+                if (forecast == null) {
+                    forecast = new DemandForecast();
+                    forecast.load();
+                    instance = forecast;
+                }
+            }
+        }
+        return forecast;
+    }
+
+    void record(String label, long when) {
+        LabelForecast forecast = labels.get(label);
+        if (forecast == null) {
+            forecast = new LabelForecast(when);
+            LabelForecast existing = labels.putIfAbsent(label, forecast);
+            if (existing != null) {
+                forecast = existing;
+            } else {
+                registerGauge(label);
+            }
+        }
+        dirty |= forecast.record(when);
+    }
+
+    /**
+     * @return the number of builds expected for the label within the next {@link #HORIZON_MINUTES}.
+     */
+    double predict(String label, long now) {
+        LabelForecast forecast = labels.get(label);
+        if (forecast == null) {
+            return 0;
+        }
+        dirty |= forecast.roll(now);
+        return forecast.predictPerMinute(now) * HORIZON_MINUTES;
+    }
+
+    /**
+     * @return the number of ready pooled agents wanted for the template right now.
+     */
+    int getTarget(ECSFargateTaskDefinition template) {
+        int target = template.getPoolMinIdle();
+        if (ENABLED && template.getPoolMaxIdle() > target) {
+            double expected = predict(template.getName(), System.currentTimeMillis());
+            // a fraction of a build is worth an agent once it gets likely
+            target = Math.max(target, (int) Math.round(expected + 0.2));
+        }
+        return Math.min(target, template.getPoolMaxIdle());
+    }
+
+    private void registerGauge(final String label) {
+        FargateMetrics.gauge(new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return predict(label, System.currentTimeMillis());
+            }
+        }, "forecast", label, "expected");
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getInstance().getRootDir(), DemandForecast.class.getName() + ".xml"));
+    }
+
+    private void load() {
+        XmlFile file = getConfigFile();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            file.unmarshal(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized void save() {
+        if (BulkChange.contains(this)) {
+            return;
+        }
+        try {
+            XmlFile file = getConfigFile();
+            file.write(this);
+            SaveableListener.fireOnChange(this, file);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save demand forecast", e);
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOBS_LOADED)
+    public static void start() {
+        final DemandForecast forecast = get();
+        for (String label : forecast.labels.keySet()) {
+            forecast.registerGauge(label);
+        }
+        Timer.get().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (forecast.dirty) {
+                    forecast.save();
+                }
+            }
+        }, 10, 10, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Arrival history of a single label.
+     */
+    static final class LabelForecast {
+        /**
+         * Weight of the last minute in the recent rate, about a ten minute memory.
+         */
+        private static final double RECENT_ALPHA = 0.1;
+        /**
+         * Weight of the last week in an hour of the week rate.
+         */
+        private static final double SEASONAL_BETA = 0.3;
+        private static final int HOURS_PER_WEEK = 7 * 24;
+        private static final int MINUTES_PER_WEEK = HOURS_PER_WEEK * 60;
+
+        /**
+         * Arrivals per minute over the last minutes.
+         */
+        private double recent;
+        /**
+         * Arrivals per minute for every hour of the week, and the number of weeks each one was observed.
+         */
+        private final double[] seasonal = new double[HOURS_PER_WEEK];
+        private final int[] weeks = new int[HOURS_PER_WEEK];
+
+        /**
+         * Start of the minute being counted, in minutes since the epoch.
+         */
+        private long minute;
+        private int minuteArrivals;
+        private int hourArrivals;
+
+        LabelForecast(long now) {
+            this.minute = now / MINUTE;
+        }
+
+        synchronized boolean record(long when) {
+            boolean hourClosed = roll(when);
+            minuteArrivals++;
+            return hourClosed;
+        }
+
+        /**
+         * Closes the minutes elapsed since the last call.
+         *
+         * @return true when an hour was closed and the seasonal history changed.
+         */
+        synchronized boolean roll(long now) {
+            long current = now / MINUTE;
+            if (current - minute > MINUTES_PER_WEEK) {
+                // nothing was recorded for more than a week, the recent rate has long decayed
+                minute = current - MINUTES_PER_WEEK;
+                minuteArrivals = 0;
+                hourArrivals = 0;
+                recent = 0;
+            }
+            boolean hourClosed = false;
+            while (minute < current) {
+                recent = RECENT_ALPHA * minuteArrivals + (1 - RECENT_ALPHA) * recent;
+                hourArrivals += minuteArrivals;
+                minuteArrivals = 0;
+                minute++;
+                if (minute % 60 == 0) {
+                    int slot = slotOf((minute - 1) * MINUTE);
+                    double hourly = hourArrivals / 60.0;
+                    seasonal[slot] = weeks[slot] == 0 ? hourly : SEASONAL_BETA * hourly + (1 - SEASONAL_BETA) * seasonal[slot];
+                    weeks[slot]++;
+                    hourArrivals = 0;
+                    hourClosed = true;
+                }
+            }
+            return hourClosed;
+        }
+
+        /**
+         * Blends the recent rate with the rate usually seen at the hour the horizon ends in.
+         */
+        synchronized double predictPerMinute(long now) {
+            int slot = slotOf(now + TimeUnit.MINUTES.toMillis(HORIZON_MINUTES));
+            if (weeks[slot] == 0) {
+                return recent;
+            }
+            return (recent + seasonal[slot]) / 2;
+        }
+
+        private static int slotOf(long time) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(time);
+            return (calendar.get(Calendar.DAY_OF_WEEK) - 1) * 24 + calendar.get(Calendar.HOUR_OF_DAY);
+        }
+    }
+
+    /**
+     * Records the arrival of queue items bound to a fargate template.
+     */
+    @Extension
+    public static class ArrivalListener extends QueueListener {
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            Label label = wi.getAssignedLabel();
+            if (label == null || !label.isAtom() || wi.task instanceof ExecutorStepExecution.PlaceholderTask) {
+                return;
+            }
+            ECSFargateConfig config = ECSFargateConfig.getEcsFargateConfig();
+            if (config != null && config.getTemplate(label.toString()) != null) {
+                get().record(label.toString(), System.currentTimeMillis());
+            }
+        }
+    }
+}
@@ -1,23 +1,19 @@
 package org.jenkinsci.fargate;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.ClientConfiguration;
-import com.amazonaws.Protocol;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
 import com.amazonaws.services.ec2.model.*;
 import com.amazonaws.services.ec2.model.SecurityGroup;
-import com.cloudbees.jenkins.plugins.awscredentials.AWSCredentialsHelper;
-import com.cloudbees.jenkins.plugins.awscredentials.AmazonWebServicesCredentials;
-import hudson.ProxyConfiguration;
-import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import javax.annotation.CheckForNull;
-import javax.annotation.Nullable;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,52 +35,23 @@ class EC2Service {
     }
 
     private AmazonEC2 getAmazonEc2(){
-        final AmazonEC2 client;
-
-        ProxyConfiguration proxy = Jenkins.getInstance().proxy;
-        ClientConfiguration clientConfiguration = new ClientConfiguration();
-        clientConfiguration.setProtocol(Protocol.HTTPS);
-        if(proxy != null) {
-            LOG.log(Level.INFO,"Setting proxy");
-            clientConfiguration.setProxyHost(proxy.name);
-            clientConfiguration.setProxyPort(proxy.port);
-            clientConfiguration.setProxyUsername(proxy.getUserName());
-            clientConfiguration.setProxyPassword(proxy.getPassword());
-        }
-
-        AmazonWebServicesCredentials credentials = getCredentials(credentialId);
-        if (credentials == null) {
-            // no credentials provided, rely on com.amazonaws.auth.DefaultAWSCredentialsProviderChain
-            // to use IAM Role define at the EC2 instance level ...
-            client = AmazonEC2ClientBuilder.standard().withClientConfiguration(clientConfiguration).build();
-
-        } else {
-            if (LOG.isLoggable(Level.FINE)) {
-                String awsAccessKeyId = credentials.getCredentials().getAWSAccessKeyId();
-                String obfuscatedAccessKeyId = StringUtils.left(awsAccessKeyId, 4) + StringUtils.repeat("*", awsAccessKeyId.length() - (2 * 4)) + StringUtils.right(awsAccessKeyId, 4);
-                LOG.log(Level.FINE, "Connect to Amazon ECS with IAM Access Key {1}", new Object[]{obfuscatedAccessKeyId});
-            }
-            client = AmazonEC2ClientBuilder.standard().withCredentials(credentials)
-                    .withRegion(getRegion(region))
-                    .withClientConfiguration(clientConfiguration).build();
-        }
-
-        return client;
+        return AWSClientRegistry.get().getEc2Client(credentialId, region);
     }
 
-
-
     List<Vpc> describeVpcs(String vpc){
         try {
-            final AmazonEC2 client = getAmazonEc2();
-
+            List<Vpc> vpcs = AWSMetadataCache.get(credentialId, region).getVpcs();
             if(StringUtils.isEmpty(vpc))
-                return client.describeVpcs().getVpcs();
-            return client.describeVpcs().withVpcs(new Vpc().withVpcId(vpc)).getVpcs();
+                return vpcs;
+            for (Vpc candidate : vpcs) {
+                if (vpc.equals(candidate.getVpcId())) {
+                    return Collections.singletonList(candidate);
+                }
+            }
         } catch (AmazonClientException e) {
             // missing credentials will throw an "AmazonClientException: Unable to load AWS credentials from any provider in the chain"
             LOG.log(Level.INFO, "Exception searching VPCs for credentials=" + credentialId + ", regionName=" + region + ":" + e);
-           } catch (RuntimeException e) {
+        } catch (Exception e) {
             LOG.log(Level.INFO, "Exception searching VPCs for credentials=" + credentialId + ", regionName=" + region, e);
         }
 
@@ -93,45 +60,94 @@ class EC2Service {
 
     List<Subnet> describeSubnets(String vpcId){
         try {
-            final AmazonEC2 client = getAmazonEc2();
-
-            return client.describeSubnets(new DescribeSubnetsRequest()
-                                                .withFilters(new Filter().withName("vpc-id")
-                                                                         .withValues(vpcId))).getSubnets();
+            return AWSMetadataCache.get(credentialId, region).getSubnets(vpcId);
         } catch (AmazonClientException e) {
             // missing credentials will throw an "AmazonClientException: Unable to load AWS credentials from any provider in the chain"
             LOG.log(Level.INFO, "Exception searching VPCs for credentials=" + credentialId + ", regionName=" + region + ":" + e);
-        } catch (RuntimeException e) {
+        } catch (Exception e) {
             LOG.log(Level.INFO, "Exception searching VPCs for credentials=" + credentialId + ", regionName=" + region, e);
         }
 
         return Collections.EMPTY_LIST;
     }
 
-    List<SecurityGroup> describeSecurityGroups(String[] securityGroups, String vpcId){
+    /**
+     * Describes every VPC of the region, following pagination. Used to fill the {@link AWSMetadataCache}.
+     */
+    List<Vpc> listVpcs(){
+        final AmazonEC2 client = getAmazonEc2();
+        List<Vpc> vpcs = new ArrayList<Vpc>();
+        DescribeVpcsRequest request = new DescribeVpcsRequest();
+        do {
+            DescribeVpcsResult result = client.describeVpcs(request);
+            vpcs.addAll(result.getVpcs());
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+        return Collections.unmodifiableList(vpcs);
+    }
+
+    /**
+     * Describes every subnet of the region, following pagination. Used to fill the {@link AWSMetadataCache}.
+     */
+    List<Subnet> listSubnets(){
+        final AmazonEC2 client = getAmazonEc2();
+        List<Subnet> subnets = new ArrayList<Subnet>();
+        DescribeSubnetsRequest request = new DescribeSubnetsRequest();
+        do {
+            DescribeSubnetsResult result = client.describeSubnets(request);
+            subnets.addAll(result.getSubnets());
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+        return Collections.unmodifiableList(subnets);
+    }
+
+    /**
+     * Describes every security group of the region, following pagination. Used to fill the {@link AWSMetadataCache}.
+     */
+    List<SecurityGroup> listSecurityGroups(){
+        final AmazonEC2 client = getAmazonEc2();
+        List<SecurityGroup> groups = new ArrayList<SecurityGroup>();
+        DescribeSecurityGroupsRequest request = new DescribeSecurityGroupsRequest();
+        do {
+            DescribeSecurityGroupsResult result = client.describeSecurityGroups(request);
+            groups.addAll(result.getSecurityGroups());
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+        return Collections.unmodifiableList(groups);
+    }
+
+    List<Subnet> describeSubnetsById(Collection<String> subnetIds){
         try {
-            final AmazonEC2 client = getAmazonEc2();
+            return getAmazonEc2().describeSubnets(new DescribeSubnetsRequest().withSubnetIds(subnetIds)).getSubnets();
+        } catch (AmazonClientException e) {
+            LOG.log(Level.INFO, "Exception describing subnets " + subnetIds + " for credentials=" + credentialId + ", regionName=" + region + ":" + e);
+        } catch (RuntimeException e) {
+            LOG.log(Level.INFO, "Exception describing subnets " + subnetIds + " for credentials=" + credentialId + ", regionName=" + region, e);
+        }
 
+        return Collections.EMPTY_LIST;
+    }
 
-            return client.describeSecurityGroups(new DescribeSecurityGroupsRequest()
-                    .withGroupIds(securityGroups)
-                    .withFilters(new Filter().withName("vpc-id")
-                            .withValues(vpcId))).getSecurityGroups();
+    List<SecurityGroup> describeSecurityGroups(String[] securityGroups, String vpcId){
+        try {
+            Set<String> wanted = new HashSet<String>(Arrays.asList(securityGroups));
+            List<SecurityGroup> found = new ArrayList<SecurityGroup>();
+            for (SecurityGroup group : AWSMetadataCache.get(credentialId, region).getSecurityGroups(vpcId)) {
+                if (wanted.contains(group.getGroupId())) {
+                    found.add(group);
+                }
+            }
+            return found;
         } catch (AmazonClientException e) {
             // missing credentials will throw an "AmazonClientException: Unable to load AWS credentials from any provider in the chain"
             LOG.log(Level.INFO, "Exception searching VPCs for credentials=" + credentialId + ", regionName=" + region + ":" + e);
-        } catch (RuntimeException e) {
+        } catch (Exception e) {
             LOG.log(Level.INFO, "Exception searching VPCs for credentials=" + credentialId + ", regionName=" + region, e);
         }
 
         return Collections.EMPTY_LIST;
     }
 
-    @CheckForNull
-    private AmazonWebServicesCredentials getCredentials(@Nullable String credentialId) {
-        return AWSCredentialsHelper.getCredentials(credentialId, Jenkins.getActiveInstance());
-    }
-
     String getRegion(String regionName) {
         if (StringUtils.isNotEmpty(regionName)) {
             return regionName;
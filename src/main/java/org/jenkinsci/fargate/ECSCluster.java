@@ -3,7 +3,6 @@ package org.jenkinsci.fargate;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
-import com.amazonaws.services.ecs.AmazonECSClient;
 import com.amazonaws.util.StringUtils;
 import com.cloudbees.jenkins.plugins.awscredentials.AWSCredentialsHelper;
 import hudson.Extension;
@@ -35,10 +34,12 @@ public class ECSCluster extends AbstractDescribableImpl<ECSCluster> {
     private final String region;
     private final String tunnel;
     private int maxSlaves;
+    private double maxCpu;
+    private double maxMemory;
+    private Integer weight;
     private int slaveTimeout;
     private int maxRetries;
     private final List<ECSFargateTaskDefinition> taskDefinitionList;
-    ECSService ecsService;
 
     @DataBoundConstructor
     public ECSCluster(String name,String credentialId, String clusterArn, String region, String tunnel, List<ECSFargateTaskDefinition> taskDefinitionList) {
@@ -74,7 +75,80 @@ public class ECSCluster extends AbstractDescribableImpl<ECSCluster> {
 
     @DataBoundSetter
     public void setMaxSlaves(String maxSlaves) {
-        this.maxSlaves = Integer.parseInt(maxSlaves);
+        this.maxSlaves = StringUtils.isNullOrEmpty(maxSlaves) ? 0 : Integer.parseInt(maxSlaves.trim());
+    }
+
+    public double getMaxCpu() {
+        return maxCpu;
+    }
+
+    /**
+     * Values that are not numbers, or negative, leave the cluster without a cpu budget, see {@link DescriptorImpl#doCheckMaxCpu}.
+     */
+    @DataBoundSetter
+    public void setMaxCpu(String maxCpu) {
+        this.maxCpu = parseLimit(maxCpu, "vCPU");
+    }
+
+    /**
+     * @return the share of launches this cluster receives among the clusters defining the same template, 0 to only
+     * use it when the others are unhealthy.
+     */
+    public int getWeight() {
+        return weight == null ? 1 : Math.max(0, weight);
+    }
+
+    /**
+     * Negative weights count as 0 and values that are not numbers as the default weight, see {@link DescriptorImpl#doCheckWeight}.
+     */
+    @DataBoundSetter
+    public void setWeight(String weight) {
+        if (StringUtils.isNullOrEmpty(weight)) {
+            this.weight = null;
+            return;
+        }
+        try {
+            this.weight = Math.max(0, Integer.parseInt(weight.trim()));
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Ignoring weight {0} of cluster {1}, it is not a whole number", new Object[]{weight, name});
+            this.weight = null;
+        }
+    }
+
+    public double getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Values that are not numbers, or negative, leave the cluster without a memory budget, see {@link DescriptorImpl#doCheckMaxMemory}.
+     */
+    @DataBoundSetter
+    public void setMaxMemory(String maxMemory) {
+        this.maxMemory = parseLimit(maxMemory, "memory");
+    }
+
+    private double parseLimit(String value, String what) {
+        if (StringUtils.isNullOrEmpty(value)) {
+            return 0;
+        }
+        Double limit = toLimit(value);
+        if (limit == null) {
+            LOGGER.log(Level.WARNING, "Ignoring {0} limit {1} of cluster {2}, it is not a number of 0 or more", new Object[]{what, value, name});
+            return 0;
+        }
+        return limit;
+    }
+
+    /**
+     * @return the limit, or null when the value is not a number of 0 or more.
+     */
+    private static Double toLimit(String value) {
+        try {
+            double limit = Double.parseDouble(value.trim());
+            return limit >= 0 && !Double.isInfinite(limit) ? limit : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
     public String getName() {
@@ -102,7 +176,7 @@ public class ECSCluster extends AbstractDescribableImpl<ECSCluster> {
     }
 
     public ECSService getEcsService(){
-        return new ECSService(credentialId,region);
+        return ECSService.get(credentialId,region);
     }
 
     public ECSFargateTaskDefinition getTemplateWithName(String name){
@@ -157,11 +231,9 @@ public class ECSCluster extends AbstractDescribableImpl<ECSCluster> {
         }
 
         public ListBoxModel doFillClusterArnItems(@QueryParameter String credentialId, @QueryParameter String region) {
-            ECSService ecsService = new ECSService(credentialId, region);
             try {
-                final AmazonECSClient client = ecsService.getAmazonECSClient();
                 final ListBoxModel options = new ListBoxModel();
-                for (String arn : client.listClusters().getClusterArns()) {
+                for (String arn : AWSMetadataCache.get(credentialId, region).getClusterArns()) {
                     options.add(arn);
                 }
                 return options;
@@ -170,7 +242,7 @@ public class ECSCluster extends AbstractDescribableImpl<ECSCluster> {
                 LOGGER.log(Level.INFO, "Exception searching clusters for credentials=" + credentialId + ", regionName=" + region + ":" + e);
                 LOGGER.log(Level.FINE, "Exception searching clusters for credentials=" + credentialId + ", regionName=" + region, e);
                 return new ListBoxModel();
-            } catch (RuntimeException e) {
+            } catch (Exception e) {
                 LOGGER.log(Level.INFO, "Exception searching clusters for credentials=" + credentialId + ", regionName=" + region, e);
                 return new ListBoxModel();
             }
@@ -183,6 +255,35 @@ public class ECSCluster extends AbstractDescribableImpl<ECSCluster> {
             return FormValidation.error("Up to 50 letters (uppercase and lowercase), numbers, hyphens, and underscores are allowed");
         }
 
+        public FormValidation doCheckWeight(@QueryParameter String value) {
+            if (StringUtils.isNullOrEmpty(value)) {
+                return FormValidation.ok();
+            }
+            try {
+                if (Integer.parseInt(value.trim()) >= 0) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            return FormValidation.error("The weight must be a whole number, 0 or more");
+        }
+
+        public FormValidation doCheckMaxCpu(@QueryParameter String value) {
+            return checkLimit(value, "vCPU");
+        }
+
+        public FormValidation doCheckMaxMemory(@QueryParameter String value) {
+            return checkLimit(value, "GB of memory");
+        }
+
+        private static FormValidation checkLimit(String value, String unit) {
+            if (StringUtils.isNullOrEmpty(value) || toLimit(value) != null) {
+                return FormValidation.ok();
+            }
+            return FormValidation.error("The limit must be a number of " + unit + ", 0 or more");
+        }
+
 
     }
 }
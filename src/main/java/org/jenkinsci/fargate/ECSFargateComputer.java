@@ -1,21 +1,27 @@
 package org.jenkinsci.fargate;
 
+import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.model.Computer;
 import hudson.model.Executor;
 import hudson.model.Queue;
+import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.slaves.ComputerListener;
 import hudson.slaves.SlaveComputer;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
+import org.jenkinsci.fargate.pipeline.ECSFargateNodeStepExecution;
 import org.jenkinsci.plugins.oneshot.OneShotComputer;
 import org.kohsuke.stapler.HttpResponse;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,6 +30,7 @@ public class ECSFargateComputer extends OneShotComputer<ECSFargateSlave> {
     private Logger LOG = Logger.getLogger(ECSFargateComputer.class.getName());
     private final ECSFargateSlave ecsFargateSlave;
     private boolean isDead = false;
+    private final Set<String> createdDirectories = ConcurrentHashMap.newKeySet();
     /**
      * Identifies the run for which this computer was launched.
      */
@@ -44,6 +51,22 @@ public class ECSFargateComputer extends OneShotComputer<ECSFargateSlave> {
     }
 
 
+    /**
+     * Saves the workspace snapshot of the build before the agent goes away.
+     */
+    @Override
+    public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+        Queue.Executable executable = executor.getCurrentExecutable();
+        Run<?, ?> run = executable instanceof Run ? (Run<?, ?>) executable
+                : task instanceof ECSFargateNodeStepExecution.PlaceholderTask ? ((ECSFargateNodeStepExecution.PlaceholderTask) task).run() : null;
+        try {
+            WorkspaceSnapshots.save(ecsFargateSlave, run, getListener());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        super.taskCompleted(executor, task, durationMS);
+    }
+
     @Override
     public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
         LOG.log(Level.WARNING,"{0} {1} {3}",new Object[]{executor,task,problems});
@@ -80,6 +103,35 @@ public class ECSFargateComputer extends OneShotComputer<ECSFargateSlave> {
     }
 
 
+    /**
+     * Points builds to the subdirectory of their job in every per job volume of the template, creating it if needed.
+     * The agent cannot write to read only volumes, their subdirectories must have been created by other templates.
+     */
+    @Nonnull
+    @Override
+    public EnvVars buildEnvironment(@Nonnull TaskListener listener) throws IOException, InterruptedException {
+        EnvVars env = super.buildEnvironment(listener);
+        ECSFargateConfig config = ECSFargateConfig.getEcsFargateConfig();
+        Pair<ECSCluster, ECSFargateTaskDefinition> template = config == null ? null
+                : config.getTemplate(ecsFargateSlave.getTemplateLabel(), ecsFargateSlave.getClusterArn());
+        if (template == null || template.getValue().getMountPoints() == null) {
+            return env;
+        }
+        for (ECSFargateTaskDefinition.MountPointEntry mount : template.getValue().getMountPoints()) {
+            if (!mount.isEfs() || !mount.isPerJob() || StringUtils.isEmpty(mount.containerPath)) {
+                continue;
+            }
+            String directory = mount.getJobDirectory(ecsFargateSlave.getJobName());
+            FilePath path = ecsFargateSlave.createPath(directory);
+            if (path != null && !Boolean.TRUE.equals(mount.readOnly) && !createdDirectories.contains(directory)) {
+                path.mkdirs();
+                createdDirectories.add(directory);
+            }
+            env.put(mount.getEnvironmentVariable(), directory);
+        }
+        return env;
+    }
+
     @Override
     protected void terminate(TaskListener listener) throws Exception {
         super.terminate(listener);
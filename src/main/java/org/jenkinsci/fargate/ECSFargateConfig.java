@@ -12,7 +12,9 @@ import javax.annotation.CheckForNull;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,14 +23,27 @@ public class ECSFargateConfig extends GlobalConfiguration {
 
     private static final Logger LOGGER = Logger.getLogger(ECSFargateConfig.class.getName());
 
+    /**
+     * Set once Jenkins created the configuration, saves an extension lookup on every queue maintenance.
+     */
+    private static volatile ECSFargateConfig instance;
+
     private List<ECSCluster> clusters;
 
+    /**
+     * Template name to every cluster defining it along with its template there, in configuration order. Rebuilt
+     * whenever the clusters are replaced and never modified, so lookups need no locking.
+     */
+    private transient volatile Map<String,List<Pair<ECSCluster,ECSFargateTaskDefinition>>> templates = Collections.emptyMap();
+
     public List<ECSCluster> getClusters() {
         return clusters == null ? Collections.EMPTY_LIST : clusters;
     }
 
     public ECSFargateConfig(){
         load();
+        reindex();
+        instance = this;
     }
 
 
@@ -37,6 +52,7 @@ public class ECSFargateConfig extends GlobalConfiguration {
 
         LOGGER.log(Level.INFO,"Form data {0}",json);
         req.bindJSON(this,json);
+        reindex();
         save();
 
         return super.configure(req,json);
@@ -45,20 +61,76 @@ public class ECSFargateConfig extends GlobalConfiguration {
     @DataBoundSetter
     public void setClusters(List<ECSCluster> clusters) {
         this.clusters = clusters;
+        reindex();
     }
 
+    /**
+     * Called by the provisioner for every queue item while the queue is locked, so this is a single hash lookup.
+     *
+     * @return the template in the first cluster defining it, see {@link ClusterRouter} to pick among all of them.
+     */
     @CheckForNull
     public Pair<ECSCluster,ECSFargateTaskDefinition> getTemplate(String templateName){
+        List<Pair<ECSCluster,ECSFargateTaskDefinition>> candidates = templates.get(templateName);
+        return candidates == null ? null : candidates.get(0);
+    }
+
+    /**
+     * @return the template as defined in the given cluster, or null if that cluster does not define it anymore.
+     */
+    @CheckForNull
+    public Pair<ECSCluster,ECSFargateTaskDefinition> getTemplate(String templateName, String clusterArn){
+        for(Pair<ECSCluster,ECSFargateTaskDefinition> candidate : getTemplates(templateName)){
+            if(candidate.getKey().getClusterArn().equals(clusterArn)){
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return every cluster defining the template, in configuration order.
+     */
+    public List<Pair<ECSCluster,ECSFargateTaskDefinition>> getTemplates(String templateName){
+        List<Pair<ECSCluster,ECSFargateTaskDefinition>> candidates = templates.get(templateName);
+        return candidates == null ? Collections.<Pair<ECSCluster,ECSFargateTaskDefinition>>emptyList() : candidates;
+    }
+
+    /**
+     * Replaces the template index.
+     */
+    private void reindex(){
+        templates = index(clusters);
+        LOGGER.log(Level.FINE,"Indexed {0} fargate templates",templates.size());
+    }
+
+    /**
+     * @return the template index of the given clusters, see {@link #templates}.
+     */
+    static Map<String,List<Pair<ECSCluster,ECSFargateTaskDefinition>>> index(@CheckForNull List<ECSCluster> clusters){
+        Map<String,List<Pair<ECSCluster,ECSFargateTaskDefinition>>> index = new HashMap<String,List<Pair<ECSCluster,ECSFargateTaskDefinition>>>();
         if(clusters != null){
             for(ECSCluster ecsCluster : clusters){
-                ECSFargateTaskDefinition ecsFargateTaskDefinition = ecsCluster.getTemplateWithName(templateName);
-                if(ecsFargateTaskDefinition != null){
-                    return new ImmutablePair<ECSCluster,ECSFargateTaskDefinition>(ecsCluster,ecsFargateTaskDefinition);
+                if(ecsCluster.getTaskDefinitionList() == null){
+                    continue;
+                }
+                for(ECSFargateTaskDefinition ecsFargateTaskDefinition : ecsCluster.getTaskDefinitionList()){
+                    if(ecsFargateTaskDefinition.getName() == null){
+                        continue;
+                    }
+                    List<Pair<ECSCluster,ECSFargateTaskDefinition>> candidates = index.get(ecsFargateTaskDefinition.getName());
+                    if(candidates == null){
+                        candidates = new ArrayList<Pair<ECSCluster,ECSFargateTaskDefinition>>(1);
+                        index.put(ecsFargateTaskDefinition.getName(), candidates);
+                    }
+                    candidates.add(new ImmutablePair<ECSCluster,ECSFargateTaskDefinition>(ecsCluster,ecsFargateTaskDefinition));
                 }
             }
         }
-
-        return null;
+        for(Map.Entry<String,List<Pair<ECSCluster,ECSFargateTaskDefinition>>> entry : index.entrySet()){
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(index);
     }
 
     public List<ECSFargateTaskDefinition> getAllTemplates(){
@@ -92,7 +164,11 @@ public class ECSFargateConfig extends GlobalConfiguration {
 
 
     public static ECSFargateConfig getEcsFargateConfig(){
-        return GlobalConfiguration.all().get(ECSFargateConfig.class);
+        ECSFargateConfig config = instance;
+        if(config == null){
+            config = GlobalConfiguration.all().get(ECSFargateConfig.class);
+        }
+        return config;
     }
 
 
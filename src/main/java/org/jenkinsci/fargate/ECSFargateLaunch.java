@@ -0,0 +1,593 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.ecs.model.ClientException;
+import com.amazonaws.services.ecs.model.RunTaskRequest;
+import com.amazonaws.services.ecs.model.RunTaskResult;
+import com.amazonaws.services.ecs.model.Task;
+import com.codahale.metrics.Gauge;
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.SlaveComputer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.oneshot.DeadComputer;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives the launch of a single fargate agent without holding a thread while the task boots.
+ *
+ * A launch moves through {@link State#REGISTERING}, {@link State#RUN_REQUESTED} and {@link State#PROVISIONING} and
+ * ends either {@link State#CONNECTED} when the JNLP connection arrives or {@link State#FAILED} once the retries of
+ * the cluster are exhausted. Failed attempts are classified by the {@link LaunchRetryPolicy}, which decides whether
+ * and after which backoff the launch is retried. Every step runs on a small shared scheduler, ECS calls are
+ * asynchronous and the connection is detected through {@link OnlineListener} instead of polling.
+ *
+ * Once connected, the time spent in each phase is published as <code>fargate.launches.phase.*</code> timers, also
+ * broken down per cluster and per template. Phases inside ECS are taken from the task timestamps:
+ * <ul>
+ *     <li><code>register</code>: resolving or registering the task definition</li>
+ *     <li><code>runTask</code>: the RunTask call of the successful attempt</li>
+ *     <li><code>provision</code>: from task creation to the image pull, mostly attaching the network interface</li>
+ *     <li><code>pull</code>: pulling the image</li>
+ *     <li><code>start</code>: from the end of the pull to the container running</li>
+ *     <li><code>connect</code>: from the container running to the JNLP connection</li>
+ *     <li><code>total</code>: from the start of the launch, retries included</li>
+ * </ul>
+ */
+class ECSFargateLaunch {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSFargateLaunch.class.getName());
+
+    /**
+     * Number of threads driving launches. Threads only block while registering a task definition.
+     */
+    static final int THREADS = Integer.getInteger(ECSFargateLaunch.class.getName() + ".threads", 4);
+
+    /**
+     * How often a provisioning launch checks whether its node was removed or its deadline passed.
+     */
+    static final long WATCHDOG_INTERVAL_SECONDS = Long.getLong(ECSFargateLaunch.class.getName() + ".watchdogIntervalSeconds", 5);
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newScheduledThreadPool(THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "ECSFargateLaunch"));
+
+    /**
+     * Launches in progress, keyed by node name.
+     */
+    private static final ConcurrentMap<String, ECSFargateLaunch> ACTIVE = new ConcurrentHashMap<String, ECSFargateLaunch>();
+
+    /**
+     * How long launches on a cluster go straight to on demand capacity once Spot capacity ran out there.
+     */
+    static final long SPOT_COOLDOWN_MILLIS = Long.getLong(ECSFargateLaunch.class.getName() + ".spotCooldownMillis", TimeUnit.MINUTES.toMillis(2));
+
+    /**
+     * End of the Spot cooldown, keyed by cluster arn.
+     */
+    private static final ConcurrentMap<String, Long> SPOT_UNAVAILABLE = new ConcurrentHashMap<String, Long>();
+
+    enum State {
+        REGISTERING, RUN_REQUESTED, PROVISIONING, CONNECTED, FAILED;
+
+        boolean isTerminal() {
+            return this == CONNECTED || this == FAILED;
+        }
+    }
+
+    private final FargateAgent slave;
+    private final SlaveComputer computer;
+    private final ECSCluster cluster;
+    private final ECSFargateTaskDefinition template;
+    private final TaskListener listener;
+    private final ECSService ecsService;
+
+    private State state = State.REGISTERING;
+    private int attempts;
+    private String taskDefinitionArn;
+    @CheckForNull
+    private String taskArn;
+    private long deadline;
+    /**
+     * Subnets the current attempt was sent to.
+     */
+    @CheckForNull
+    private String[] subnets;
+    /**
+     * Whether the current attempt was sent with the Spot capacity provider strategy of the template.
+     */
+    private boolean spot;
+    /**
+     * Set once Spot capacity failed this launch, the remaining attempts run on demand.
+     */
+    private boolean onDemandOnly;
+    @CheckForNull
+    private ScheduledFuture<?> watchdog;
+
+    /**
+     * Local timestamps of the launch phases, see {@link #recordPhases}.
+     */
+    private final long startedAt = System.currentTimeMillis();
+    private long registeredAt;
+    private long runRequestedAt;
+    private long runAcceptedAt;
+
+    private ECSFargateLaunch(FargateAgent slave, SlaveComputer computer, ECSCluster cluster, ECSFargateTaskDefinition template, TaskListener listener) {
+        this.slave = slave;
+        this.computer = computer;
+        this.cluster = cluster;
+        this.template = template;
+        this.listener = listener;
+        this.ecsService = cluster.getEcsService();
+    }
+
+    /**
+     * Starts launching the given agent and returns immediately.
+     */
+    static ECSFargateLaunch start(FargateAgent slave, SlaveComputer computer, ECSCluster cluster, ECSFargateTaskDefinition template, TaskListener listener) {
+        final ECSFargateLaunch launch = new ECSFargateLaunch(slave, computer, cluster, template, listener);
+        ECSFargateLaunch previous = ACTIVE.put(slave.getNodeName(), launch);
+        if (previous != null) {
+            previous.abandon();
+        }
+        ClusterRouter.launching(cluster, template);
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                launch.register();
+            }
+        });
+        return launch;
+    }
+
+    @CheckForNull
+    static ECSFargateLaunch get(String nodeName) {
+        return ACTIVE.get(nodeName);
+    }
+
+    /**
+     * @return the number of launches in progress.
+     */
+    static int getActiveCount() {
+        return ACTIVE.size();
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    private synchronized boolean transition(State from, State to) {
+        if (state != from) {
+            LOGGER.log(Level.FINE, "Ignoring transition {0} -> {1} of {2}, launch is {3}", new Object[]{from, to, slave.getNodeName(), state});
+            return false;
+        }
+        LOGGER.log(Level.FINE, "Launch of {0}: {1} -> {2}", new Object[]{slave.getNodeName(), from, to});
+        state = to;
+        return true;
+    }
+
+    private void register() {
+        try {
+            taskDefinitionArn = ecsService.registerTemplate(cluster, template, slave.getOverrideAction());
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Unable to register task definition for " + slave.getNodeName(), e);
+            listener.getLogger().println("A problem occurred while registering the task definition " + e.getMessage());
+            fail("Unable to register task definition.", true);
+            return;
+        }
+        registeredAt = System.currentTimeMillis();
+        if (transition(State.REGISTERING, State.RUN_REQUESTED)) {
+            requestRun();
+        }
+    }
+
+    private void requestRun() {
+        final String[] attemptSubnets;
+        final boolean attemptSpot;
+        synchronized (this) {
+            attempts++;
+            taskArn = null;
+            subnets = ecsService.getSubnetScheduler().pick(template);
+            attemptSubnets = subnets;
+            spot = template.isSpot() && !onDemandOnly && !isSpotCoolingDown();
+            attemptSpot = spot;
+            runRequestedAt = System.currentTimeMillis();
+        }
+        LOGGER.log(Level.INFO, "Launching ECS task for item {0} and template {1}, attempt {2}.", new Object[]{slave.getTaskName(), slave.getTemplateLabel(), attempts});
+        try {
+            ecsService.runEcsTaskAsync(slave,
+                    template,
+                    cluster.getClusterArn(),
+                    cluster.getName(),
+                    getDockerRunCommand(),
+                    taskDefinitionArn,
+                    slave.getTaskName(),
+                    slave.getOverrideAction(),
+                    attemptSubnets,
+                    attemptSpot,
+                    new AsyncHandler<RunTaskRequest, RunTaskResult>() {
+                        @Override
+                        public void onError(final Exception exception) {
+                            EXECUTOR.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    attemptFailed("A problem occurred while submitting the request for this task " + exception.getMessage(), exception);
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void onSuccess(final RunTaskRequest request, final RunTaskResult result) {
+                            EXECUTOR.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    taskRequested(request, result);
+                                }
+                            });
+                        }
+                    });
+        } catch (RuntimeException e) {
+            attemptFailed("A problem occurred while submitting the request for this task " + e.getMessage(), e);
+        }
+    }
+
+    private void taskRequested(RunTaskRequest request, RunTaskResult result) {
+        String arn;
+        try {
+            arn = ecsService.getStartedTaskArn(slave, request, result);
+        } catch (Exception e) {
+            attemptFailed(e.getMessage(), null);
+            return;
+        }
+        synchronized (this) {
+            if (state == State.FAILED) {
+                // given up while the request was in flight, do not leave the task behind
+                ecsService.deleteTask(arn, cluster.getClusterArn());
+                return;
+            }
+            taskArn = arn;
+            runAcceptedAt = System.currentTimeMillis();
+            recordCapacityProvider(result, arn);
+            slave.setTaskArn(arn);
+            if (!transition(State.RUN_REQUESTED, State.PROVISIONING)) {
+                // connected before we even heard back from ECS, nothing left to do
+                return;
+            }
+            deadline = System.currentTimeMillis() + 1000L * cluster.getSlaveTimeout();
+            final String requested = arn;
+            ecsService.getTaskStateTracker(cluster.getClusterArn()).track(arn, new TaskStateTracker.Listener() {
+                @Override
+                public void onChange(TaskStateTracker.TaskState previous, final TaskStateTracker.TaskState current) {
+                    EXECUTOR.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            taskChanged(requested, current);
+                        }
+                    });
+                }
+            });
+            watchdog = EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkProvisioning();
+                }
+            }, WATCHDOG_INTERVAL_SECONDS, WATCHDOG_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        listener.getLogger().println("Fargate task " + arn + " requested, waiting for the agent to connect...");
+    }
+
+    /**
+     * Fails the attempt as soon as ECS reports the task stopped instead of waiting for the deadline.
+     */
+    private void taskChanged(String arn, TaskStateTracker.TaskState current) {
+        synchronized (this) {
+            if (state != State.PROVISIONING || !arn.equals(taskArn)) {
+                return;
+            }
+        }
+        listener.getLogger().println("Fargate task " + arn + " is " + current.getLastStatus());
+        if (current.isStopped()) {
+            String reason = "Task " + arn + " stopped before the agent connected: " + current.getStoppedReason();
+            if (!current.getExitCodes().isEmpty()) {
+                reason += ", exit codes " + current.getExitCodes();
+            }
+            attemptFailed(reason, null);
+        }
+    }
+
+    private void checkProvisioning() {
+        if (getState() != State.PROVISIONING) {
+            return;
+        }
+        if (slave.getComputer() == null || slave.getComputer() instanceof DeadComputer) {
+            fail("Slave " + slave.getNodeName() + " - Node was deleted, computer is null", false);
+        } else if (slave.isAbandoned()) {
+            fail("Slave " + slave.getNodeName() + " - Task was interrupted before the agent connected", false);
+        } else if (slave.isConnected()) {
+            connected();
+        } else if (System.currentTimeMillis() > deadline) {
+            attemptFailed("Slave did not launch in a timely manner, terminating task and incrementing retries.", null);
+        } else {
+            LOGGER.log(Level.FINE, "Waiting for slave {0} to connect... ", slave.getNodeName());
+        }
+    }
+
+    /**
+     * Called when the agent connected.
+     */
+    void connected() {
+        long connectedAt = System.currentTimeMillis();
+        TaskStateTracker.TaskState taskState = null;
+        synchronized (this) {
+            if (state.isTerminal()) {
+                return;
+            }
+            LOGGER.log(Level.FINE, "Launch of {0}: {1} -> {2}", new Object[]{slave.getNodeName(), state, State.CONNECTED});
+            state = State.CONNECTED;
+            cancelWatchdog();
+            if (taskArn != null) {
+                taskState = ecsService.getTaskStateTracker(cluster.getClusterArn()).getState(taskArn);
+            }
+            unsubscribe();
+        }
+        ACTIVE.remove(slave.getNodeName(), this);
+        recordPhases(taskState, connectedAt);
+        ClusterRouter.succeeded(cluster, connectedAt - startedAt);
+        LOGGER.log(Level.INFO, "Fargate agent {0} connected after {1} attempt(s).", new Object[]{slave.getNodeName(), attempts});
+    }
+
+    private void attemptFailed(String reason, @CheckForNull Exception cause) {
+        // a cached task definition may have been deregistered behind our back
+        boolean reregister = cause instanceof ClientException && StringUtils.containsIgnoreCase(cause.getMessage(), "inactive");
+        String arn;
+        synchronized (this) {
+            if (state != State.RUN_REQUESTED && state != State.PROVISIONING) {
+                return;
+            }
+            cancelWatchdog();
+            unsubscribe();
+            arn = taskArn;
+            taskArn = null;
+            state = reregister ? State.REGISTERING : State.RUN_REQUESTED;
+        }
+        listener.getLogger().println(reason);
+        LOGGER.log(Level.WARNING, "Launch attempt {0} of {1} failed: {2}", new Object[]{attempts, slave.getNodeName(), reason});
+        if (cause != null) {
+            LOGGER.log(Level.FINE, "Launch attempt failed", cause);
+        }
+        if (arn != null) {
+            ecsService.deleteTask(arn, cluster.getClusterArn());
+        }
+        if (reregister) {
+            if (attempts < cluster.getMaxRetries()) {
+                ecsService.invalidateTaskDefinition(taskDefinitionArn);
+                register();
+            } else {
+                fail("Failed to provision agent after " + attempts + " attempt(s).", false);
+            }
+            return;
+        }
+
+        if (isSpotShortage(reason, cause)) {
+            // no need to back off, on demand capacity is a separate pool
+            SPOT_UNAVAILABLE.put(cluster.getClusterArn(), System.currentTimeMillis() + SPOT_COOLDOWN_MILLIS);
+            FargateMetrics.meter("launches", "template", template.getName(), "spotFallbacks").mark();
+            listener.getLogger().println("Fargate Spot capacity is not available, falling back to on demand capacity");
+            synchronized (this) {
+                onDemandOnly = true;
+            }
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (getState() == State.RUN_REQUESTED) {
+                        requestRun();
+                    }
+                }
+            });
+            return;
+        }
+
+        LaunchRetryPolicy.Decision decision = LaunchRetryPolicy.decide(cluster, reason, cause, attempts);
+        FargateMetrics.meter("launches", cluster.getName(), "failures", decision.action.name().toLowerCase(Locale.ENGLISH)).mark();
+        if (decision.action != LaunchRetryPolicy.Action.PERMANENT) {
+            // permanent failures come from the template, not from the health of the cluster
+            ClusterRouter.failed(cluster);
+        }
+        if (decision.action == LaunchRetryPolicy.Action.PERMANENT) {
+            fail("Failed to provision agent, the failure is not transient: " + reason, false);
+        } else if (attempts < cluster.getMaxRetries()) {
+            // the task may have landed in either subnet handed to ECS, avoid both
+            if (decision.action == LaunchRetryPolicy.Action.RETRY_ELSEWHERE && subnets != null) {
+                ecsService.getSubnetScheduler().failed(subnets);
+            }
+            LOGGER.log(Level.FINE, "Retrying launch of {0}: {1}", new Object[]{slave.getNodeName(), decision});
+            EXECUTOR.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (getState() == State.RUN_REQUESTED) {
+                        requestRun();
+                    }
+                }
+            }, decision.backoffMillis, TimeUnit.MILLISECONDS);
+        } else {
+            fail("Failed to provision agent after " + attempts + " attempt(s).", false);
+        }
+    }
+
+    private boolean isSpotCoolingDown() {
+        Long until = SPOT_UNAVAILABLE.get(cluster.getClusterArn());
+        if (until == null) {
+            return false;
+        }
+        if (until > System.currentTimeMillis()) {
+            return true;
+        }
+        SPOT_UNAVAILABLE.remove(cluster.getClusterArn(), until);
+        return false;
+    }
+
+    /**
+     * @return true when the failed attempt ran on Spot and failed for lack of Spot capacity or was interrupted
+     * before its agent connected.
+     */
+    private synchronized boolean isSpotShortage(String reason, @CheckForNull Exception cause) {
+        if (!spot || onDemandOnly) {
+            return false;
+        }
+        String text = cause == null ? reason : reason + ' ' + cause.getMessage();
+        return StringUtils.containsIgnoreCase(text, "capacity") || StringUtils.containsIgnoreCase(text, "Spot");
+    }
+
+    /**
+     * Counts the tasks started on Spot and on demand capacity per template.
+     */
+    private void recordCapacityProvider(RunTaskResult result, String arn) {
+        for (Task task : result.getTasks()) {
+            if (arn.equals(task.getTaskArn())) {
+                boolean onSpot = "FARGATE_SPOT".equals(task.getCapacityProviderName());
+                FargateMetrics.meter("launches", "template", template.getName(), onSpot ? "spot" : "onDemand").mark();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Publishes the duration of every phase of a successful launch. ECS phases are skipped when the task was not
+     * observed with the timestamps they need, for instance when the agent connected before the next poll.
+     */
+    private void recordPhases(@CheckForNull TaskStateTracker.TaskState taskState, long connectedAt) {
+        recordPhase("register", registeredAt - startedAt);
+        if (runAcceptedAt > 0) {
+            recordPhase("runTask", runAcceptedAt - runRequestedAt);
+        }
+        if (taskState != null) {
+            recordPhase("provision", between(taskState.getCreatedAt(), taskState.getPullStartedAt()));
+            recordPhase("pull", between(taskState.getPullStartedAt(), taskState.getPullStoppedAt()));
+            recordPhase("start", between(taskState.getPullStoppedAt(), taskState.getStartedAt()));
+            if (taskState.getStartedAt() != null) {
+                // ECS clock against ours, skewed ones come out negative and are dropped
+                recordPhase("connect", connectedAt - taskState.getStartedAt().getTime());
+            }
+        }
+        recordPhase("total", connectedAt - startedAt);
+    }
+
+    private void recordPhase(String phase, long millis) {
+        if (millis < 0) {
+            return;
+        }
+        FargateMetrics.timer("launches", "phase", phase).update(millis, TimeUnit.MILLISECONDS);
+        FargateMetrics.timer("launches", "cluster", cluster.getName(), phase).update(millis, TimeUnit.MILLISECONDS);
+        FargateMetrics.timer("launches", "template", template.getName(), phase).update(millis, TimeUnit.MILLISECONDS);
+    }
+
+    private static long between(@CheckForNull Date from, @CheckForNull Date to) {
+        return from == null || to == null ? -1 : to.getTime() - from.getTime();
+    }
+
+    private void fail(String reason, boolean deleteTask) {
+        String arn;
+        synchronized (this) {
+            if (state.isTerminal()) {
+                return;
+            }
+            state = State.FAILED;
+            cancelWatchdog();
+            unsubscribe();
+            arn = taskArn;
+        }
+        ACTIVE.remove(slave.getNodeName(), this);
+        listener.getLogger().println(reason);
+        LOGGER.log(Level.INFO, "Failed to provision agent, removing from jenkins {0}: {1}", new Object[]{slave.getNodeName(), reason});
+        if (deleteTask && arn != null) {
+            ecsService.deleteTask(arn, cluster.getClusterArn());
+        }
+        try {
+            slave.discard(listener);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to disconnect node after failing to provision {0}.", e.getMessage());
+        }
+    }
+
+    /**
+     * Stops driving this launch without touching the node, used when a new launch replaces it.
+     */
+    private synchronized void abandon() {
+        if (!state.isTerminal()) {
+            state = State.FAILED;
+            cancelWatchdog();
+            unsubscribe();
+        }
+    }
+
+    private void unsubscribe() {
+        if (taskArn != null) {
+            ecsService.getTaskStateTracker(cluster.getClusterArn()).unsubscribe(taskArn);
+        }
+    }
+
+    private void cancelWatchdog() {
+        if (watchdog != null) {
+            watchdog.cancel(false);
+            watchdog = null;
+        }
+    }
+
+    private Collection<String> getDockerRunCommand() {
+        Collection<String> command = new ArrayList<String>();
+        command.add("-url");
+        command.add(Jenkins.getInstance().getRootUrl());
+        if (StringUtils.isNotBlank(cluster.getTunnel())) {
+            command.add("-tunnel");
+            command.add(cluster.getTunnel());
+        }
+        command.add(computer.getJnlpMac());
+        command.add(computer.getName());
+        return command;
+    }
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void registerMetrics() {
+        FargateMetrics.gauge(new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return ACTIVE.size();
+            }
+        }, "launches", "active");
+    }
+
+    /**
+     * Completes a launch the moment its agent comes online.
+     */
+    @Extension
+    public static class OnlineListener extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            if (c instanceof SlaveComputer) {
+                ECSFargateLaunch launch = ACTIVE.get(c.getName());
+                if (launch != null) {
+                    launch.connected();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package org.jenkinsci.fargate;
+
+import com.codahale.metrics.Gauge;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import hudson.slaves.SlaveComputer;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps connected, unassigned {@link ECSFargatePoolSlave}s ready for the templates that enable a warm pool.
+ *
+ * A background pass tops every pool up to its minimum, or up to the builds the {@link DemandForecast} expects shortly
+ * when that is more, and terminates agents idle for longer than the template idle timeout while the pool is above that
+ * target, or right away while it is above its maximum.
+ * {@link ECSFargateProvisioner} asks {@link #reserve} before provisioning a one-shot agent, so a queue item only skips
+ * the one-shot path when an idle pooled agent is actually left for it.
+ *
+ * Templates reusing agents get pooled agents started for their queued builds by {@link #provisionFor} instead of
+ * one-shot ones, added to Jenkins outside of the queue lock. Once its build completed such an agent, or a warm agent of the template, is handed back by
+ * {@link #reuse} until it ran the maximum builds of the template, and is terminated after the reuse idle time.
+ */
+final class ECSFargatePool {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSFargatePool.class.getName());
+
+    static final long INTERVAL_SECONDS = Long.getLong(ECSFargatePool.class.getName() + ".intervalSeconds", 15);
+
+    /**
+     * How long an idle agent stays promised to a queue item that has not been assigned to it yet.
+     */
+    private static final long RESERVATION_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    static final ECSFargateTaskOverrideAction NO_OVERRIDES = new ECSFargateTaskOverrideAction("", "", "", "");
+
+    /**
+     * Idle agents promised to queue items, keyed by queue item id.
+     */
+    private static final Map<Long, Reservation> RESERVATIONS = new HashMap<Long, Reservation>();
+
+    /**
+     * Queued items that looked for a pooled agent, keyed by queue item id and guarded by {@link #RESERVATIONS}. An
+     * item counts as a pool hit when it first gets a reservation, or as a miss once it left the queue without one.
+     */
+    private static final Map<Long, Lookup> LOOKUPS = new HashMap<Long, Lookup>();
+
+    /**
+     * Pooled agents that already ran their build and are being terminated.
+     */
+    private static final Set<String> RETIRED = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Agents started for queued builds of templates reusing agents, node names keyed by queue item id.
+     */
+    private static final Map<Long, String> DEMANDED = new HashMap<Long, String>();
+
+    /**
+     * Agents started for queued builds that are not added to Jenkins yet.
+     */
+    private static final Set<String> ADDING = ConcurrentHashMap.newKeySet();
+
+    private ECSFargatePool() {
+    }
+
+    /**
+     * Promises an idle pooled agent of the template to the given queue item.
+     *
+     * @return true when the item can wait for a pooled agent instead of provisioning a one-shot agent.
+     */
+    static boolean reserve(ECSFargateTaskDefinition template, long itemId) {
+        if (!template.isPooled() && !template.isReusable()) {
+            return false;
+        }
+        int idle = getIdleAgents(template.getName()).size();
+        boolean hit = false;
+        boolean reserved;
+        synchronized (RESERVATIONS) {
+            long now = System.currentTimeMillis();
+            int others = 0;
+            for (Iterator<Map.Entry<Long, Reservation>> it = RESERVATIONS.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Long, Reservation> entry = it.next();
+                if (now - entry.getValue().since > RESERVATION_MILLIS) {
+                    it.remove();
+                } else if (entry.getKey() != itemId && entry.getValue().template.equals(template.getName())) {
+                    others++;
+                }
+            }
+            reserved = idle > others;
+            if (reserved) {
+                if (!RESERVATIONS.containsKey(itemId)) {
+                    RESERVATIONS.put(itemId, new Reservation(template.getName(), now));
+                }
+            } else {
+                RESERVATIONS.remove(itemId);
+            }
+            Lookup lookup = LOOKUPS.get(itemId);
+            if (lookup == null) {
+                lookup = new Lookup(template.getName());
+                LOOKUPS.put(itemId, lookup);
+            }
+            if (reserved && !lookup.hit) {
+                lookup.hit = true;
+                hit = true;
+            }
+        }
+        if (hit) {
+            FargateMetrics.meter("pool", template.getName(), "hits").mark();
+        }
+        return reserved;
+    }
+
+    private static void release(long itemId) {
+        Lookup lookup;
+        synchronized (RESERVATIONS) {
+            RESERVATIONS.remove(itemId);
+            lookup = LOOKUPS.remove(itemId);
+        }
+        if (lookup != null && !lookup.hit) {
+            FargateMetrics.meter("pool", lookup.template, "misses").mark();
+        }
+        synchronized (DEMANDED) {
+            DEMANDED.remove(itemId);
+        }
+    }
+
+    /**
+     * Starts a pooled agent for a queued build of a template reusing its agents, unless one started for it earlier is
+     * still starting or idle. Called with the queue lock held, so only the demand is recorded here and the agent is
+     * added to Jenkins on the remoting thread pool.
+     *
+     * @return true when the item can wait for that agent instead of provisioning a one-shot agent.
+     */
+    static boolean provisionFor(ECSFargateTaskDefinition template, long itemId) {
+        if (!template.isReusable()) {
+            return false;
+        }
+        synchronized (DEMANDED) {
+            String name = DEMANDED.get(itemId);
+            if (name != null && ADDING.contains(name)) {
+                return true;
+            }
+            Node node = name == null ? null : Jenkins.getInstance().getNode(name);
+            if (node instanceof ECSFargatePoolSlave && !RETIRED.contains(name)
+                    && (isLaunching((ECSFargatePoolSlave) node) || isIdle((ECSFargatePoolSlave) node))) {
+                return true;
+            }
+            // the cluster the item was admitted on, its budget already counts this agent; the router only serves
+            // items admitted before the configuration dropped that cluster
+            String admittedCluster = AdmissionController.getAdmittedCluster(itemId);
+            Pair<ECSCluster, ECSFargateTaskDefinition> target = admittedCluster != null
+                    ? ECSFargateConfig.getEcsFargateConfig().getTemplate(template.getName(), admittedCluster)
+                    : null;
+            if (target == null) {
+                target = ClusterRouter.route(template.getName());
+            }
+            ECSFargatePoolSlave agent = target == null ? null : create(target.getKey(), target.getValue(), itemId);
+            if (agent == null) {
+                DEMANDED.remove(itemId);
+                return false;
+            }
+            DEMANDED.put(itemId, agent.getNodeName());
+            addLater(agent, itemId);
+            FargateMetrics.meter("reuse", template.getName(), "launches").mark();
+            return true;
+        }
+    }
+
+    /**
+     * Hands an agent that completed a build back for the next one, cleaning its workspaces first when its template
+     * asks for it. Called with the agent no longer accepting tasks.
+     *
+     * @return false when the agent is done and should be retired.
+     */
+    static boolean reuse(final ECSFargatePoolSlave agent) {
+        ECSFargateConfig config = ECSFargateConfig.getEcsFargateConfig();
+        Pair<ECSCluster, ECSFargateTaskDefinition> template = config == null ? null
+                : config.getTemplate(agent.getTemplateLabel(), agent.getClusterArn());
+        final SlaveComputer computer = agent.getComputer();
+        if (template == null || !template.getValue().isReusable() || agent.getBuilds() >= template.getValue().getReuseMaxBuilds()
+                || computer == null || !computer.isOnline()) {
+            return false;
+        }
+        final String templateName = template.getValue().getName();
+        if (ECSFargateTaskDefinition.REUSE_KEEP.equals(template.getValue().getReuseWorkspace())) {
+            computer.setAcceptingTasks(true);
+            FargateMetrics.meter("reuse", templateName, "reused").mark();
+            return true;
+        }
+        Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FilePath workspaces = agent.getWorkspaceRoot();
+                    if (workspaces != null) {
+                        workspaces.deleteContents();
+                    }
+                    computer.setAcceptingTasks(true);
+                    FargateMetrics.meter("reuse", templateName, "reused").mark();
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to clean the workspaces of " + agent.getNodeName() + ", terminating it", e);
+                    retire(agent);
+                }
+            }
+        });
+        return true;
+    }
+
+    static void assigned(ECSFargatePoolSlave agent) {
+        LOGGER.log(Level.FINE, "Pooled agent {0} took a build", agent.getNodeName());
+        refillSoon();
+    }
+
+    /**
+     * Terminates an agent that ran its build, outside of the executor thread reporting the completion.
+     */
+    static void retire(final ECSFargatePoolSlave agent) {
+        if (!RETIRED.add(agent.getNodeName())) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    agent.terminate();
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to terminate pooled agent " + agent.getNodeName(), e);
+                } finally {
+                    RETIRED.remove(agent.getNodeName());
+                }
+            }
+        });
+    }
+
+    private static void refillSoon() {
+        Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        });
+    }
+
+    static List<ECSFargatePoolSlave> getAgents(String templateName) {
+        List<ECSFargatePoolSlave> agents = new ArrayList<ECSFargatePoolSlave>();
+        Label label = Jenkins.getInstance().getLabel(templateName);
+        if (label == null) {
+            return agents;
+        }
+        for (Node node : label.getNodes()) {
+            if (node instanceof ECSFargatePoolSlave && !RETIRED.contains(node.getNodeName())) {
+                agents.add((ECSFargatePoolSlave) node);
+            }
+        }
+        return agents;
+    }
+
+    static List<ECSFargatePoolSlave> getIdleAgents(String templateName) {
+        List<ECSFargatePoolSlave> idle = new ArrayList<ECSFargatePoolSlave>();
+        for (ECSFargatePoolSlave agent : getAgents(templateName)) {
+            if (isIdle(agent)) {
+                idle.add(agent);
+            }
+        }
+        return idle;
+    }
+
+    private static boolean isIdle(ECSFargatePoolSlave agent) {
+        SlaveComputer computer = agent.getComputer();
+        return computer != null && computer.isOnline() && computer.isIdle() && computer.isAcceptingTasks();
+    }
+
+    /**
+     * @return true while the agent task is being started.
+     */
+    private static boolean isLaunching(ECSFargatePoolSlave agent) {
+        SlaveComputer computer = agent.getComputer();
+        if (computer == null || computer.isOnline()) {
+            return false;
+        }
+        ECSFargateLaunch launch = ECSFargateLaunch.get(agent.getNodeName());
+        return computer.isConnecting() || (launch != null && !launch.getState().isTerminal());
+    }
+
+    /**
+     * Tops up every warm pool and trims agents idle for too long.
+     */
+    static synchronized void maintain() {
+        ECSFargateConfig config = ECSFargateConfig.getEcsFargateConfig();
+        if (config == null) {
+            return;
+        }
+        Map<String, ECSFargateTaskDefinition> pooled = new HashMap<String, ECSFargateTaskDefinition>();
+        for (ECSCluster cluster : config.getClusters()) {
+            for (ECSFargateTaskDefinition template : cluster.getTaskDefinitionList()) {
+                if ((template.isPooled() || template.isReusable()) && !pooled.containsKey(template.getName())) {
+                    pooled.put(template.getName(), template);
+                    // one pool per label, new agents go where the router sends them
+                    Pair<ECSCluster, ECSFargateTaskDefinition> routed = ClusterRouter.route(template.getName());
+                    if (routed != null) {
+                        maintain(routed.getKey(), routed.getValue());
+                    } else {
+                        maintain(cluster, template);
+                    }
+                }
+            }
+        }
+
+        // pools whose template was removed or no longer pooled
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (node instanceof ECSFargatePoolSlave && !pooled.containsKey(((ECSFargatePoolSlave) node).getTemplateLabel())
+                    && isIdle((ECSFargatePoolSlave) node)) {
+                LOGGER.log(Level.INFO, "Terminating pooled agent {0}, its template has no warm pool nor agent reuse anymore", node.getNodeName());
+                retire((ECSFargatePoolSlave) node);
+            }
+        }
+    }
+
+    private static void maintain(ECSCluster cluster, ECSFargateTaskDefinition template) {
+        List<ECSFargatePoolSlave> idle = new ArrayList<ECSFargatePoolSlave>();
+        int launching = 0;
+        long reuseTtl = TimeUnit.MINUTES.toMillis(template.getReuseIdleMinutes());
+        long now = System.currentTimeMillis();
+        for (ECSFargatePoolSlave agent : getAgents(template.getName())) {
+            if (!agent.isWarm()) {
+                // reused or started for a build, outside of the warm pool accounting
+                SlaveComputer computer = agent.getComputer();
+                if (isIdle(agent) && computer != null && now - computer.getIdleStartMilliseconds() > reuseTtl) {
+                    LOGGER.log(Level.FINE, "Terminating reusable agent {0} after {1} builds, idle for too long",
+                            new Object[]{agent.getNodeName(), agent.getBuilds()});
+                    computer.setAcceptingTasks(false);
+                    retire(agent);
+                    FargateMetrics.meter("reuse", template.getName(), "expired").mark();
+                } else if (!isIdle(agent) && !isLaunching(agent) && computer != null && computer.isOffline() && computer.isIdle()) {
+                    LOGGER.log(Level.INFO, "Terminating disconnected reusable agent {0}", agent.getNodeName());
+                    retire(agent);
+                }
+                continue;
+            }
+            if (isIdle(agent)) {
+                idle.add(agent);
+            } else if (isLaunching(agent)) {
+                launching++;
+            } else if (agent.getComputer() != null && agent.getComputer().isOffline() && agent.getComputer().isIdle()) {
+                // launch failed or the task went away, for instance across a restart
+                LOGGER.log(Level.INFO, "Terminating disconnected pooled agent {0}", agent.getNodeName());
+                retire(agent);
+            }
+        }
+
+        recordIdleCost(template, idle.size());
+
+        int target = DemandForecast.get().getTarget(template);
+        long ttl = TimeUnit.MINUTES.toMillis(template.getPoolIdleMinutes());
+        int surplus = idle.size() - target;
+        int overflow = idle.size() + launching - template.getPoolMaxIdle();
+        for (ECSFargatePoolSlave agent : idle) {
+            if (surplus <= 0) {
+                break;
+            }
+            SlaveComputer computer = agent.getComputer();
+            if (computer != null && (overflow > 0 || now - computer.getIdleStartMilliseconds() > ttl)) {
+                LOGGER.log(Level.FINE, "Terminating idle pooled agent {0}", agent.getNodeName());
+                computer.setAcceptingTasks(false);
+                retire(agent);
+                surplus--;
+                overflow--;
+            }
+        }
+
+        int missing = target - idle.size() - launching;
+        if (missing > 0 && target > template.getPoolMinIdle()) {
+            LOGGER.log(Level.INFO, "Starting {0} pooled agents ahead of the builds expected for template {1}, target {2}",
+                    new Object[]{missing, template.getName(), target});
+        }
+        for (int i = 0; i < missing; i++) {
+            if (provision(cluster, template) && idle.size() + launching + i >= template.getPoolMinIdle()) {
+                FargateMetrics.meter("pool", template.getName(), "prelaunches").mark();
+            }
+        }
+    }
+
+    /**
+     * Starts one more pooled agent for the template, unless the pool is already at its maximum.
+     */
+    static synchronized boolean provision(ECSCluster cluster, ECSFargateTaskDefinition template) {
+        int ready = 0;
+        for (ECSFargatePoolSlave agent : getAgents(template.getName())) {
+            if (agent.isWarm() && (isIdle(agent) || isLaunching(agent))) {
+                ready++;
+            }
+        }
+        if (ready >= template.getPoolMaxIdle()) {
+            return false;
+        }
+        if (!AdmissionController.hasCapacity(cluster, template)) {
+            LOGGER.log(Level.FINE, "Cluster {0} has no budget left for a pooled agent of template {1}", new Object[]{cluster.getName(), template.getName()});
+            return false;
+        }
+        if (launch(cluster, template) == null) {
+            return false;
+        }
+        FargateMetrics.meter("pool", template.getName(), "launches").mark();
+        return true;
+    }
+
+    /**
+     * Starts an agent ahead of demand.
+     */
+    @CheckForNull
+    private static ECSFargatePoolSlave launch(ECSCluster cluster, ECSFargateTaskDefinition template) {
+        ECSFargatePoolSlave agent = create(cluster, template, 0);
+        if (agent == null) {
+            return null;
+        }
+        try {
+            Jenkins.getInstance().addNode(agent);
+            return agent;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to start a pooled agent for template " + template.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @param itemId the queue item the agent is started for, or 0 to start it ahead of demand.
+     */
+    @CheckForNull
+    private static ECSFargatePoolSlave create(ECSCluster cluster, ECSFargateTaskDefinition template, long itemId) {
+        try {
+            ECSFargatePoolSlave agent = new ECSFargatePoolSlave(cluster, template, itemId);
+            LOGGER.log(Level.FINE, "Starting pooled agent {0} for template {1}", new Object[]{agent.getNodeName(), template.getName()});
+            return agent;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to start a pooled agent for template " + template.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Adds an agent started for a queue item outside of the queue lock, dropping the claim of the item on it when
+     * that fails so the next queue maintenance starts another one.
+     */
+    private static void addLater(final ECSFargatePoolSlave agent, final long itemId) {
+        final String name = agent.getNodeName();
+        ADDING.add(name);
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Jenkins.getInstance().addNode(agent);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to start pooled agent " + name + " for queue item " + itemId, e);
+                    synchronized (DEMANDED) {
+                        DEMANDED.remove(itemId, name);
+                    }
+                } finally {
+                    ADDING.remove(name);
+                }
+            }
+        });
+    }
+
+    /**
+     * Accumulates the idle agent time, and the vCPU time it represents, since the previous pass.
+     */
+    private static void recordIdleCost(ECSFargateTaskDefinition template, int idle) {
+        if (idle == 0) {
+            return;
+        }
+        FargateMetrics.counter("pool", template.getName(), "idle", "seconds").inc(idle * INTERVAL_SECONDS);
+        double cpu = StringUtils.isEmpty(template.getCpu()) ? 0 : Double.parseDouble(template.getCpu());
+        FargateMetrics.counter("pool", template.getName(), "idle", "vcpuSeconds").inc(Math.round(idle * INTERVAL_SECONDS * cpu));
+    }
+
+    @Initializer(after = InitMilestone.JOBS_LOADED)
+    public static void start() {
+        FargateMetrics.gauge(new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                int idle = 0;
+                for (Computer computer : Jenkins.getInstance().getComputers()) {
+                    if (computer.getNode() instanceof ECSFargatePoolSlave && isIdle((ECSFargatePoolSlave) computer.getNode())) {
+                        idle++;
+                    }
+                }
+                return idle;
+            }
+        }, "pool", "idle");
+        Timer.get().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    maintain();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to maintain the fargate warm pools", e);
+                }
+            }
+        }, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static final class Reservation {
+        private final String template;
+        private final long since;
+
+        Reservation(String template, long since) {
+            this.template = template;
+            this.since = since;
+        }
+    }
+
+    private static final class Lookup {
+        private final String template;
+        private boolean hit;
+
+        Lookup(String template) {
+            this.template = template;
+        }
+    }
+
+    /**
+     * Drops the reservation of an item, and its claim on an agent started for it, once it left the queue.
+     */
+    @Extension
+    public static class ReservationListener extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            release(li.getId());
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.jenkinsci.fargate;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+import hudson.slaves.SlaveComputer;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Agent started ahead of demand by the {@link ECSFargatePool} of a template, or for a queued build of a template
+ * reusing its agents.
+ *
+ * Unlike {@link ECSFargateSlave} it is not tied to a queue item: it carries the template label, connects, and waits
+ * for the first matching build. Once that build completes the agent is terminated, unless its template reuses agents
+ * and the agent has builds left, so by default every build still gets a fresh task.
+ */
+public class ECSFargatePoolSlave extends AbstractCloudSlave implements FargateAgent {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSFargatePoolSlave.class.getName());
+
+    private final String templateLabel;
+    private final String region;
+    private final String clusterArn;
+    private final String credentialId;
+    private String taskArn;
+    /**
+     * Whether the agent was started for a queued build rather than ahead of demand.
+     */
+    private final boolean demanded;
+    /**
+     * Id of the queue item the agent was started for, 0 for agents started ahead of demand.
+     */
+    private final long queueItemId;
+    private int builds;
+
+    public ECSFargatePoolSlave(ECSCluster cluster, ECSFargateTaskDefinition template) throws Descriptor.FormException, IOException {
+        this(cluster, template, 0);
+    }
+
+    /**
+     * @param queueItemId the queue item the agent is started for, or 0 to start it ahead of demand.
+     */
+    public ECSFargatePoolSlave(ECSCluster cluster, ECSFargateTaskDefinition template, long queueItemId) throws Descriptor.FormException, IOException {
+        super("fargate-" + template.getName().replaceAll("[^A-Za-z0-9_.-]", "-") + "-" + UUID.randomUUID().toString().substring(0, 8),
+                "ECS Fargate pooled node.",
+                template.getRemoteFSRoot(),
+                1,
+                Mode.EXCLUSIVE,
+                LabelAtom.escape(template.getName()),
+                new ECSFargateLauncher(new JNLPLauncher()),
+                new PoolRetentionStrategy(),
+                Collections.<NodeProperty<?>>emptyList());
+        this.templateLabel = template.getName();
+        this.region = cluster.getRegion();
+        this.clusterArn = cluster.getClusterArn();
+        this.credentialId = cluster.getCredentialId();
+        this.demanded = queueItemId != 0;
+        this.queueItemId = queueItemId;
+    }
+
+    ECSService getECSService() {
+        return ECSService.get(credentialId, region);
+    }
+
+    public String getClusterArn() {
+        return clusterArn;
+    }
+
+    @Override
+    public String getTemplateLabel() {
+        return templateLabel;
+    }
+
+    @Override
+    public String getTaskName() {
+        return (demanded ? "reusable agent of " : "warm pool of ") + templateLabel;
+    }
+
+    public boolean isDemanded() {
+        return demanded;
+    }
+
+    /**
+     * @return the id of the queue item the agent was started for, 0 when started ahead of demand.
+     */
+    public long getQueueItemId() {
+        return queueItemId;
+    }
+
+    /**
+     * @return the number of builds the agent completed.
+     */
+    public int getBuilds() {
+        return builds;
+    }
+
+    /**
+     * @return true while the agent counts toward the warm pool of its template: started ahead of demand, and waiting
+     * for its first build.
+     */
+    boolean isWarm() {
+        return !demanded && builds == 0;
+    }
+
+    @Override
+    public ECSFargateTaskOverrideAction getOverrideAction() {
+        return ECSFargatePool.NO_OVERRIDES;
+    }
+
+    @Override
+    @CheckForNull
+    public String getTaskArn() {
+        return taskArn;
+    }
+
+    /**
+     * Saves the agent in the background, so the task can be stopped when the agent is launched again after a restart.
+     */
+    @Override
+    public void setTaskArn(String taskArn) {
+        this.taskArn = taskArn;
+        Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    save();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to save pooled agent " + getNodeName(), e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean isConnected() {
+        SlaveComputer computer = getComputer();
+        return computer != null && computer.isOnline();
+    }
+
+    @Override
+    public boolean isAbandoned() {
+        return false;
+    }
+
+    @Override
+    public void discard(TaskListener listener) throws Exception {
+        terminate();
+    }
+
+    /**
+     * Builds with task overrides need a task definition of their own, they never run on a pooled agent.
+     */
+    @Override
+    public CauseOfBlockage canTake(Queue.BuildableItem item) {
+        if (ECSFargateProvisioner.getDefinitionOverrides(item.task) != null) {
+            return new CauseOfBlockage() {
+                @Override
+                public String getShortDescription() {
+                    return "Task overrides can not run on a pooled Fargate agent";
+                }
+            };
+        }
+        return super.canTake(item);
+    }
+
+    @Override
+    public AbstractCloudComputer<ECSFargatePoolSlave> createComputer() {
+        return new AbstractCloudComputer<ECSFargatePoolSlave>(this);
+    }
+
+    @Override
+    protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
+        if (StringUtils.isEmpty(taskArn)) {
+            LOGGER.log(Level.FINE, "Pooled agent {0} terminated before a task was assigned", getNodeName());
+            return;
+        }
+        getECSService().deleteTask(taskArn, clusterArn);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends SlaveDescriptor {
+        @Override
+        public String getDisplayName() {
+            return "ECS Fargate pooled agent";
+        }
+
+        @Override
+        public boolean isInstantiable() {
+            return false;
+        }
+    }
+
+    /**
+     * Connects the agent as soon as it is added and terminates it once its build completed, or hands it back to the
+     * {@link ECSFargatePool} for the next build when its template reuses agents. Idle agents are trimmed by the pool.
+     */
+    public static class PoolRetentionStrategy extends RetentionStrategy<SlaveComputer> implements ExecutorListener {
+
+        @Override
+        public long check(SlaveComputer c) {
+            return 1;
+        }
+
+        @Override
+        public void start(SlaveComputer c) {
+            c.connect(false);
+        }
+
+        @Override
+        public void taskAccepted(Executor executor, Queue.Task task) {
+            ECSFargatePoolSlave node = getNode(executor);
+            if (node != null) {
+                ECSFargatePool.assigned(node);
+            }
+        }
+
+        @Override
+        public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+            done(executor);
+        }
+
+        @Override
+        public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+            done(executor);
+        }
+
+        private void done(Executor executor) {
+            final ECSFargatePoolSlave node = getNode(executor);
+            if (node == null) {
+                return;
+            }
+            executor.getOwner().setAcceptingTasks(false);
+            node.builds++;
+            if (!ECSFargatePool.reuse(node)) {
+                ECSFargatePool.retire(node);
+            }
+        }
+
+        @CheckForNull
+        private static ECSFargatePoolSlave getNode(Executor executor) {
+            return executor.getOwner().getNode() instanceof ECSFargatePoolSlave ? (ECSFargatePoolSlave) executor.getOwner().getNode() : null;
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+            @Override
+            public String getDisplayName() {
+                return "Terminate pooled Fargate agent after its builds";
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.jenkinsci.fargate;
 
 import hudson.Extension;
 import hudson.model.AbstractProject;
+import hudson.model.Label;
 import hudson.model.Queue;
 import org.apache.commons.lang3.tuple.Pair;
 import org.jenkinsci.fargate.pipeline.ECSFargateNodeStepExecution;
@@ -9,6 +10,7 @@ import org.jenkinsci.fargate.property.TaskOverrideProperty;
 import org.jenkinsci.plugins.oneshot.OneShotProvisioner;
 import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.util.logging.Level;
@@ -29,13 +31,29 @@ public class ECSFargateProvisioner extends OneShotProvisioner<ECSFargateSlave> {
     public boolean usesOneShotExecutor(Queue.Item item) {
 
         LOG.log(Level.FINE,"Checking {0} to see if we can provision a fargate agent.", item.task);
-        ECSFargateConfig ecsFargateConfig = ECSFargateConfig.getEcsFargateConfig();
-        if( item.getAssignedLabel() != null &&
-                item.getAssignedLabel().isAtom() &&
-                ecsFargateConfig.getTemplate(item.getAssignedLabel().toString()) != null &&
+        Label label = item.getAssignedLabel();
+        if( label != null &&
+                label.isAtom() &&
                 !(item.task instanceof ExecutorStepExecution.PlaceholderTask)){
 
-            LOG.log(Level.FINE,"This project uses a fargate label {0}."+item.getAssignedLabel());
+            Pair<ECSCluster,ECSFargateTaskDefinition> template = ECSFargateConfig.getEcsFargateConfig().getTemplate(label.getName());
+            if(template == null){
+                return false;
+            }
+
+            // an idle pooled agent carries the label, let the queue hand the item to it
+            if(getDefinitionOverrides(item.task) == null){
+                if(ECSFargatePool.reserve(template.getValue(), item.getId())){
+                    LOG.log(Level.FINE,"Item {0} will run on a pooled fargate agent.", item.task);
+                    return false;
+                }
+                if(ECSFargatePool.provisionFor(template.getValue(), item.getId())){
+                    LOG.log(Level.FINE,"Item {0} will run on a reusable fargate agent.", item.task);
+                    return false;
+                }
+            }
+
+            LOG.log(Level.FINE,"This project uses a fargate label {0}.", label);
             return true;
         }
 
@@ -51,9 +69,16 @@ public class ECSFargateProvisioner extends OneShotProvisioner<ECSFargateSlave> {
     @Override
     public ECSFargateSlave prepareExecutorFor(Queue.BuildableItem buildableItem) throws Exception {
 
-        ECSFargateConfig ecsFargateConfig = ECSFargateConfig.getEcsFargateConfig();
-
-        Pair<ECSCluster,ECSFargateTaskDefinition> taskDefinition = ecsFargateConfig.getTemplate(buildableItem.getAssignedLabel().toString());
+        String templateName = buildableItem.getAssignedLabel().toString();
+        // stick to the cluster the item was admitted on, the router only serves items admitted before the
+        // configuration dropped that cluster
+        String admittedCluster = AdmissionController.getAdmittedCluster(buildableItem.getId());
+        Pair<ECSCluster,ECSFargateTaskDefinition> taskDefinition = admittedCluster != null
+                ? ECSFargateConfig.getEcsFargateConfig().getTemplate(templateName, admittedCluster)
+                : null;
+        if(taskDefinition == null) {
+            taskDefinition = ClusterRouter.route(templateName);
+        }
         if(taskDefinition == null) {
             throw new RuntimeException("Unable to find template for "+buildableItem.getAssignedLabel().toString());
         }
@@ -72,7 +97,21 @@ public class ECSFargateProvisioner extends OneShotProvisioner<ECSFargateSlave> {
 
 
 
-    private ECSFargateTaskOverrideAction getDefinitionOverrides(Queue.Task task){
+    /**
+     * @return the overrides configured for the task, or else the size recommended for it when its template applies
+     * recommendations.
+     */
+    @CheckForNull
+    static ECSFargateTaskOverrideAction getDefinitionOverrides(Queue.Task task){
+        ECSFargateTaskOverrideAction overrides = getConfiguredOverrides(task);
+        if(overrides == null && UsageHistory.ENABLED){
+            overrides = UsageHistory.get().getRecommendedOverrides(task);
+        }
+        return overrides;
+    }
+
+    @CheckForNull
+    private static ECSFargateTaskOverrideAction getConfiguredOverrides(Queue.Task task){
         if(task instanceof AbstractProject){
             AbstractProject abstractProject = (AbstractProject)task;
             TaskOverrideProperty taskOverrideProperty = (TaskOverrideProperty)abstractProject.getProperty(TaskOverrideProperty.class);
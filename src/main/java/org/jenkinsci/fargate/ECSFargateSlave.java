@@ -7,6 +7,7 @@ import hudson.Proc;
 import hudson.model.*;
 import hudson.remoting.Channel;
 import hudson.slaves.*;
+import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.oneshot.DeadComputer;
 import org.jenkinsci.plugins.oneshot.OneShotComputer;
 import org.jenkinsci.plugins.oneshot.OneShotSlave;
@@ -22,7 +23,7 @@ import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ECSFargateSlave extends OneShotSlave{
+public class ECSFargateSlave extends OneShotSlave implements FargateAgent {
 
     private String taskArn;
     private String templateLabel;
@@ -30,7 +31,9 @@ public class ECSFargateSlave extends OneShotSlave{
     private final String clusterArn;
     private final String credentialId;
     private final String taskName;
+    private final String jobName;
     private final ECSFargateTaskOverrideAction overrideAction;
+    private final long queueItemId;
     private static Logger LOG = Logger.getLogger(ECSFargateSlave.class.getName());
 
 
@@ -41,6 +44,8 @@ public class ECSFargateSlave extends OneShotSlave{
         this.clusterArn = ecsCluster.getClusterArn();
         this.credentialId = ecsCluster.getCredentialId();
         this.taskName = queueItem.task.getFullDisplayName();
+        this.jobName = UsageHistory.getJobName(queueItem.task);
+        this.queueItemId = queueItem.getId();
         this.overrideAction = ecsFargateTaskOverrideAction == null ? new ECSFargateTaskOverrideAction("","","",""): ecsFargateTaskOverrideAction;
     }
 
@@ -49,7 +54,7 @@ public class ECSFargateSlave extends OneShotSlave{
     }
 
     ECSService getECSService(){
-        return new ECSService(credentialId,region);
+        return ECSService.get(credentialId,region);
     }
 
     public String getClusterArn() {
@@ -60,6 +65,20 @@ public class ECSFargateSlave extends OneShotSlave{
         return taskName;
     }
 
+    /**
+     * @return the full name of the job this agent was provisioned for.
+     */
+    public String getJobName() {
+        return jobName;
+    }
+
+    /**
+     * @return the id of the queue item this agent was provisioned for.
+     */
+    public long getQueueItemId() {
+        return queueItemId;
+    }
+
     public String getTemplateLabel() {
         return templateLabel;
     }
@@ -72,6 +91,30 @@ public class ECSFargateSlave extends OneShotSlave{
         this.taskArn = taskArn;
     }
 
+    @Override
+    public boolean isConnected() {
+        SlaveComputer computer = getComputer();
+        return computer instanceof ECSFargateComputer && !((ECSFargateComputer) computer).isActuallyOffline();
+    }
+
+    @Override
+    public boolean isAbandoned() {
+        SlaveComputer computer = getComputer();
+        return computer instanceof ECSFargateComputer && ((ECSFargateComputer) computer).isDead();
+    }
+
+    @Override
+    public void discard(TaskListener listener) throws Exception {
+        SlaveComputer computer = getComputer();
+        if (computer instanceof ECSFargateComputer) {
+            // terminating the computer stops any task that was assigned to it
+            ((ECSFargateComputer) computer).terminate(listener);
+        } else if (taskArn != null) {
+            getECSService().deleteTask(taskArn, clusterArn);
+        }
+        Jenkins.getInstance().removeNode(this);
+    }
+
 
     @Override
     public Launcher createLauncher(TaskListener listener) {
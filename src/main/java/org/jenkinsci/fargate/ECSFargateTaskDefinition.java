@@ -24,6 +24,9 @@ import java.util.logging.Logger;
 public class ECSFargateTaskDefinition extends AbstractDescribableImpl<ECSFargateTaskDefinition> {
 
     private static Logger LOG = Logger.getLogger(ECSFargateTaskDefinition.class.getName());
+
+    static final String REUSE_CLEAN = "clean";
+    static final String REUSE_KEEP = "keep";
     private String name;
     private String executionRoleArn;
     private String taskRoleArn;
@@ -45,6 +48,35 @@ public class ECSFargateTaskDefinition extends AbstractDescribableImpl<ECSFargate
     private String subnets;
     private String securityGroups;
     private boolean autoAssignIp;
+    /**
+     * Number of connected, unassigned agents kept ready for this template. Zero disables the warm pool.
+     */
+    private int poolMinIdle;
+    private int poolMaxIdle;
+    private int poolIdleMinutes;
+    /**
+     * Capacity provider strategy, tasks are started with the FARGATE launch type while the spot weight is zero.
+     */
+    private int spotWeight;
+    private int onDemandWeight;
+    private int onDemandBase;
+    /**
+     * Whether builds without task overrides get the size recommended by the {@link UsageHistory}.
+     */
+    private boolean applyRecommendedSize;
+    /**
+     * Workspace snapshots, see {@link WorkspaceSnapshots}. Disabled while the bucket or the paths are empty.
+     */
+    private String snapshotBucket;
+    private String snapshotEndpoint;
+    private String snapshotPaths;
+    /**
+     * Agents run up to this many builds, staying connected in between for the reuse idle time. One build, the
+     * default, keeps agents one-shot.
+     */
+    private int reuseMaxBuilds;
+    private int reuseIdleMinutes;
+    private String reuseWorkspace;
 
     @DataBoundConstructor
     public ECSFargateTaskDefinition(String name,String taskRoleArn, String executionRoleArn, String memory,String cpu, String image, String remoteFSRoot, String logDriver, List<LogDriverOption> logDriverOptions, String jvmArgs, List<MountPointEntry> mountPoints, List<EnvironmentEntry> environments, List<ExtraHostEntry> extraHosts, String entryPoint) {
@@ -73,6 +105,160 @@ public class ECSFargateTaskDefinition extends AbstractDescribableImpl<ECSFargate
         this.autoAssignIp = autoAssignIp;
     }
 
+    public int getPoolMinIdle() {
+        return poolMinIdle;
+    }
+
+    @DataBoundSetter
+    public void setPoolMinIdle(int poolMinIdle) {
+        this.poolMinIdle = Math.max(0, poolMinIdle);
+    }
+
+    /**
+     * @return the maximum number of idle pooled agents, never less than {@link #getPoolMinIdle()}.
+     */
+    public int getPoolMaxIdle() {
+        return Math.max(poolMaxIdle, poolMinIdle);
+    }
+
+    @DataBoundSetter
+    public void setPoolMaxIdle(int poolMaxIdle) {
+        this.poolMaxIdle = Math.max(0, poolMaxIdle);
+    }
+
+    /**
+     * @return how long an idle pooled agent above the minimum is kept before being terminated.
+     */
+    public int getPoolIdleMinutes() {
+        return poolIdleMinutes <= 0 ? 10 : poolIdleMinutes;
+    }
+
+    @DataBoundSetter
+    public void setPoolIdleMinutes(int poolIdleMinutes) {
+        this.poolIdleMinutes = poolIdleMinutes;
+    }
+
+    public boolean isPooled() {
+        return getPoolMaxIdle() > 0;
+    }
+
+    public int getSpotWeight() {
+        return spotWeight;
+    }
+
+    @DataBoundSetter
+    public void setSpotWeight(int spotWeight) {
+        this.spotWeight = Math.max(0, spotWeight);
+    }
+
+    public int getOnDemandWeight() {
+        return onDemandWeight;
+    }
+
+    @DataBoundSetter
+    public void setOnDemandWeight(int onDemandWeight) {
+        this.onDemandWeight = Math.max(0, onDemandWeight);
+    }
+
+    public int getOnDemandBase() {
+        return onDemandBase;
+    }
+
+    @DataBoundSetter
+    public void setOnDemandBase(int onDemandBase) {
+        this.onDemandBase = Math.max(0, onDemandBase);
+    }
+
+    public boolean isApplyRecommendedSize() {
+        return applyRecommendedSize;
+    }
+
+    @DataBoundSetter
+    public void setApplyRecommendedSize(boolean applyRecommendedSize) {
+        this.applyRecommendedSize = applyRecommendedSize;
+    }
+
+    public String getSnapshotBucket() {
+        return snapshotBucket;
+    }
+
+    @DataBoundSetter
+    public void setSnapshotBucket(String snapshotBucket) {
+        this.snapshotBucket = StringUtils.trimToNull(snapshotBucket);
+    }
+
+    public String getSnapshotEndpoint() {
+        return snapshotEndpoint;
+    }
+
+    @DataBoundSetter
+    public void setSnapshotEndpoint(String snapshotEndpoint) {
+        this.snapshotEndpoint = StringUtils.trimToNull(snapshotEndpoint);
+    }
+
+    public String getSnapshotPaths() {
+        return snapshotPaths;
+    }
+
+    @DataBoundSetter
+    public void setSnapshotPaths(String snapshotPaths) {
+        this.snapshotPaths = StringUtils.trimToNull(snapshotPaths);
+    }
+
+    public int getReuseMaxBuilds() {
+        return Math.max(1, reuseMaxBuilds);
+    }
+
+    @DataBoundSetter
+    public void setReuseMaxBuilds(int reuseMaxBuilds) {
+        this.reuseMaxBuilds = Math.max(0, reuseMaxBuilds);
+    }
+
+    /**
+     * @return how long a reusable agent waits for its next build before being terminated.
+     */
+    public int getReuseIdleMinutes() {
+        return reuseIdleMinutes <= 0 ? 5 : reuseIdleMinutes;
+    }
+
+    @DataBoundSetter
+    public void setReuseIdleMinutes(int reuseIdleMinutes) {
+        this.reuseIdleMinutes = reuseIdleMinutes;
+    }
+
+    /**
+     * @return {@link #REUSE_CLEAN} or {@link #REUSE_KEEP}, what happens to the workspaces between builds.
+     */
+    public String getReuseWorkspace() {
+        return REUSE_KEEP.equals(reuseWorkspace) ? REUSE_KEEP : REUSE_CLEAN;
+    }
+
+    @DataBoundSetter
+    public void setReuseWorkspace(String reuseWorkspace) {
+        this.reuseWorkspace = reuseWorkspace;
+    }
+
+    /**
+     * @return true when agents of this template run more than one build.
+     */
+    public boolean isReusable() {
+        return getReuseMaxBuilds() > 1;
+    }
+
+    /**
+     * @return true when workspaces of this template are seeded from and saved to snapshots.
+     */
+    public boolean isSnapshots() {
+        return snapshotBucket != null && snapshotPaths != null;
+    }
+
+    /**
+     * @return true when tasks of this template are started through the FARGATE_SPOT and FARGATE capacity providers.
+     */
+    public boolean isSpot() {
+        return spotWeight > 0;
+    }
+
     public String getTaskRoleArn() {
         return taskRoleArn;
     }
@@ -313,6 +499,13 @@ public class ECSFargateTaskDefinition extends AbstractDescribableImpl<ECSFargate
 
         }*/
 
+        public ListBoxModel doFillReuseWorkspaceItems(){
+            ListBoxModel items = new ListBoxModel();
+            items.add("Delete workspaces between builds", REUSE_CLEAN);
+            items.add("Keep workspaces between builds", REUSE_KEEP);
+            return items;
+        }
+
         public ListBoxModel doFillMemoryItems(){
 
             ListBoxModel listBoxModel = new ListBoxModel();
@@ -420,7 +613,7 @@ public class ECSFargateTaskDefinition extends AbstractDescribableImpl<ECSFargate
         if (null == logDriverOptions || logDriverOptions.isEmpty()) {
             return null;
         }
-        Map<String,String> options = new HashMap<String,String>();
+        Map<String,String> options = new HashMap<String,String>(logDriverOptions.size() * 2);
         for (LogDriverOption logDriverOption : logDriverOptions) {
             String name = logDriverOption.name;
             String value = logDriverOption.value;
@@ -444,7 +637,7 @@ public class ECSFargateTaskDefinition extends AbstractDescribableImpl<ECSFargate
         if (null == environments || environments.isEmpty()) {
             return null;
         }
-        Collection<KeyValuePair> items = new ArrayList<KeyValuePair>();
+        Collection<KeyValuePair> items = new ArrayList<KeyValuePair>(environments.size());
         for (EnvironmentEntry environment : environments) {
             String name = environment.name;
             String value = environment.value;
@@ -460,7 +653,7 @@ public class ECSFargateTaskDefinition extends AbstractDescribableImpl<ECSFargate
         if (null == extraHosts || extraHosts.isEmpty()) {
             return null;
         }
-        Collection<HostEntry> items = new ArrayList<HostEntry>();
+        Collection<HostEntry> items = new ArrayList<HostEntry>(extraHosts.size());
         for (ExtraHostEntry extrahost : extraHosts) {
             String ipAddress = extrahost.ipAddress;
             String hostname = extrahost.hostname;
@@ -485,6 +678,11 @@ public class ECSFargateTaskDefinition extends AbstractDescribableImpl<ECSFargate
                 HostVolumeProperties hostVolume = new HostVolumeProperties();
                 if (StringUtils.isEmpty(name))
                     continue;
+                if (mount.isEfs()) {
+                    vols.add(new Volume().withName(name)
+                            .withEfsVolumeConfiguration(mount.getEfsVolumeConfiguration()));
+                    continue;
+                }
                 if (! StringUtils.isEmpty(sourcePath))
                     hostVolume.setSourcePath(sourcePath);
                 vols.add(new Volume().withName(name)
@@ -497,7 +695,7 @@ public class ECSFargateTaskDefinition extends AbstractDescribableImpl<ECSFargate
     Collection<MountPoint> getMountPointEntries() {
         if (null == mountPoints || mountPoints.isEmpty())
             return null;
-        Collection<MountPoint> mounts = new ArrayList<MountPoint>();
+        Collection<MountPoint> mounts = new ArrayList<MountPoint>(mountPoints.size());
         for (MountPointEntry mount : mountPoints) {
             String src = mount.name;
             String path = mount.containerPath;
@@ -557,9 +755,20 @@ public class ECSFargateTaskDefinition extends AbstractDescribableImpl<ECSFargate
         }
     }
 
+    /**
+     * A volume mounted into the agent container. Host volumes live as long as the task; EFS volumes, used when a file
+     * system id is set, are shared by every agent and suit dependency caches. A per job EFS volume gives each job its
+     * own writable subdirectory of the container path, advertised to builds by {@link #getEnvironmentVariable()}.
+     */
     public static class MountPointEntry extends AbstractDescribableImpl<MountPointEntry> {
         public String name, sourcePath, containerPath;
         public Boolean readOnly;
+        private String fileSystemId;
+        private String accessPointId;
+        private String rootDirectory;
+        private boolean transitEncryption;
+        private boolean iamAuthorization;
+        private boolean perJob;
 
         @DataBoundConstructor
         public MountPointEntry(String name,
@@ -572,12 +781,105 @@ public class ECSFargateTaskDefinition extends AbstractDescribableImpl<ECSFargate
             this.readOnly = readOnly;
         }
 
+        public String getFileSystemId() {
+            return fileSystemId;
+        }
+
+        @DataBoundSetter
+        public void setFileSystemId(String fileSystemId) {
+            this.fileSystemId = StringUtils.trimToNull(fileSystemId);
+        }
+
+        public String getAccessPointId() {
+            return accessPointId;
+        }
+
+        @DataBoundSetter
+        public void setAccessPointId(String accessPointId) {
+            this.accessPointId = StringUtils.trimToNull(accessPointId);
+        }
+
+        public String getRootDirectory() {
+            return rootDirectory;
+        }
+
+        @DataBoundSetter
+        public void setRootDirectory(String rootDirectory) {
+            this.rootDirectory = StringUtils.trimToNull(rootDirectory);
+        }
+
+        public boolean isTransitEncryption() {
+            return transitEncryption;
+        }
+
+        @DataBoundSetter
+        public void setTransitEncryption(boolean transitEncryption) {
+            this.transitEncryption = transitEncryption;
+        }
+
+        public boolean isIamAuthorization() {
+            return iamAuthorization;
+        }
+
+        @DataBoundSetter
+        public void setIamAuthorization(boolean iamAuthorization) {
+            this.iamAuthorization = iamAuthorization;
+        }
+
+        public boolean isPerJob() {
+            return perJob;
+        }
+
+        @DataBoundSetter
+        public void setPerJob(boolean perJob) {
+            this.perJob = perJob;
+        }
+
+        public boolean isEfs() {
+            return fileSystemId != null;
+        }
+
+        /**
+         * ECS requires transit encryption with access points and IAM authorization, and ignores the root directory
+         * of an access point.
+         */
+        EFSVolumeConfiguration getEfsVolumeConfiguration() {
+            boolean authorized = accessPointId != null || iamAuthorization;
+            EFSVolumeConfiguration efs = new EFSVolumeConfiguration()
+                    .withFileSystemId(fileSystemId)
+                    .withTransitEncryption(transitEncryption || authorized ? EFSTransitEncryption.ENABLED : EFSTransitEncryption.DISABLED);
+            if (accessPointId == null && rootDirectory != null) {
+                efs.setRootDirectory(rootDirectory);
+            }
+            if (authorized) {
+                efs.setAuthorizationConfig(new EFSAuthorizationConfig()
+                        .withAccessPointId(accessPointId)
+                        .withIam(iamAuthorization ? EFSAuthorizationConfigIAM.ENABLED : EFSAuthorizationConfigIAM.DISABLED));
+            }
+            return efs;
+        }
+
+        /**
+         * @return the variable holding the subdirectory of the current job, for per job volumes.
+         */
+        public String getEnvironmentVariable() {
+            return "FARGATE_CACHE_" + StringUtils.upperCase(name).replaceAll("[^A-Z0-9]", "_");
+        }
+
+        /**
+         * @return the subdirectory of the container path a job writes to, for per job volumes.
+         */
+        String getJobDirectory(String jobName) {
+            return StringUtils.removeEnd(containerPath, "/") + '/' + jobName.replaceAll("[^A-Za-z0-9._-]", "_");
+        }
+
         @Override
         public String toString() {
             return "MountPointEntry{name:" + name +
                     ", sourcePath:" + sourcePath +
                     ", containerPath:" + containerPath +
-                    ", readOnly:" + readOnly + "}";
+                    ", readOnly:" + readOnly +
+                    (isEfs() ? ", efs:" + fileSystemId + ", accessPoint:" + accessPointId + ", perJob:" + perJob : "") + "}";
         }
 
         @Extension
@@ -586,6 +888,13 @@ public class ECSFargateTaskDefinition extends AbstractDescribableImpl<ECSFargate
             public String getDisplayName() {
                 return "MountPointEntry";
             }
+
+            public FormValidation doCheckPerJob(@QueryParameter boolean perJob, @QueryParameter boolean readOnly) {
+                if (perJob && readOnly) {
+                    return FormValidation.warning("Read only volumes do not get their job subdirectories created, they must already exist");
+                }
+                return FormValidation.ok();
+            }
         }
     }
 }
@@ -3,31 +3,33 @@ package org.jenkinsci.fargate;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
-import com.amazonaws.Protocol;
 import com.amazonaws.services.ecs.model.*;
 import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
 
-import com.amazonaws.ClientConfiguration;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.ecs.AmazonECSClient;
-import com.cloudbees.jenkins.plugins.awscredentials.AWSCredentialsHelper;
-import com.cloudbees.jenkins.plugins.awscredentials.AmazonWebServicesCredentials;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.ecs.AmazonECS;
+import com.amazonaws.services.ecs.AmazonECSAsync;
 
 import hudson.AbortException;
-import hudson.ProxyConfiguration;
-import jenkins.model.Jenkins;
 
 /**
  * Encapsulates interactions with Amazon ECS.
@@ -42,37 +44,47 @@ class ECSService {
 
     private String regionName;
 
+    /**
+     * Maximum number of tasks accepted by a single DescribeTasks call.
+     */
+    static final int DESCRIBE_TASKS_BATCH = 100;
+
+    /**
+     * Stripped from cluster names in family names. This is the ASCII whitespace of <code>\s</code>, not
+     * {@link Character#isWhitespace}: changing what is stripped renames families and orphans the registered ones.
+     */
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final SubnetScheduler subnetScheduler;
+
+    private final ConcurrentMap<String, TaskStateTracker> trackers = new ConcurrentHashMap<String, TaskStateTracker>();
+
+    private static final ConcurrentMap<String, ECSService> SERVICES = new ConcurrentHashMap<String, ECSService>();
+
     public ECSService(String credentialsId, String regionName) {
         this.credentialsId = credentialsId;
         this.regionName = regionName;
+        this.subnetScheduler = new SubnetScheduler(new EC2Service(credentialsId, regionName));
     }
 
-    AmazonECSClient getAmazonECSClient() {
-        final AmazonECSClient client;
-
-        ProxyConfiguration proxy = Jenkins.getInstance().proxy;
-        ClientConfiguration clientConfiguration = new ClientConfiguration();
-        if(proxy != null) {
-            clientConfiguration.setProxyHost(proxy.name);
-            clientConfiguration.setProxyPort(proxy.port);
-            clientConfiguration.setProxyUsername(proxy.getUserName());
-            clientConfiguration.setProxyPassword(proxy.getPassword());
+    /**
+     * @return the shared service for the given credentials and region.
+     */
+    static ECSService get(String credentialsId, String regionName) {
+        String key = StringUtils.defaultString(credentialsId) + '|' + StringUtils.defaultString(regionName);
+        ECSService service = SERVICES.get(key);
+        if (service == null) {
+            service = new ECSService(credentialsId, regionName);
+            ECSService existing = SERVICES.putIfAbsent(key, service);
+            if (existing != null) {
+                service = existing;
+            }
         }
+        return service;
+    }
 
-        clientConfiguration.setProtocol(Protocol.HTTPS);
-
-        AmazonWebServicesCredentials credentials = getCredentials(credentialsId);
-        if (credentials == null) {
-            // no credentials provided, rely on com.amazonaws.auth.DefaultAWSCredentialsProviderChain
-            // to use IAM Role define at the EC2 instance level ...
-            client = new AmazonECSClient(clientConfiguration);
-        } else {
-
-            client = new AmazonECSClient(credentials, clientConfiguration);
-        }
-        client.setRegion(getRegion(regionName));
-        LOGGER.log(Level.FINE, "Selected Region: {0}", regionName);
-        return client;
+    AmazonECSAsync getAmazonECSClient() {
+        return AWSClientRegistry.get().getEcsClient(credentialsId, regionName);
     }
 
     Region getRegion(String regionName) {
@@ -83,23 +95,61 @@ class ECSService {
         }
     }
 
-    @CheckForNull
-    private AmazonWebServicesCredentials getCredentials(@Nullable String credentialId) {
-        return AWSCredentialsHelper.getCredentials(credentialId, Jenkins.getActiveInstance());
+    /**
+     * Queues the task for termination. The task is stopped and its STOPPED state confirmed in the background by
+     * the {@link TaskTerminationQueue}.
+     */
+    void deleteTask(String taskArn, String clusterArn) {
+        LOGGER.log(Level.INFO, "Delete ECS Slave task: {0}", taskArn);
+        TaskTerminationQueue.get().enqueue(credentialsId, regionName, clusterArn, taskArn);
+    }
+
+    void stopTask(String taskArn, String clusterArn) {
+        getAmazonECSClient().stopTask(new StopTaskRequest().withTask(taskArn).withCluster(clusterArn));
     }
 
-    void deleteTask(String taskArn, String clusterArn) {
-        final AmazonECSClient client = getAmazonECSClient();
+    /**
+     * Lists every cluster of the region, following pagination. Used to fill the {@link AWSMetadataCache}.
+     */
+    List<String> listClusterArns() {
+        AmazonECS client = getAmazonECSClient();
+        List<String> arns = new ArrayList<String>();
+        ListClustersRequest request = new ListClustersRequest();
+        do {
+            ListClustersResult result = client.listClusters(request);
+            arns.addAll(result.getClusterArns());
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+        return Collections.unmodifiableList(arns);
+    }
 
-        LOGGER.log(Level.INFO, "Delete ECS Slave task: {0}", taskArn);
-        try {
-            client.stopTask(new StopTaskRequest().withTask(taskArn).withCluster(clusterArn));
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Couldn't stop task arn " + taskArn + " caught exception: " + e.getMessage(), e);
+    SubnetScheduler getSubnetScheduler() {
+        return subnetScheduler;
+    }
+
+    /**
+     * @return the tracker polling the state of the tasks started in the given cluster.
+     */
+    TaskStateTracker getTaskStateTracker(String clusterArn) {
+        TaskStateTracker tracker = trackers.get(clusterArn);
+        if (tracker == null) {
+            tracker = new TaskStateTracker(this, clusterArn);
+            TaskStateTracker existing = trackers.putIfAbsent(clusterArn, tracker);
+            if (existing != null) {
+                tracker = existing;
+            }
         }
+        return tracker;
     }
 
-    ContainerDefinition populateContainerDefintion(final ECSFargateTaskDefinition definition, String familyName, int memory){
+    /**
+     * Describes the given tasks, at most {@link #DESCRIBE_TASKS_BATCH} at a time.
+     */
+    DescribeTasksResult describeTasks(String clusterArn, Collection<String> taskArns) {
+        return getAmazonECSClient().describeTasks(new DescribeTasksRequest().withCluster(clusterArn).withTasks(taskArns));
+    }
+
+    static ContainerDefinition populateContainerDefintion(final ECSFargateTaskDefinition definition, String familyName, int memory){
 
         ContainerDefinition def = new ContainerDefinition()
                 .withName(familyName)
@@ -131,90 +181,104 @@ class ECSService {
     }
 
     /**
+     * Compares the fingerprint tag of a registered task definition with the desired fingerprint.
      *
-     *
-     * @param describeTaskDefinition - Result returned from Amazon
-     * @param def - Current container def
-     * @param fargateTaskDefinition - Current fargate task defintion
-     * @return
+     * @param describeTaskDefinition - Result returned from Amazon, including tags
+     * @param fingerprint - Fingerprint of the current template and overrides, see {@link TaskDefinitionFingerprint}
+     * @return true if the registered task definition was created from the same content
      */
-    boolean matchesSavedDefinition(DescribeTaskDefinitionResult describeTaskDefinition, ContainerDefinition def, ECSFargateTaskDefinition fargateTaskDefinition){
+    static boolean matchesSavedDefinition(DescribeTaskDefinitionResult describeTaskDefinition, String fingerprint){
 
-        if(describeTaskDefinition == null){
+        if(describeTaskDefinition == null || describeTaskDefinition.getTags() == null){
             return false;
         }
 
-
-        if(def.equals(describeTaskDefinition.getTaskDefinition().getContainerDefinitions().get(0))){
-            LOGGER.log(Level.FINE, "Match on container defintion: template={0}; last={1}", new Object[] {def, describeTaskDefinition.getTaskDefinition().getContainerDefinitions().get(0)});
-        }else{
-            LOGGER.log(Level.FINE,"Task definition container: "+describeTaskDefinition.getTaskDefinition().getContainerDefinitions().get(0));
-            LOGGER.log(Level.FINE,"Cached container def: "+def);
-            return false;
+        for (Tag tag : describeTaskDefinition.getTags()) {
+            if (TaskDefinitionFingerprint.TAG_KEY.equals(tag.getKey())) {
+                if (LOGGER.isLoggable(Level.FINE))
+                    LOGGER.log(Level.FINE, "Fingerprint of {0}: registered={1}; template={2}", new Object[] {describeTaskDefinition.getTaskDefinition().getTaskDefinitionArn(), tag.getValue(), fingerprint});
+                return fingerprint.equals(tag.getValue());
+            }
         }
 
-         if((fargateTaskDefinition.getVolumeEntries() == null && describeTaskDefinition.getTaskDefinition().getVolumes().isEmpty()) || (ObjectUtils.equals(fargateTaskDefinition.getVolumeEntries(), describeTaskDefinition.getTaskDefinition().getVolumes()))){
-             LOGGER.log(Level.FINE, "Match on volumes: template={0}; last={1}", new Object[] {fargateTaskDefinition.getVolumeEntries(), describeTaskDefinition.getTaskDefinition().getVolumes()});
-         }else{
-            return false;
-         }
+        return false;
+    }
 
-        TaskDefinition taskDefinition = describeTaskDefinition.getTaskDefinition();
-        if(taskDefinition.getExecutionRoleArn().equals(fargateTaskDefinition.getExecutionRoleArn())){
-            LOGGER.log(Level.FINE, "Match on task cpy, memory and execution role: template={0}, taskDefinition={1}", new Object[] {fargateTaskDefinition,taskDefinition});
 
-        }else{
-            return false;
+    /**
+     * Returns the arn of the task definition for this template and overrides. Arns are served from the
+     * {@link TaskDefinitionCache} when possible, otherwise see {@link #findOrRegister}.
+     */
+    String registerTemplate(final ECSCluster cluster, final ECSFargateTaskDefinition definition, final ECSFargateTaskOverrideAction overrideAction) {
+        TaskDefinitionCache cache = TaskDefinitionCache.get();
+        String cachedArn = cache.lookup(cluster.getName(), definition, overrideAction);
+        if (cachedArn != null) {
+            LOGGER.log(Level.FINE, "Using cached task definition {0}", cachedArn);
+            return cachedArn;
         }
 
-
-        return true;
+        final String familyName = fullQualifiedTemplateName(cluster.getName(), definition, overrideAction);
+        final String fingerprint = TaskDefinitionFingerprint.of(familyName, definition, overrideAction);
+        return cache.getOrRegister(cluster.getName(), definition, overrideAction,
+                TaskDefinitionCache.digest(credentialsId, regionName, fingerprint),
+                familyName,
+                new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return findOrRegister(cluster, definition, overrideAction, fingerprint);
+                    }
+                });
     }
 
-
     /**
-     * Looks whether the latest task definition matches the desired one. If yes, returns the ARN of the existing one.
-     * If no, register a new task definition with desired parameters and return the new ARN.
+     * Forgets a cached task definition, so the next launch resolves it again.
      */
-    String registerTemplate(final ECSCluster cluster, final ECSFargateTaskDefinition definition, ECSFargateTaskOverrideAction overrideAction) {
-        final AmazonECSClient client = getAmazonECSClient();
+    void invalidateTaskDefinition(String taskDefinitionArn) {
+        TaskDefinitionCache.get().invalidate(taskDefinitionArn);
+    }
 
+    RegisterTaskDefinitionRequest createRegisterTaskDefinitionRequest(final ECSCluster cluster, final ECSFargateTaskDefinition definition, ECSFargateTaskOverrideAction overrideAction, String fingerprint) {
         int memory = (int)(Double.parseDouble(StringUtils.isEmpty(overrideAction.getMemory()) ? definition.getMemory() : overrideAction.getMemory())*1024);
         int cpu = (int)(Double.parseDouble(StringUtils.isEmpty(overrideAction.getCpu()) ? definition.getCpu() : overrideAction.getCpu())*1024);
         String familyName = fullQualifiedTemplateName(cluster.getName(), definition, overrideAction);
         final ContainerDefinition def = populateContainerDefintion(definition,familyName,memory);
 
+        return new RegisterTaskDefinitionRequest()
+                .withFamily(familyName)
+                .withRequiresCompatibilities(Compatibility.FARGATE)
+                .withExecutionRoleArn(definition.getExecutionRoleArn())
+                .withTaskRoleArn(StringUtils.isEmpty(overrideAction.getTaskRoleArn()) ? definition.getTaskRoleArn() : overrideAction.getTaskRoleArn())
+                .withNetworkMode(NetworkMode.Awsvpc)
+                .withCpu(Integer.toString(cpu))
+                .withMemory(Integer.toString(memory))
+                .withVolumes(definition.getVolumeEntries())
+                .withContainerDefinitions(def)
+                .withTags(new Tag().withKey(TaskDefinitionFingerprint.TAG_KEY).withValue(fingerprint));
+    }
 
-        String lastToken = null;
-
-        ListTaskDefinitionsResult listTaskDefinitions = client.listTaskDefinitions(new ListTaskDefinitionsRequest()
-                    .withFamilyPrefix(familyName)
-                    .withMaxResults(1)
-                    .withSort(SortOrder.DESC)
-                    .withNextToken(lastToken));
-
-        LOGGER.log(Level.INFO,"Task definition {0}",listTaskDefinitions.getTaskDefinitionArns());
+    /**
+     * Looks whether the latest revision of the family carries the desired fingerprint. If yes, returns the ARN of the
+     * existing one. If no, register a new task definition with desired parameters and return the new ARN.
+     */
+    private String findOrRegister(final ECSCluster cluster, final ECSFargateTaskDefinition definition, ECSFargateTaskOverrideAction overrideAction, String fingerprint) {
+        final AmazonECS client = getAmazonECSClient();
+        String familyName = fullQualifiedTemplateName(cluster.getName(), definition, overrideAction);
 
         DescribeTaskDefinitionResult describeTaskDefinition = null;
-
-        if(listTaskDefinitions.getTaskDefinitionArns().size() > 0){
-            describeTaskDefinition = client.describeTaskDefinition((new DescribeTaskDefinitionRequest().withTaskDefinition(listTaskDefinitions.getTaskDefinitionArns().get(0))));
+        try {
+            // a bare family name resolves to its latest ACTIVE revision
+            describeTaskDefinition = client.describeTaskDefinition(new DescribeTaskDefinitionRequest()
+                    .withTaskDefinition(familyName)
+                    .withInclude(TaskDefinitionField.TAGS));
+        } catch (ClientException e) {
+            LOGGER.log(Level.FINE, "No active task definition for family {0}: {1}", new Object[]{familyName, e.getMessage()});
         }
 
-        if(matchesSavedDefinition(describeTaskDefinition,def,definition)) {
+        if(matchesSavedDefinition(describeTaskDefinition,fingerprint)) {
             LOGGER.log(Level.FINE, "Task Definition already exists: {0}", new Object[]{describeTaskDefinition.getTaskDefinition().getTaskDefinitionArn()});
             return describeTaskDefinition.getTaskDefinition().getTaskDefinitionArn();
         } else {
-            final RegisterTaskDefinitionRequest request = new RegisterTaskDefinitionRequest()
-                    .withFamily(familyName)
-                    .withRequiresCompatibilities(Compatibility.FARGATE)
-                    .withExecutionRoleArn(definition.getExecutionRoleArn())
-                    .withNetworkMode(NetworkMode.Awsvpc)
-                    .withCpu(Integer.toString(cpu))
-                    .withMemory(Integer.toString(memory))
-                    .withVolumes(definition.getVolumeEntries())
-                    .withContainerDefinitions(def);
-
+            final RegisterTaskDefinitionRequest request = createRegisterTaskDefinitionRequest(cluster, definition, overrideAction, fingerprint);
             final RegisterTaskDefinitionResult result = client.registerTaskDefinition(request);
             String taskDefinitionArn = result.getTaskDefinition().getTaskDefinitionArn();
             LOGGER.log(Level.FINE, "Created Task Definition {0}: {1}", new Object[]{taskDefinitionArn, request});
@@ -223,14 +287,25 @@ class ECSService {
         }
     }
 
-    private String fullQualifiedTemplateName(final String cluster, final ECSFargateTaskDefinition definition,ECSFargateTaskOverrideAction ecsFargateTaskOverrideAction) {
+    /**
+     * Called for every launch, so it avoids compiling regular expressions: {@link String#replaceAll} compiles its
+     * pattern on each call and {@link String#replace(CharSequence, CharSequence)} goes through one as well on Java 8.
+     */
+    static String fullQualifiedTemplateName(final String cluster, final ECSFargateTaskDefinition definition,ECSFargateTaskOverrideAction ecsFargateTaskOverrideAction) {
         String memory = StringUtils.isEmpty(ecsFargateTaskOverrideAction.getMemory()) ? definition.getMemory() : ecsFargateTaskOverrideAction.getMemory();
         String cpu = StringUtils.isEmpty(ecsFargateTaskOverrideAction.getCpu()) ? definition.getCpu() : ecsFargateTaskOverrideAction.getCpu();
 
-        return cluster.replaceAll("\\s+","") + '-' + definition.getName() + "-"+cpu.replace(".","")+"-"+memory.replace(".","");
+        return familyPrefix(cluster) + definition.getName() + '-' + StringUtils.remove(cpu, '.') + '-' + StringUtils.remove(memory, '.');
+    }
+
+    /**
+     * @return the start of the family names of every template of the cluster.
+     */
+    static String familyPrefix(String cluster) {
+        return WHITESPACE.matcher(cluster).replaceAll("") + '-';
     }
 
-    private NetworkConfiguration getNetworkConfig(ECSFargateTaskDefinition template,ECSFargateTaskOverrideAction taskOverride){
+    private NetworkConfiguration getNetworkConfig(ECSFargateTaskDefinition template,ECSFargateTaskOverrideAction taskOverride, @Nullable String[] subnets){
 
         String[] securityGroups = null;
 
@@ -241,14 +316,25 @@ class ECSService {
         }
 
         return new NetworkConfiguration().withAwsvpcConfiguration(
-                    new AwsVpcConfiguration().withSubnets(template.getSubnets().split(","))
+                    new AwsVpcConfiguration().withSubnets(subnets != null ? subnets : template.getSubnets().split(","))
                                              .withAssignPublicIp(AssignPublicIp.ENABLED)
                                              .withSecurityGroups(securityGroups));
     }
 
-    String runEcsTask(final ECSFargateSlave slave, final ECSFargateTaskDefinition template, String clusterArn, String clusterName, Collection<String> command, String taskDefinitionArn, String taskName, ECSFargateTaskOverrideAction overrideAction) throws IOException, AbortException {
-        AmazonECSClient client = getAmazonECSClient();
+    /**
+     * Submits the RunTask call without blocking the calling thread. The handler receives a result holding the task or
+     * failures, use {@link #getStartedTaskArn} to extract the task arn from it.
+     *
+     * @param subnets the subnets the task may be placed in, or null to let ECS pick one of the template subnets.
+     * @param spot true to start the task with the capacity provider strategy of the template instead of on demand.
+     */
+    void runEcsTaskAsync(final FargateAgent slave, final ECSFargateTaskDefinition template, String clusterArn, String clusterName, Collection<String> command, String taskDefinitionArn, String taskName, ECSFargateTaskOverrideAction overrideAction, @Nullable String[] subnets, boolean spot, AsyncHandler<RunTaskRequest, RunTaskResult> handler) {
+        RunTaskRequest request = createRunTaskRequest(slave, template, clusterArn, clusterName, command, taskDefinitionArn, taskName, overrideAction, subnets, spot);
+        FargateMetrics.meter("runtask", "calls").mark();
+        getAmazonECSClient().runTaskAsync(request, handler);
+    }
 
+    private RunTaskRequest createRunTaskRequest(final FargateAgent slave, final ECSFargateTaskDefinition template, String clusterArn, String clusterName, Collection<String> command, String taskDefinitionArn, String taskName, ECSFargateTaskOverrideAction overrideAction, @Nullable String[] subnets, boolean spot) {
         KeyValuePair envNodeName = new KeyValuePair();
         envNodeName.setName("SLAVE_NODE_NAME");
         envNodeName.setValue(slave.getComputer().getName());
@@ -261,10 +347,18 @@ class ECSService {
         jobName.setName("TASK_NAME");
         jobName.setValue(taskName);
 
-        final RunTaskResult runTaskResult = client.runTask(new RunTaskRequest()
+        RunTaskRequest request = new RunTaskRequest();
+        if (spot) {
+            // a launch type and a capacity provider strategy are mutually exclusive
+            request.withCapacityProviderStrategy(
+                    new CapacityProviderStrategyItem().withCapacityProvider("FARGATE_SPOT").withWeight(template.getSpotWeight()),
+                    new CapacityProviderStrategyItem().withCapacityProvider("FARGATE").withWeight(template.getOnDemandWeight()).withBase(template.getOnDemandBase()));
+        } else {
+            request.withLaunchType(LaunchType.FARGATE);
+        }
+        return request
                 .withTaskDefinition(taskDefinitionArn)
-                .withLaunchType(LaunchType.FARGATE)
-                .withNetworkConfiguration(getNetworkConfig(template,overrideAction))
+                .withNetworkConfiguration(getNetworkConfig(template,overrideAction,subnets))
                 .withOverrides(new TaskOverride()
                         .withExecutionRoleArn(template.getExecutionRoleArn())
                         .withTaskRoleArn(StringUtils.isEmpty(overrideAction.getTaskRoleArn()) ? template.getTaskRoleArn() : overrideAction.getTaskRoleArn())
@@ -275,17 +369,24 @@ class ECSService {
                                 .withEnvironment(envNodeName)
                                 .withEnvironment(envNodeSecret)
                                 .withEnvironment(jobName)))
-                .withCluster(clusterArn)
-        );
+                .withCluster(clusterArn);
+    }
 
+    String getStartedTaskArn(FargateAgent slave, RunTaskRequest request, RunTaskResult runTaskResult) throws AbortException {
         if (!runTaskResult.getFailures().isEmpty()) {
-            LOGGER.log(Level.WARNING, "Slave {0} - Failure to run task with definition {1} on ECS cluster {2}", new Object[]{slave.getNodeName(), taskDefinitionArn, clusterArn});
+            LOGGER.log(Level.WARNING, "Slave {0} - Failure to run task with definition {1} on ECS cluster {2}", new Object[]{slave.getNodeName(), request.getTaskDefinition(), request.getCluster()});
+            StringBuilder reasons = new StringBuilder();
             for (Failure failure : runTaskResult.getFailures()) {
                 LOGGER.log(Level.WARNING, "Slave {0} - Failure reason={1}, arn={2}", new Object[]{slave.getNodeName(), failure.getReason(), failure.getArn()});
+                reasons.append(reasons.length() == 0 ? ": " : ", ").append(failure.getReason());
+                if (StringUtils.isNotEmpty(failure.getDetail())) {
+                    reasons.append(" (").append(failure.getDetail()).append(')');
+                }
             }
-            throw new AbortException("Failed to run slave container " + slave.getNodeName());
+            // the reasons let the LaunchRetryPolicy tell capacity shortages from configuration errors
+            throw new AbortException("Failed to run slave container " + slave.getNodeName() + reasons);
         }
         return runTaskResult.getTasks().get(0).getTaskArn();
     }
 
-}
\ No newline at end of file
+}
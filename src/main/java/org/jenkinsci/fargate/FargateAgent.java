@@ -0,0 +1,49 @@
+package org.jenkinsci.fargate;
+
+import hudson.model.TaskListener;
+import hudson.slaves.SlaveComputer;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * A node backed by a fargate task, either a one-shot {@link ECSFargateSlave} or a pooled
+ * {@link ECSFargatePoolSlave}. This is what {@link ECSFargateLaunch} needs to start the task and to give up on it.
+ */
+interface FargateAgent {
+
+    String getNodeName();
+
+    /**
+     * @return the name passed to the task as <code>TASK_NAME</code>.
+     */
+    String getTaskName();
+
+    String getTemplateLabel();
+
+    String getClusterArn();
+
+    ECSFargateTaskOverrideAction getOverrideAction();
+
+    @CheckForNull
+    String getTaskArn();
+
+    void setTaskArn(String taskArn);
+
+    @CheckForNull
+    SlaveComputer getComputer();
+
+    /**
+     * @return true once the agent connected back over JNLP.
+     */
+    boolean isConnected();
+
+    /**
+     * @return true when nothing waits for this agent anymore, so its launch can be dropped.
+     */
+    boolean isAbandoned();
+
+    /**
+     * Removes the node and stops its task, called when the launch failed.
+     */
+    void discard(TaskListener listener) throws Exception;
+}
@@ -0,0 +1,55 @@
+package org.jenkinsci.fargate;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import jenkins.metrics.api.Metrics;
+
+/**
+ * Small helper around the Jenkins Metrics plugin registry so every fargate metric ends up under the same
+ * <code>fargate.</code> prefix.
+ */
+final class FargateMetrics {
+
+    static final String PREFIX = "fargate";
+
+    private FargateMetrics() {
+    }
+
+    static MetricRegistry registry() {
+        return Metrics.metricRegistry();
+    }
+
+    static String name(String... names) {
+        return MetricRegistry.name(PREFIX, names);
+    }
+
+    static Counter counter(String... names) {
+        return registry().counter(name(names));
+    }
+
+    static Meter meter(String... names) {
+        return registry().meter(name(names));
+    }
+
+    static Timer timer(String... names) {
+        return registry().timer(name(names));
+    }
+
+    static Histogram histogram(String... names) {
+        return registry().histogram(name(names));
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge previously registered under the same name.
+     */
+    static void gauge(Gauge<?> gauge, String... names) {
+        MetricRegistry registry = registry();
+        String name = name(names);
+        registry.remove(name);
+        registry.register(name, gauge);
+    }
+}
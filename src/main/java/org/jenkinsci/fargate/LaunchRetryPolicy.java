@@ -0,0 +1,153 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.retry.RetryUtils;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+
+import javax.annotation.CheckForNull;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how a failed launch attempt is retried.
+ *
+ * Policies are consulted in extension order and the first one returning a decision wins, so plugins can refine the
+ * classification of failures without replacing {@link DefaultImpl}. The delay before the next attempt is an
+ * exponential backoff with full jitter, so launches failing together do not retry together.
+ */
+public abstract class LaunchRetryPolicy implements ExtensionPoint {
+
+    /**
+     * Upper bound of the delay between two attempts.
+     */
+    static final long MAX_BACKOFF_MILLIS = Long.getLong(LaunchRetryPolicy.class.getName() + ".maxBackoffMillis", 60000);
+
+    public enum Action {
+        /**
+         * Transient failure, retry the same way after a backoff.
+         */
+        RETRY,
+        /**
+         * The failure is tied to where the task was placed, retry on another subnet.
+         */
+        RETRY_ELSEWHERE,
+        /**
+         * Retrying cannot help, fail the launch right away.
+         */
+        PERMANENT
+    }
+
+    /**
+     * @param cluster the cluster the attempt was made on.
+     * @param reason  the failure as reported to the user, including RunTask failure reasons and the stopped reason
+     *                of the task when known.
+     * @param cause   the exception raised by the attempt, if any.
+     * @return the action to take, or null to let the next policy decide.
+     */
+    @CheckForNull
+    public abstract Action classify(ECSCluster cluster, String reason, @CheckForNull Exception cause);
+
+    /**
+     * @param attempt the number of attempts made so far, starting at 1.
+     * @return how long to wait before the next attempt.
+     */
+    public long getBackoffMillis(ECSCluster cluster, Action action, int attempt) {
+        long base = action == Action.RETRY_ELSEWHERE ? 500 : 2000;
+        long cap = Math.min(MAX_BACKOFF_MILLIS, base << Math.min(attempt - 1, 16));
+        // full jitter
+        return ThreadLocalRandom.current().nextLong(Math.max(1, cap));
+    }
+
+    public static ExtensionList<LaunchRetryPolicy> all() {
+        return Jenkins.getInstance().getExtensionList(LaunchRetryPolicy.class);
+    }
+
+    /**
+     * Classifies a failure with the first policy that has an opinion, {@link Action#RETRY} when none has.
+     */
+    static Decision decide(ECSCluster cluster, String reason, @CheckForNull Exception cause, int attempt) {
+        for (LaunchRetryPolicy policy : all()) {
+            Action action = policy.classify(cluster, reason, cause);
+            if (action != null) {
+                return new Decision(action, action == Action.PERMANENT ? 0 : policy.getBackoffMillis(cluster, action, attempt));
+            }
+        }
+        return new Decision(Action.RETRY, 0);
+    }
+
+    static final class Decision {
+        final Action action;
+        final long backoffMillis;
+
+        Decision(Action action, long backoffMillis) {
+            this.action = action;
+            this.backoffMillis = backoffMillis;
+        }
+
+        @Override
+        public String toString() {
+            return action + (backoffMillis > 0 ? " in " + backoffMillis + "ms" : "");
+        }
+    }
+
+    /**
+     * Classifies the failures commonly reported by RunTask and by tasks stopping before their agent connects.
+     */
+    @Extension(ordinal = -100)
+    public static class DefaultImpl extends LaunchRetryPolicy {
+
+        private static final String[] PERMANENT = {
+                "not authorized", "AccessDenied", "Unable to assume role", "manifest unknown", "repository does not exist",
+                "pull access denied", "CannotPullContainerError: inspect image"
+        };
+
+        /**
+         * Misconfigurations, such as a subnet or security group that does not exist. Checked before {@link #ELSEWHERE}
+         * as they often name a subnet, and no other subnet would help.
+         */
+        private static final String[] MISCONFIGURED = {
+                "invalid", "is not valid", "does not exist"
+        };
+
+        /**
+         * Matched case sensitively, "ENI" would otherwise match "denied".
+         */
+        private static final String[] ELSEWHERE = {
+                "ENI", "subnet", "Subnet", "IP address", "ResourceInitializationError", "network interface"
+        };
+
+        @Override
+        public Action classify(ECSCluster cluster, String reason, @CheckForNull Exception cause) {
+            if (cause instanceof SdkBaseException && RetryUtils.isThrottlingException((SdkBaseException) cause)) {
+                return Action.RETRY;
+            }
+            if (cause instanceof AmazonServiceException && ((AmazonServiceException) cause).getErrorType() == AmazonServiceException.ErrorType.Service) {
+                return Action.RETRY;
+            }
+            String text = cause == null ? reason : reason + ' ' + cause.getMessage();
+            if (StringUtils.containsIgnoreCase(text, "capacity")) {
+                return Action.RETRY;
+            }
+            for (String marker : PERMANENT) {
+                if (StringUtils.containsIgnoreCase(text, marker)) {
+                    return Action.PERMANENT;
+                }
+            }
+            for (String marker : MISCONFIGURED) {
+                if (StringUtils.containsIgnoreCase(text, marker)) {
+                    return Action.PERMANENT;
+                }
+            }
+            for (String marker : ELSEWHERE) {
+                if (StringUtils.contains(text, marker)) {
+                    return Action.RETRY_ELSEWHERE;
+                }
+            }
+            return Action.RETRY;
+        }
+    }
+}
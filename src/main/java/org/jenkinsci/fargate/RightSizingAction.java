@@ -0,0 +1,101 @@
+package org.jenkinsci.fargate;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Job;
+import jenkins.model.TransientActionFactory;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shows on the job page what the builds of the job used on each fargate template, and the size recommended for them.
+ */
+public class RightSizingAction implements Action {
+
+    private final List<Row> rows;
+
+    RightSizingAction(List<Row> rows) {
+        this.rows = rows;
+    }
+
+    public List<Row> getRows() {
+        return rows;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Fargate usage";
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+
+    public static final class Row {
+        private final String template;
+        private final int builds;
+        private final String usage;
+        private final String recommendation;
+
+        Row(String template, int builds, String usage, String recommendation) {
+            this.template = template;
+            this.builds = builds;
+            this.usage = usage;
+            this.recommendation = recommendation;
+        }
+
+        public String getTemplate() {
+            return template;
+        }
+
+        public int getBuilds() {
+            return builds;
+        }
+
+        public String getUsage() {
+            return usage;
+        }
+
+        public String getRecommendation() {
+            return recommendation;
+        }
+    }
+
+    @Extension
+    public static class Factory extends TransientActionFactory<Job> {
+
+        @Override
+        public Class<Job> type() {
+            return Job.class;
+        }
+
+        @Nonnull
+        @Override
+        public Collection<? extends Action> createFor(@Nonnull Job target) {
+            if (!UsageHistory.ENABLED) {
+                return Collections.emptyList();
+            }
+            List<UsageHistory.JobHistory> histories = UsageHistory.get().getHistories(target.getFullName());
+            if (histories.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<Row> rows = new ArrayList<Row>(histories.size());
+            for (UsageHistory.JobHistory history : histories) {
+                UsageHistory.Size size = history.getRecommendation();
+                rows.add(new Row(history.getTemplate(), history.getBuilds(), history.getSummary(),
+                        size == null ? "not enough builds yet" : size.toString()));
+            }
+            return Collections.singletonList(new RightSizingAction(rows));
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.services.ec2.model.Subnet;
+import com.codahale.metrics.Gauge;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the subnets a task is started in, among the subnets of its template.
+ *
+ * Every launch is spread to the availability zone that received the fewest launches lately, and within it to the
+ * subnet with the most free IP addresses. Free addresses come from DescribeSubnets, refreshed in the background every
+ * {@link #REFRESH_MILLIS}, minus the launches sent to the subnet since. Subnets that recently failed placements, for
+ * instance because no network interface could be created, are avoided for {@link #PENALTY_MILLIS}. A second subnet
+ * in another zone is handed to ECS as well so it still has a choice.
+ */
+final class SubnetScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(SubnetScheduler.class.getName());
+
+    static final long REFRESH_MILLIS = Long.getLong(SubnetScheduler.class.getName() + ".refreshMillis", TimeUnit.MINUTES.toMillis(1));
+
+    static final long PENALTY_MILLIS = Long.getLong(SubnetScheduler.class.getName() + ".penaltyMillis", TimeUnit.MINUTES.toMillis(2));
+
+    /**
+     * Subnets with fewer free addresses are only used when no other subnet is left.
+     */
+    static final int MIN_FREE_ADDRESSES = Integer.getInteger(SubnetScheduler.class.getName() + ".minFreeAddresses", 8);
+
+    /**
+     * Free addresses assumed for a subnet not described yet.
+     */
+    private static final int UNKNOWN_FREE_ADDRESSES = 250;
+
+    private final EC2Service ec2Service;
+
+    private final ConcurrentMap<String, SubnetState> subnets = new ConcurrentHashMap<String, SubnetState>();
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile long refreshedAt;
+
+    SubnetScheduler(EC2Service ec2Service) {
+        this.ec2Service = ec2Service;
+    }
+
+    /**
+     * @return the one or two subnets the next task of the template should be started in, or the template subnets
+     * as configured when there is nothing to choose from.
+     */
+    @CheckForNull
+    String[] pick(ECSFargateTaskDefinition template) {
+        String[] configured = StringUtils.stripAll(StringUtils.split(StringUtils.defaultString(template.getSubnets()), ','));
+        if (configured.length < 2) {
+            return configured.length == 0 ? null : configured;
+        }
+        long now = System.currentTimeMillis();
+        List<SubnetState> candidates = new ArrayList<SubnetState>(configured.length);
+        for (String id : configured) {
+            candidates.add(getState(id));
+        }
+        // after registering the subnets, the first launch would have nothing to describe otherwise
+        refreshIfStale();
+        List<SubnetState> usable = new ArrayList<SubnetState>(candidates.size());
+        for (SubnetState candidate : candidates) {
+            if (candidate.getFree() >= MIN_FREE_ADDRESSES && candidate.penalizedUntil <= now) {
+                usable.add(candidate);
+            }
+        }
+        if (usable.isEmpty()) {
+            LOGGER.log(Level.FINE, "No subnet of template {0} is known to have room, letting ECS choose", template.getName());
+            return configured;
+        }
+
+        // launches and best subnet per zone
+        Map<String, Integer> launchesPerZone = new HashMap<String, Integer>();
+        Map<String, SubnetState> bestPerZone = new LinkedHashMap<String, SubnetState>();
+        for (SubnetState candidate : usable) {
+            Integer launches = launchesPerZone.get(candidate.zone);
+            launchesPerZone.put(candidate.zone, (launches == null ? 0 : launches) + candidate.recentLaunches);
+            SubnetState best = bestPerZone.get(candidate.zone);
+            if (best == null || candidate.getFree() > best.getFree()) {
+                bestPerZone.put(candidate.zone, candidate);
+            }
+        }
+        List<SubnetState> zones = new ArrayList<SubnetState>(bestPerZone.values());
+        final Map<String, Integer> load = launchesPerZone;
+        Collections.sort(zones, new Comparator<SubnetState>() {
+            @Override
+            public int compare(SubnetState a, SubnetState b) {
+                int byLaunches = load.get(a.zone) - load.get(b.zone);
+                return byLaunches != 0 ? byLaunches : b.getFree() - a.getFree();
+            }
+        });
+
+        SubnetState first = zones.get(0);
+        first.launched();
+        if (zones.size() < 2) {
+            return new String[]{first.id};
+        }
+        return new String[]{first.id, zones.get(1).id};
+    }
+
+    /**
+     * Avoids the given subnets for a while, after a placement in them failed.
+     */
+    void failed(String[] subnetIds) {
+        long until = System.currentTimeMillis() + PENALTY_MILLIS;
+        for (String id : subnetIds) {
+            getState(id).penalizedUntil = until;
+            FargateMetrics.meter("subnets", id, "failures").mark();
+        }
+        LOGGER.log(Level.FINE, "Avoiding subnets {0} for {1}ms", new Object[]{Arrays.toString(subnetIds), PENALTY_MILLIS});
+    }
+
+    SubnetState getState(final String id) {
+        SubnetState state = subnets.get(id);
+        if (state == null) {
+            state = new SubnetState(id);
+            SubnetState existing = subnets.putIfAbsent(id, state);
+            if (existing != null) {
+                state = existing;
+            } else {
+                final SubnetState registered = state;
+                FargateMetrics.gauge(new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return registered.getFree();
+                    }
+                }, "subnets", id, "free");
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Describes the known subnets in the background once the last description is too old. Launches keep using the
+     * previous description meanwhile.
+     */
+    private void refreshIfStale() {
+        if (System.currentTimeMillis() - refreshedAt < REFRESH_MILLIS || !refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Describes the known subnets on the calling thread.
+     */
+    void refresh() {
+        List<String> ids = new ArrayList<String>(subnets.keySet());
+        if (ids.isEmpty()) {
+            return;
+        }
+        List<Subnet> described = ec2Service.describeSubnetsById(ids);
+        if (described.isEmpty()) {
+            // the call failed and was logged, try again on a later launch
+            return;
+        }
+        for (Subnet subnet : described) {
+            SubnetState state = getState(subnet.getSubnetId());
+            state.update(subnet.getAvailabilityZone(), subnet.getAvailableIpAddressCount());
+        }
+        refreshedAt = System.currentTimeMillis();
+        LOGGER.log(Level.FINE, "Refreshed {0} subnets", described.size());
+    }
+
+    static final class SubnetState {
+        private final String id;
+        /**
+         * Unknown subnets are treated as a zone of their own until described.
+         */
+        private volatile String zone;
+        private volatile int described = UNKNOWN_FREE_ADDRESSES;
+        /**
+         * Launches sent to this subnet since it was last described.
+         */
+        private volatile int recentLaunches;
+        private volatile long penalizedUntil;
+
+        SubnetState(String id) {
+            this.id = id;
+            this.zone = id;
+        }
+
+        int getFree() {
+            return described - recentLaunches;
+        }
+
+        synchronized void launched() {
+            recentLaunches++;
+        }
+
+        synchronized void update(String zone, Integer available) {
+            this.zone = zone == null ? id : zone;
+            this.described = available == null ? UNKNOWN_FREE_ADDRESSES : available;
+            this.recentLaunches = 0;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package org.jenkinsci.fargate;
+
+import hudson.BulkChange;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers which task definition arn was registered for a given template and override content.
+ *
+ * Entries are keyed by a digest of the content that would be registered, so an edited template simply misses the
+ * cache. Template instances are replaced whenever the global configuration is saved, which also drops the in-memory
+ * shortcut from a template to its digest. Concurrent launches of a template that is not registered yet wait for a
+ * single in-flight registration.
+ */
+final class TaskDefinitionCache implements Saveable {
+
+    private static final Logger LOGGER = Logger.getLogger(TaskDefinitionCache.class.getName());
+
+    private static volatile TaskDefinitionCache instance;
+
+    /**
+     * Registered arns keyed by content digest, persisted across restarts.
+     */
+    private ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private transient ConcurrentMap<String, CompletableFuture<String>> inFlight;
+
+    /**
+     * Content digests already computed for a template instance, keyed by cluster and override.
+     */
+    private transient Map<ECSFargateTaskDefinition, ConcurrentMap<String, String>> digests;
+
+    /**
+     * Whether last use times changed since the last save, they are flushed periodically rather than on every launch.
+     */
+    private transient volatile boolean dirty;
+
+    private TaskDefinitionCache() {
+        readResolve();
+    }
+
+    private Object readResolve() {
+        if (entries == null) {
+            entries = new ConcurrentHashMap<String, Entry>();
+        }
+        inFlight = new ConcurrentHashMap<String, CompletableFuture<String>>();
+        digests = Collections.synchronizedMap(new WeakHashMap<ECSFargateTaskDefinition, ConcurrentMap<String, String>>());
+        return this;
+    }
+
+    static TaskDefinitionCache get() {
+        TaskDefinitionCache cache = instance;
+        if (cache == null) {
+            synchronized (TaskDefinitionCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    cache = new TaskDefinitionCache();
+                    cache.load();
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Fast path that avoids building the task definition at all when this template instance was resolved before.
+     *
+     * @return the registered arn, or null when the template has to be resolved through {@link #getOrRegister}.
+     */
+    @CheckForNull
+    String lookup(String clusterName, ECSFargateTaskDefinition template, ECSFargateTaskOverrideAction overrideAction) {
+        ConcurrentMap<String, String> byOverride = digests.get(template);
+        if (byOverride == null) {
+            return null;
+        }
+        String digest = byOverride.get(overrideKey(clusterName, overrideAction));
+        if (digest == null) {
+            return null;
+        }
+        Entry entry = entries.get(digest);
+        if (entry == null) {
+            return null;
+        }
+        touch(entry);
+        return entry.arn;
+    }
+
+    /**
+     * Returns the arn registered for the given content, registering it when needed. Only one registration runs at a
+     * time for the same content, other callers wait for its result.
+     */
+    String getOrRegister(String clusterName, ECSFargateTaskDefinition template, ECSFargateTaskOverrideAction overrideAction,
+                         String digest, String family, Callable<String> registration) {
+        remember(clusterName, template, overrideAction, digest);
+
+        Entry entry = entries.get(digest);
+        if (entry != null) {
+            touch(entry);
+            return entry.arn;
+        }
+
+        CompletableFuture<String> mine = new CompletableFuture<String>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(digest, mine);
+        if (existing != null) {
+            LOGGER.log(Level.FINE, "Waiting for in-flight registration of {0}", family);
+            return join(existing);
+        }
+
+        try {
+            entry = entries.get(digest);
+            String arn;
+            if (entry != null) {
+                arn = entry.arn;
+            } else {
+                arn = registration.call();
+                entries.put(digest, new Entry(arn, family));
+                save();
+            }
+            mine.complete(arn);
+            return arn;
+        } catch (Exception e) {
+            mine.completeExceptionally(e);
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            throw new IllegalStateException("Unable to register task definition " + family, e);
+        } finally {
+            inFlight.remove(digest, mine);
+        }
+    }
+
+    private void touch(Entry entry) {
+        entry.touch();
+        dirty = true;
+    }
+
+    /**
+     * Forgets a task definition, for instance because it was found inactive.
+     */
+    void invalidate(String arn) {
+        boolean removed = false;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().arn.equals(arn)) {
+                it.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            LOGGER.log(Level.INFO, "Forgot cached task definition {0}", arn);
+            save();
+        }
+    }
+
+    /**
+     * @return when each cached task definition arn was last used to launch a task.
+     */
+    Map<String, Long> getLastUsed() {
+        Map<String, Long> lastUsed = new HashMap<String, Long>();
+        for (Entry entry : entries.values()) {
+            Long known = lastUsed.get(entry.arn);
+            if (known == null || known < entry.getLastUsed()) {
+                lastUsed.put(entry.arn, entry.getLastUsed());
+            }
+        }
+        return lastUsed;
+    }
+
+    /**
+     * @return a digest identifying the content of a task definition in a given account and region.
+     */
+    static String digest(String credentialsId, String regionName, Object content) {
+        return Util.getDigestOf(StringUtils.defaultString(credentialsId) + '|' + StringUtils.defaultString(regionName) + '|' + content);
+    }
+
+    private void remember(String clusterName, ECSFargateTaskDefinition template, ECSFargateTaskOverrideAction overrideAction, String digest) {
+        ConcurrentMap<String, String> byOverride;
+        synchronized (digests) {
+            byOverride = digests.get(template);
+            if (byOverride == null) {
+                byOverride = new ConcurrentHashMap<String, String>();
+                digests.put(template, byOverride);
+            }
+        }
+        byOverride.put(overrideKey(clusterName, overrideAction), digest);
+    }
+
+    private static String overrideKey(String clusterName, ECSFargateTaskOverrideAction overrideAction) {
+        return clusterName + '|' + overrideAction.getCpu() + '|' + overrideAction.getMemory() + '|' + overrideAction.getTaskRoleArn();
+    }
+
+    private static String join(CompletableFuture<String> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for task definition registration", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getInstance().getRootDir(), TaskDefinitionCache.class.getName() + ".xml"));
+    }
+
+    private void load() {
+        XmlFile file = getConfigFile();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            file.unmarshal(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized void save() {
+        if (BulkChange.contains(this)) {
+            return;
+        }
+        try {
+            XmlFile file = getConfigFile();
+            dirty = false;
+            file.write(this);
+            SaveableListener.fireOnChange(this, file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save task definition cache", e);
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOBS_LOADED)
+    public static void start() {
+        Timer.get().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                TaskDefinitionCache cache = get();
+                if (cache.dirty) {
+                    cache.save();
+                }
+            }
+        }, 10, 10, TimeUnit.MINUTES);
+    }
+
+    static final class Entry {
+        private final String arn;
+        private final String family;
+        private volatile long lastUsed;
+
+        Entry(String arn, String family) {
+            this.arn = arn;
+            this.family = family;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        String getArn() {
+            return arn;
+        }
+
+        String getFamily() {
+            return family;
+        }
+
+        long getLastUsed() {
+            return lastUsed;
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+}
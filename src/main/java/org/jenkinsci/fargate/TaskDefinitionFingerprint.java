@@ -0,0 +1,134 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.services.ecs.model.EFSAuthorizationConfig;
+import com.amazonaws.services.ecs.model.EFSVolumeConfiguration;
+import hudson.Util;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Canonical content fingerprint of the task definition registered for a template and its overrides.
+ *
+ * The fingerprint covers everything that ends up in the registered task definition, in a stable order, so two
+ * templates producing the same task definition always share a fingerprint. It is stored as a tag on the task
+ * definition, which lets {@link ECSService} decide whether the latest revision can be reused with a single lookup.
+ */
+final class TaskDefinitionFingerprint {
+
+    /**
+     * Tag holding the fingerprint on task definitions registered by this plugin.
+     */
+    static final String TAG_KEY = "jenkins-fargate-fingerprint";
+
+    /**
+     * Bump when the canonical form changes so older revisions are not reused by mistake.
+     */
+    private static final String VERSION = "1";
+
+    private TaskDefinitionFingerprint() {
+    }
+
+    static String of(String family, ECSFargateTaskDefinition template, ECSFargateTaskOverrideAction overrideAction) {
+        StringBuilder sb = new StringBuilder(512);
+        field(sb, "version", VERSION);
+        field(sb, "family", family);
+        field(sb, "image", template.getImage());
+        field(sb, "cpu", effective(overrideAction.getCpu(), template.getCpu()));
+        field(sb, "memory", effective(overrideAction.getMemory(), template.getMemory()));
+        field(sb, "executionRoleArn", template.getExecutionRoleArn());
+        field(sb, "taskRoleArn", effective(overrideAction.getTaskRoleArn(), template.getTaskRoleArn()));
+        field(sb, "entryPoint", template.getEntryPoint());
+        field(sb, "jvmArgs", template.getJvmArgs());
+        field(sb, "logDriver", template.getLogDriver());
+
+        Map<String, String> logOptions = template.getLogDriverOptionsMap();
+        if (logOptions != null) {
+            for (Map.Entry<String, String> option : new TreeMap<String, String>(logOptions).entrySet()) {
+                field(sb, "logOption." + option.getKey(), option.getValue());
+            }
+        }
+
+        List<ECSFargateTaskDefinition.EnvironmentEntry> environments = template.getEnvironments();
+        if (environments != null) {
+            List<Pair<String, String>> sorted = new ArrayList<Pair<String, String>>();
+            for (ECSFargateTaskDefinition.EnvironmentEntry environment : environments) {
+                if (StringUtils.isNotEmpty(environment.name) && StringUtils.isNotEmpty(environment.value)) {
+                    sorted.add(Pair.of(environment.name, environment.value));
+                }
+            }
+            fields(sb, "env.", sorted);
+        }
+
+        List<ECSFargateTaskDefinition.ExtraHostEntry> extraHosts = template.getExtraHosts();
+        if (extraHosts != null) {
+            List<Pair<String, String>> sorted = new ArrayList<Pair<String, String>>();
+            for (ECSFargateTaskDefinition.ExtraHostEntry extraHost : extraHosts) {
+                if (StringUtils.isNotEmpty(extraHost.hostname) && StringUtils.isNotEmpty(extraHost.ipAddress)) {
+                    sorted.add(Pair.of(extraHost.hostname, extraHost.ipAddress));
+                }
+            }
+            fields(sb, "host.", sorted);
+        }
+
+        List<ECSFargateTaskDefinition.MountPointEntry> mountPoints = template.getMountPoints();
+        if (mountPoints != null) {
+            List<Pair<String, String>> sorted = new ArrayList<Pair<String, String>>();
+            for (ECSFargateTaskDefinition.MountPointEntry mount : mountPoints) {
+                if (StringUtils.isNotEmpty(mount.name)) {
+                    String value = StringUtils.defaultString(mount.sourcePath) + ':' + StringUtils.defaultString(mount.containerPath) + ':' + Boolean.TRUE.equals(mount.readOnly);
+                    if (mount.isEfs()) {
+                        // the per job flag only affects the agent environment, not the task definition
+                        EFSVolumeConfiguration efs = mount.getEfsVolumeConfiguration();
+                        EFSAuthorizationConfig authorization = efs.getAuthorizationConfig();
+                        value += ":efs:" + efs.getFileSystemId() + ':' + StringUtils.defaultString(efs.getRootDirectory())
+                                + ':' + (authorization == null ? "" : StringUtils.defaultString(authorization.getAccessPointId()))
+                                + ':' + efs.getTransitEncryption()
+                                + ':' + (authorization == null ? "" : StringUtils.defaultString(authorization.getIam()));
+                    }
+                    sorted.add(Pair.of(mount.name, value));
+                }
+            }
+            fields(sb, "mount.", sorted);
+        }
+
+        return sha256(sb.toString());
+    }
+
+    private static String effective(String override, String value) {
+        return StringUtils.isEmpty(override) ? value : override;
+    }
+
+    /**
+     * Appends entries sorted by name then value. Duplicate names are kept, the task definition keeps them too.
+     */
+    private static void fields(StringBuilder sb, String prefix, List<Pair<String, String>> entries) {
+        Collections.sort(entries);
+        for (Pair<String, String> entry : entries) {
+            field(sb, prefix + entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void field(StringBuilder sb, String name, String value) {
+        // length prefixes keep values containing separators from colliding
+        String v = StringUtils.defaultString(value);
+        sb.append(name).append('=').append(v.length()).append(':').append(v).append('\n');
+    }
+
+    private static String sha256(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Util.toHexString(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.services.ecs.AmazonECS;
+import com.amazonaws.services.ecs.model.DeregisterTaskDefinitionRequest;
+import com.amazonaws.services.ecs.model.ListTagsForResourceRequest;
+import com.amazonaws.services.ecs.model.ListTaskDefinitionFamiliesRequest;
+import com.amazonaws.services.ecs.model.ListTaskDefinitionFamiliesResult;
+import com.amazonaws.services.ecs.model.ListTaskDefinitionsRequest;
+import com.amazonaws.services.ecs.model.ListTaskDefinitionsResult;
+import com.amazonaws.services.ecs.model.Tag;
+import com.amazonaws.services.ecs.model.TaskDefinitionFamilyStatus;
+import com.amazonaws.services.ecs.model.TaskDefinitionStatus;
+import hudson.BulkChange;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deregisters the task definition revisions this plugin registered and no longer needs.
+ *
+ * A revision is deregistered when it carries the {@link TaskDefinitionFingerprint#TAG_KEY} tag, its fingerprint is not
+ * the current one of any configured template, and it was not used to launch a task for {@link #MAX_UNUSED_DAYS}.
+ * Revisions never used by this Jenkins count from the first time the janitor saw them. Families are found by the
+ * cluster name prefix of {@link ECSService#familyPrefix}; a family left without revisions becomes
+ * inactive. A deregistered revision still needed later is registered again by the next launch.
+ *
+ * The janitor runs on its own thread, paces its calls to {@link #CALLS_PER_SECOND} and lets launches in progress go
+ * first for up to {@link #MAX_YIELD_SECONDS} per call, so a steady stream of launches does not starve it.
+ */
+final class TaskDefinitionJanitor implements Saveable {
+
+    private static final Logger LOGGER = Logger.getLogger(TaskDefinitionJanitor.class.getName());
+
+    /**
+     * Set to false to keep every revision.
+     */
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(TaskDefinitionJanitor.class.getName() + ".enabled", "true"));
+
+    static final int MAX_UNUSED_DAYS = Integer.getInteger(TaskDefinitionJanitor.class.getName() + ".maxUnusedDays", 30);
+
+    static final long INTERVAL_HOURS = Long.getLong(TaskDefinitionJanitor.class.getName() + ".intervalHours", 6);
+
+    static final double CALLS_PER_SECOND = Double.parseDouble(System.getProperty(TaskDefinitionJanitor.class.getName() + ".callsPerSecond", "1"));
+
+    /**
+     * Longest wait for launches in progress before a call.
+     */
+    static final long MAX_YIELD_SECONDS = Long.getLong(TaskDefinitionJanitor.class.getName() + ".maxYieldSeconds", 30);
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "TaskDefinitionJanitor"));
+
+    private static volatile TaskDefinitionJanitor instance;
+
+    /**
+     * When revisions unknown to the {@link TaskDefinitionCache} were first seen, keyed by arn.
+     */
+    private ConcurrentHashMap<String, Long> firstSeen = new ConcurrentHashMap<String, Long>();
+
+    private TaskDefinitionJanitor() {
+    }
+
+    private Object readResolve() {
+        if (firstSeen == null) {
+            firstSeen = new ConcurrentHashMap<String, Long>();
+        }
+        return this;
+    }
+
+    static TaskDefinitionJanitor get() {
+        TaskDefinitionJanitor janitor = instance;
+        if (janitor == null) {
+            synchronized (TaskDefinitionJanitor.class) {
+                janitor = instance;
+                if (janitor == null) {
+                    janitor = new TaskDefinitionJanitor();
+                    janitor.load();
+                    instance = janitor;
+                }
+            }
+        }
+        return janitor;
+    }
+
+    /**
+     * Sweeps every account and region configured.
+     */
+    void sweep() throws InterruptedException {
+        ECSFargateConfig config = ECSFargateConfig.getEcsFargateConfig();
+        if (config == null) {
+            return;
+        }
+        // fingerprints are global, a family name prefix of a cluster may match the families of another one
+        Set<String> current = new HashSet<String>();
+        Map<String, Set<String>> prefixes = new LinkedHashMap<String, Set<String>>();
+        Map<String, ECSCluster> accounts = new LinkedHashMap<String, ECSCluster>();
+        for (ECSCluster cluster : config.getClusters()) {
+            for (ECSFargateTaskDefinition template : cluster.getTaskDefinitionList()) {
+                String family = ECSService.fullQualifiedTemplateName(cluster.getName(), template, ECSFargatePool.NO_OVERRIDES);
+                current.add(TaskDefinitionFingerprint.of(family, template, ECSFargatePool.NO_OVERRIDES));
+            }
+            String account = cluster.getCredentialId() + '|' + cluster.getRegion();
+            accounts.put(account, cluster);
+            Set<String> accountPrefixes = prefixes.get(account);
+            if (accountPrefixes == null) {
+                accountPrefixes = new HashSet<String>();
+                prefixes.put(account, accountPrefixes);
+            }
+            accountPrefixes.add(ECSService.familyPrefix(cluster.getName()));
+        }
+
+        Set<String> seen = new HashSet<String>();
+        for (Map.Entry<String, ECSCluster> account : accounts.entrySet()) {
+            AmazonECS client = account.getValue().getEcsService().getAmazonECSClient();
+            for (String prefix : prefixes.get(account.getKey())) {
+                for (String family : listFamilies(client, prefix)) {
+                    sweepFamily(client, family, current, seen);
+                }
+            }
+        }
+        // forget revisions deregistered elsewhere
+        if (firstSeen.keySet().retainAll(seen)) {
+            save();
+        }
+    }
+
+    private Set<String> listFamilies(AmazonECS client, String prefix) throws InterruptedException {
+        Set<String> families = new HashSet<String>();
+        ListTaskDefinitionFamiliesRequest request = new ListTaskDefinitionFamiliesRequest()
+                .withFamilyPrefix(prefix)
+                .withStatus(TaskDefinitionFamilyStatus.ACTIVE);
+        do {
+            pace();
+            ListTaskDefinitionFamiliesResult result = client.listTaskDefinitionFamilies(request);
+            families.addAll(result.getFamilies());
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+        return families;
+    }
+
+    private void sweepFamily(AmazonECS client, String family, Set<String> current, Set<String> seen) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long cutoff = now - TimeUnit.DAYS.toMillis(MAX_UNUSED_DAYS);
+        Map<String, Long> lastUsed = TaskDefinitionCache.get().getLastUsed();
+        boolean changed = false;
+
+        ListTaskDefinitionsRequest request = new ListTaskDefinitionsRequest()
+                .withFamilyPrefix(family)
+                .withStatus(TaskDefinitionStatus.ACTIVE);
+        do {
+            pace();
+            ListTaskDefinitionsResult result = client.listTaskDefinitions(request);
+            for (String arn : result.getTaskDefinitionArns()) {
+                Long used = lastUsed.get(arn);
+                if (used != null && used > cutoff) {
+                    continue;
+                }
+                pace();
+                String fingerprint = getFingerprint(client, arn);
+                if (fingerprint == null || current.contains(fingerprint)) {
+                    // not ours, or what a template launches right now
+                    continue;
+                }
+                if (used == null) {
+                    seen.add(arn);
+                    Long since = firstSeen.putIfAbsent(arn, now);
+                    if (since == null) {
+                        changed = true;
+                        continue;
+                    }
+                    if (since > cutoff) {
+                        continue;
+                    }
+                }
+                pace();
+                client.deregisterTaskDefinition(new DeregisterTaskDefinitionRequest().withTaskDefinition(arn));
+                TaskDefinitionCache.get().invalidate(arn);
+                changed |= firstSeen.remove(arn) != null;
+                FargateMetrics.meter("janitor", "deregistered").mark();
+                LOGGER.log(Level.INFO, "Deregistered unused task definition {0}", arn);
+            }
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+        if (changed) {
+            save();
+        }
+    }
+
+    private static String getFingerprint(AmazonECS client, String arn) {
+        for (Tag tag : client.listTagsForResource(new ListTagsForResourceRequest().withResourceArn(arn)).getTags()) {
+            if (TaskDefinitionFingerprint.TAG_KEY.equals(tag.getKey())) {
+                return tag.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for the next call slot, and for launches in progress to complete for a while.
+     */
+    private static void pace() throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep((long) (1000 / CALLS_PER_SECOND));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(MAX_YIELD_SECONDS);
+        while (ECSFargateLaunch.getActiveCount() > 0 && System.nanoTime() < deadline) {
+            TimeUnit.SECONDS.sleep(1);
+        }
+        FargateMetrics.meter("janitor", "calls").mark();
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getInstance().getRootDir(), TaskDefinitionJanitor.class.getName() + ".xml"));
+    }
+
+    private void load() {
+        XmlFile file = getConfigFile();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            file.unmarshal(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized void save() {
+        if (BulkChange.contains(this)) {
+            return;
+        }
+        try {
+            XmlFile file = getConfigFile();
+            file.write(this);
+            SaveableListener.fireOnChange(this, file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save task definition janitor state", e);
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOBS_LOADED)
+    public static void start() {
+        if (!ENABLED) {
+            return;
+        }
+        EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    get().sweep();
+                    LOGGER.log(Level.FINE, "Task definition sweep done in {0}ms", System.currentTimeMillis() - start);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Task definition sweep failed, trying again in " + INTERVAL_HOURS + " hours", e);
+                }
+            }
+        }, 15, INTERVAL_HOURS * 60, TimeUnit.MINUTES);
+    }
+}
@@ -0,0 +1,329 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.services.ecs.model.Container;
+import com.amazonaws.services.ecs.model.DescribeTasksResult;
+import com.amazonaws.services.ecs.model.Failure;
+import com.amazonaws.services.ecs.model.Task;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the ECS state of every task this controller started in a cluster.
+ *
+ * A single poller per cluster refreshes all tracked tasks with DescribeTasks batches of
+ * {@link ECSService#DESCRIBE_TASKS_BATCH}, polling quickly while some task is still starting and slowly once
+ * everything runs. Changes are published to the listener registered for the task and to global listeners. Stopped
+ * and unknown tasks are published one last time and then forgotten.
+ */
+final class TaskStateTracker {
+
+    private static final Logger LOGGER = Logger.getLogger(TaskStateTracker.class.getName());
+
+    /**
+     * Poll interval while at least one tracked task has not reached RUNNING yet.
+     */
+    static final long FAST_INTERVAL_MILLIS = Long.getLong(TaskStateTracker.class.getName() + ".fastIntervalMillis", 2000);
+
+    /**
+     * Poll interval while every tracked task runs.
+     */
+    static final long SLOW_INTERVAL_MILLIS = Long.getLong(TaskStateTracker.class.getName() + ".slowIntervalMillis", 30000);
+
+    private static final List<Listener> GLOBAL_LISTENERS = new CopyOnWriteArrayList<Listener>();
+
+    private final ECSService ecsService;
+    private final String clusterArn;
+
+    private final ConcurrentMap<String, TaskState> states = new ConcurrentHashMap<String, TaskState>();
+    private final ConcurrentMap<String, Listener> listeners = new ConcurrentHashMap<String, Listener>();
+
+    /**
+     * Guarded by this.
+     */
+    @CheckForNull
+    private ScheduledFuture<?> next;
+    private long nextAt;
+
+    TaskStateTracker(ECSService ecsService, String clusterArn) {
+        this.ecsService = ecsService;
+        this.clusterArn = clusterArn;
+    }
+
+    /**
+     * Registers a listener notified of the state changes of every tracked task.
+     */
+    static void addGlobalListener(Listener listener) {
+        GLOBAL_LISTENERS.add(listener);
+    }
+
+    static void removeGlobalListener(Listener listener) {
+        GLOBAL_LISTENERS.remove(listener);
+    }
+
+    /**
+     * Starts tracking a task until it stops.
+     *
+     * @param listener notified of the changes of this task, may be null.
+     */
+    void track(String taskArn, @CheckForNull Listener listener) {
+        states.putIfAbsent(taskArn, TaskState.requested(taskArn));
+        if (listener != null) {
+            listeners.put(taskArn, listener);
+        }
+        schedule(FAST_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Stops notifying the listener of a task. The task is still tracked until it stops.
+     */
+    void unsubscribe(String taskArn) {
+        listeners.remove(taskArn);
+    }
+
+    @CheckForNull
+    TaskState getState(String taskArn) {
+        return states.get(taskArn);
+    }
+
+    /**
+     * @return a snapshot of all tracked tasks.
+     */
+    Map<String, TaskState> getStates() {
+        return Collections.unmodifiableMap(new HashMap<String, TaskState>(states));
+    }
+
+    private synchronized void schedule(long delay) {
+        long at = System.currentTimeMillis() + delay;
+        if (next != null && !next.isDone()) {
+            if (nextAt <= at) {
+                return;
+            }
+            next.cancel(false);
+        }
+        nextAt = at;
+        next = Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        synchronized (this) {
+            next = null;
+        }
+        List<String> arns = new ArrayList<String>(states.keySet());
+        if (arns.isEmpty()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < arns.size(); i += ECSService.DESCRIBE_TASKS_BATCH) {
+                DescribeTasksResult result = ecsService.describeTasks(clusterArn, arns.subList(i, Math.min(i + ECSService.DESCRIBE_TASKS_BATCH, arns.size())));
+                for (Task task : result.getTasks()) {
+                    update(TaskState.of(task));
+                }
+                for (Failure failure : result.getFailures()) {
+                    if ("MISSING".equals(failure.getReason()) && failure.getArn() != null) {
+                        update(TaskState.missing(failure.getArn()));
+                    }
+                }
+            }
+            FargateMetrics.meter("tasks", "describe", "calls").mark((arns.size() + ECSService.DESCRIBE_TASKS_BATCH - 1) / ECSService.DESCRIBE_TASKS_BATCH);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to describe tasks of cluster " + clusterArn, e);
+        }
+
+        if (states.isEmpty()) {
+            return;
+        }
+        boolean starting = false;
+        for (TaskState state : states.values()) {
+            if (!state.isRunning()) {
+                starting = true;
+                break;
+            }
+        }
+        schedule(starting ? FAST_INTERVAL_MILLIS : SLOW_INTERVAL_MILLIS);
+    }
+
+    private void update(TaskState current) {
+        TaskState previous = states.get(current.getTaskArn());
+        if (previous == null) {
+            return;
+        }
+        if (TaskState.MISSING.equals(current.getLastStatus()) && TaskState.REQUESTED.equals(previous.getLastStatus())
+                && previous.getCreatedAt() != null && System.currentTimeMillis() - previous.getCreatedAt().getTime() < SLOW_INTERVAL_MILLIS) {
+            // DescribeTasks is eventually consistent, a task that was just started may not be visible yet
+            return;
+        }
+        if (current.isStopped()) {
+            states.remove(current.getTaskArn());
+        } else {
+            states.put(current.getTaskArn(), current);
+        }
+        if (previous.sameStatus(current)) {
+            return;
+        }
+        LOGGER.log(Level.FINE, "Task {0}: {1} -> {2}", new Object[]{current.getTaskArn(), previous.getLastStatus(), current.getLastStatus()});
+        Listener listener = current.isStopped() ? listeners.remove(current.getTaskArn()) : listeners.get(current.getTaskArn());
+        if (listener != null) {
+            fire(listener, previous, current);
+        }
+        for (Listener global : GLOBAL_LISTENERS) {
+            fire(global, previous, current);
+        }
+    }
+
+    private static void fire(Listener listener, TaskState previous, TaskState current) {
+        try {
+            listener.onChange(previous, current);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Task state listener failed", e);
+        }
+    }
+
+    /**
+     * Notified when the status of a tracked task changes.
+     */
+    interface Listener {
+        void onChange(TaskState previous, TaskState current);
+    }
+
+    /**
+     * Immutable snapshot of the ECS state of a task.
+     */
+    static final class TaskState {
+        static final String REQUESTED = "REQUESTED";
+        static final String MISSING = "MISSING";
+
+        private final String taskArn;
+        private final String lastStatus;
+        private final String desiredStatus;
+        @CheckForNull
+        private final String stoppedReason;
+        private final Map<String, Integer> exitCodes;
+        @CheckForNull
+        private final Date createdAt;
+        @CheckForNull
+        private final Date pullStartedAt;
+        @CheckForNull
+        private final Date pullStoppedAt;
+        @CheckForNull
+        private final Date startedAt;
+
+        private TaskState(String taskArn, String lastStatus, String desiredStatus, String stoppedReason, Map<String, Integer> exitCodes,
+                          Date createdAt, Date pullStartedAt, Date pullStoppedAt, Date startedAt) {
+            this.taskArn = taskArn;
+            this.lastStatus = lastStatus;
+            this.desiredStatus = desiredStatus;
+            this.stoppedReason = stoppedReason;
+            this.exitCodes = exitCodes;
+            this.createdAt = createdAt;
+            this.pullStartedAt = pullStartedAt;
+            this.pullStoppedAt = pullStoppedAt;
+            this.startedAt = startedAt;
+        }
+
+        static TaskState requested(String taskArn) {
+            return new TaskState(taskArn, REQUESTED, "RUNNING", null, Collections.<String, Integer>emptyMap(), new Date(), null, null, null);
+        }
+
+        static TaskState missing(String taskArn) {
+            return new TaskState(taskArn, MISSING, "STOPPED", "Task is unknown to ECS", Collections.<String, Integer>emptyMap(), null, null, null, null);
+        }
+
+        static TaskState of(Task task) {
+            Map<String, Integer> exitCodes = new HashMap<String, Integer>();
+            if (task.getContainers() != null) {
+                for (Container container : task.getContainers()) {
+                    if (container.getExitCode() != null) {
+                        exitCodes.put(container.getName(), container.getExitCode());
+                    }
+                }
+            }
+            return new TaskState(task.getTaskArn(), task.getLastStatus(), task.getDesiredStatus(), task.getStoppedReason(),
+                    Collections.unmodifiableMap(exitCodes), task.getCreatedAt(), task.getPullStartedAt(), task.getPullStoppedAt(), task.getStartedAt());
+        }
+
+        String getTaskArn() {
+            return taskArn;
+        }
+
+        /**
+         * @return the ECS status such as PROVISIONING, PENDING, RUNNING or STOPPED, or {@link #REQUESTED} before
+         * the first poll and {@link #MISSING} when ECS does not know the task.
+         */
+        String getLastStatus() {
+            return lastStatus;
+        }
+
+        String getDesiredStatus() {
+            return desiredStatus;
+        }
+
+        @CheckForNull
+        String getStoppedReason() {
+            return stoppedReason;
+        }
+
+        /**
+         * @return exit codes by container name, for the containers that exited.
+         */
+        Map<String, Integer> getExitCodes() {
+            return exitCodes;
+        }
+
+        @CheckForNull
+        Date getCreatedAt() {
+            return createdAt;
+        }
+
+        @CheckForNull
+        Date getPullStartedAt() {
+            return pullStartedAt;
+        }
+
+        @CheckForNull
+        Date getPullStoppedAt() {
+            return pullStoppedAt;
+        }
+
+        @CheckForNull
+        Date getStartedAt() {
+            return startedAt;
+        }
+
+        boolean isRunning() {
+            return "RUNNING".equals(lastStatus);
+        }
+
+        boolean isStopped() {
+            return "STOPPED".equals(lastStatus) || MISSING.equals(lastStatus);
+        }
+
+        boolean sameStatus(TaskState other) {
+            return StringUtils.equals(lastStatus, other.lastStatus) && StringUtils.equals(desiredStatus, other.desiredStatus);
+        }
+
+        @Override
+        public String toString() {
+            return taskArn + ' ' + lastStatus + (stoppedReason == null ? "" : " (" + stoppedReason + ')');
+        }
+    }
+}
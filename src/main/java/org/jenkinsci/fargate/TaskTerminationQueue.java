@@ -0,0 +1,391 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ecs.model.DescribeTasksResult;
+import com.amazonaws.services.ecs.model.Failure;
+import com.amazonaws.services.ecs.model.Task;
+import com.codahale.metrics.Gauge;
+import hudson.BulkChange;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable queue of fargate tasks that have to be stopped.
+ *
+ * Terminating an agent only records its task here. A background worker groups pending tasks per cluster, sends
+ * rate limited StopTask calls, retries failures with an exponential backoff and confirms the STOPPED state with
+ * batched DescribeTasks calls. A task only leaves the queue once ECS reports it stopped or unknown, and the queue is
+ * persisted so a restart does not leave billable tasks running.
+ *
+ * The worker runs on its own thread, its paced calls never hold a shared timer thread. A burst of terminations wakes
+ * it up once, {@link #WAKEUP_DELAY_MILLIS} after the first of them, and is saved once, before the first StopTask.
+ * Tasks are only described once they had {@link #MIN_CONFIRM_MILLIS} to stop.
+ */
+final class TaskTerminationQueue implements Saveable {
+
+    private static final Logger LOGGER = Logger.getLogger(TaskTerminationQueue.class.getName());
+
+    /**
+     * How often the worker looks at the queue.
+     */
+    static final long INTERVAL_SECONDS = Long.getLong(TaskTerminationQueue.class.getName() + ".intervalSeconds", 5);
+
+    /**
+     * Maximum number of StopTask calls per second and per cluster.
+     */
+    static final int STOPS_PER_SECOND = Integer.getInteger(TaskTerminationQueue.class.getName() + ".stopsPerSecond", 10);
+
+    /**
+     * How long a stopped task may take to reach STOPPED before StopTask is sent again.
+     */
+    static final long CONFIRM_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * How long a stopped task is given before its state is checked.
+     */
+    static final long MIN_CONFIRM_MILLIS = TimeUnit.SECONDS.toMillis(15);
+
+    /**
+     * How long the worker waits for more terminations after one is enqueued.
+     */
+    static final long WAKEUP_DELAY_MILLIS = 200;
+
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "TaskTerminationQueue"));
+
+    /**
+     * Whether a pass triggered by an enqueued termination is pending.
+     */
+    private static final AtomicBoolean WAKEUP = new AtomicBoolean();
+
+    private static volatile TaskTerminationQueue instance;
+
+    /**
+     * Guarded by this, as are the fields of every pending stop.
+     */
+    private List<PendingStop> pending = new ArrayList<PendingStop>();
+
+    private transient volatile boolean dirty;
+
+    private TaskTerminationQueue() {
+        readResolve();
+    }
+
+    private Object readResolve() {
+        if (pending == null) {
+            pending = new ArrayList<PendingStop>();
+        }
+        return this;
+    }
+
+    static TaskTerminationQueue get() {
+        TaskTerminationQueue queue = instance;
+        if (queue == null) {
+            synchronized (TaskTerminationQueue.class) {
+                queue = instance;
+                if (queue == null) {
+                    queue = new TaskTerminationQueue();
+                    queue.load();
+                    instance = queue;
+                }
+            }
+        }
+        return queue;
+    }
+
+    void enqueue(String credentialsId, String regionName, String clusterArn, String taskArn) {
+        synchronized (this) {
+            for (PendingStop stop : pending) {
+                if (stop.taskArn.equals(taskArn)) {
+                    return;
+                }
+            }
+            pending.add(new PendingStop(credentialsId, regionName, clusterArn, taskArn));
+            dirty = true;
+        }
+        if (WAKEUP.compareAndSet(false, true)) {
+            EXECUTOR.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        process();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Task termination queue failed", e);
+                    }
+                }
+            }, WAKEUP_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    synchronized int getUnconfirmedCount() {
+        int count = 0;
+        for (PendingStop stop : pending) {
+            if (stop.stopRequestedAt > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sends due StopTask calls and confirms previously stopped tasks, one cluster at a time. Only called on the worker
+     * thread.
+     */
+    void process() {
+        // terminations enqueued from now on need another pass
+        WAKEUP.set(false);
+        if (dirty) {
+            // persist what was enqueued since the last pass before acting on it
+            save();
+        }
+        Map<String, List<PendingStop>> byCluster = new LinkedHashMap<String, List<PendingStop>>();
+        synchronized (this) {
+            for (PendingStop stop : pending) {
+                String key = stop.credentialsId + '|' + stop.regionName + '|' + stop.clusterArn;
+                List<PendingStop> stops = byCluster.get(key);
+                if (stops == null) {
+                    stops = new ArrayList<PendingStop>();
+                    byCluster.put(key, stops);
+                }
+                stops.add(stop);
+            }
+        }
+        if (byCluster.isEmpty()) {
+            return;
+        }
+
+        List<PendingStop> done = new ArrayList<PendingStop>();
+        try {
+            for (List<PendingStop> stops : byCluster.values()) {
+                try {
+                    processCluster(stops, done);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to process task terminations for cluster " + stops.get(0).clusterArn, e);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                if (pending.removeAll(done)) {
+                    dirty = true;
+                }
+            }
+            if (dirty) {
+                save();
+            }
+        }
+    }
+
+    private void processCluster(List<PendingStop> stops, List<PendingStop> done) {
+        PendingStop first = stops.get(0);
+        ECSService ecsService = ECSService.get(first.credentialsId, first.regionName);
+        long now = System.currentTimeMillis();
+
+        Map<String, PendingStop> unconfirmed = new HashMap<String, PendingStop>();
+        List<PendingStop> due = new ArrayList<PendingStop>();
+        synchronized (this) {
+            for (PendingStop stop : stops) {
+                if (stop.stopRequestedAt > 0) {
+                    if (now - stop.stopRequestedAt >= MIN_CONFIRM_MILLIS) {
+                        unconfirmed.put(stop.taskArn, stop);
+                    }
+                } else if (stop.nextAttemptAt <= now) {
+                    due.add(stop);
+                }
+            }
+        }
+
+        // confirm the tasks we already asked to stop
+        List<String> arns = new ArrayList<String>(unconfirmed.keySet());
+        for (int i = 0; i < arns.size(); i += ECSService.DESCRIBE_TASKS_BATCH) {
+            DescribeTasksResult result = ecsService.describeTasks(first.clusterArn, arns.subList(i, Math.min(i + ECSService.DESCRIBE_TASKS_BATCH, arns.size())));
+            for (Task task : result.getTasks()) {
+                PendingStop stop = unconfirmed.get(task.getTaskArn());
+                if (stop == null) {
+                    continue;
+                }
+                if ("STOPPED".equals(task.getLastStatus())) {
+                    LOGGER.log(Level.FINE, "Confirmed task {0} is stopped", task.getTaskArn());
+                    FargateMetrics.meter("terminations", "confirmed").mark();
+                    done.add(stop);
+                } else if (now - getStopRequestedAt(stop) > CONFIRM_TIMEOUT_MILLIS) {
+                    LOGGER.log(Level.WARNING, "Task {0} is still {1} after being stopped, stopping it again", new Object[]{task.getTaskArn(), task.getLastStatus()});
+                    stopRequested(stop, 0);
+                    due.add(stop);
+                }
+            }
+            for (Failure failure : result.getFailures()) {
+                PendingStop stop = unconfirmed.get(failure.getArn());
+                if (stop != null && "MISSING".equals(failure.getReason())) {
+                    // stopped tasks are only described for a while, a missing task is gone
+                    done.add(stop);
+                }
+            }
+        }
+
+        // stop the others, paced per cluster
+        long pause = STOPS_PER_SECOND > 0 ? 1000L / STOPS_PER_SECOND : 0;
+        for (PendingStop stop : due) {
+            if (done.contains(stop)) {
+                continue;
+            }
+            try {
+                ecsService.stopTask(stop.taskArn, stop.clusterArn);
+                stopRequested(stop, System.currentTimeMillis());
+                LOGGER.log(Level.FINE, "Requested stop of task {0}", stop.taskArn);
+            } catch (AmazonServiceException e) {
+                if (isUnknownTask(e)) {
+                    LOGGER.log(Level.FINE, "Task {0} no longer exists: {1}", new Object[]{stop.taskArn, e.getMessage()});
+                    done.add(stop);
+                } else {
+                    retryLater(stop, e);
+                }
+            } catch (RuntimeException e) {
+                retryLater(stop, e);
+            }
+            if (pause > 0) {
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized long getStopRequestedAt(PendingStop stop) {
+        return stop.stopRequestedAt;
+    }
+
+    private synchronized void stopRequested(PendingStop stop, long when) {
+        stop.stopRequestedAt = when;
+        dirty = true;
+    }
+
+    private static boolean isUnknownTask(AmazonServiceException e) {
+        return StringUtils.containsIgnoreCase(e.getMessage(), "task not found")
+                || StringUtils.containsIgnoreCase(e.getMessage(), "The referenced task was not found");
+    }
+
+    private void retryLater(PendingStop stop, Exception e) {
+        long backoff;
+        int attempts;
+        synchronized (this) {
+            attempts = ++stop.attempts;
+            backoff = Math.min(MAX_BACKOFF_MILLIS, 1000L << Math.min(attempts, 20));
+            stop.nextAttemptAt = System.currentTimeMillis() + backoff;
+            dirty = true;
+        }
+        FargateMetrics.meter("terminations", "failures").mark();
+        LOGGER.log(attempts > 5 ? Level.SEVERE : Level.WARNING,
+                "Couldn't stop task arn " + stop.taskArn + " (attempt " + attempts + "), retrying in " + backoff + "ms: " + e.getMessage());
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getInstance().getRootDir(), TaskTerminationQueue.class.getName() + ".xml"));
+    }
+
+    private void load() {
+        XmlFile file = getConfigFile();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            file.unmarshal(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized void save() {
+        if (BulkChange.contains(this)) {
+            return;
+        }
+        try {
+            dirty = false;
+            XmlFile file = getConfigFile();
+            file.write(this);
+            SaveableListener.fireOnChange(this, file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save task termination queue", e);
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOBS_LOADED)
+    public static void start() {
+        final TaskTerminationQueue queue = get();
+        if (queue.size() > 0) {
+            LOGGER.log(Level.INFO, "Resuming termination of {0} fargate tasks", queue.size());
+        }
+        FargateMetrics.gauge(new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return queue.size();
+            }
+        }, "terminations", "queued");
+        FargateMetrics.gauge(new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return queue.getUnconfirmedCount();
+            }
+        }, "terminations", "unconfirmed");
+        EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.process();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Task termination queue failed", e);
+                }
+            }
+        }, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    static final class PendingStop {
+        private final String credentialsId;
+        private final String regionName;
+        private final String clusterArn;
+        private final String taskArn;
+        private int attempts;
+        private long nextAttemptAt;
+        /**
+         * When StopTask succeeded, zero until then.
+         */
+        private long stopRequestedAt;
+
+        PendingStop(String credentialsId, String regionName, String clusterArn, String taskArn) {
+            this.credentialsId = credentialsId;
+            this.regionName = regionName;
+            this.clusterArn = clusterArn;
+            this.taskArn = taskArn;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package org.jenkinsci.fargate;
+
+import hudson.BulkChange;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Item;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.model.queue.SubTask;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.apache.commons.lang3.tuple.Pair;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * CPU and memory used by the last builds of every job on every template, as sampled by {@link UsageSampler}, and the
+ * smallest Fargate size fitting them.
+ *
+ * A recommendation needs {@link #MIN_BUILDS} builds. It is the cheapest cpu and memory combination offered by
+ * {@link ECSFargateTaskDefinition.DescriptorImpl#doFillCpuItems} covering the 95th percentile of the build peaks plus
+ * {@link #HEADROOM}. A build that used nearly all of its size may have been throttled or killed, it asks for half more.
+ * Recommendations are shown on the job page, and applied as task overrides on templates that opt in.
+ */
+final class UsageHistory implements Saveable {
+
+    private static final Logger LOGGER = Logger.getLogger(UsageHistory.class.getName());
+
+    /**
+     * Set to false to stop sampling agents.
+     */
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(UsageHistory.class.getName() + ".enabled", "true"));
+
+    static final int MAX_BUILDS = Integer.getInteger(UsageHistory.class.getName() + ".maxBuilds", 20);
+
+    static final int MIN_BUILDS = Integer.getInteger(UsageHistory.class.getName() + ".minBuilds", 5);
+
+    static final double HEADROOM = Double.parseDouble(System.getProperty(UsageHistory.class.getName() + ".headroom", "1.2"));
+
+    /**
+     * Histories without a build for that long are dropped, their job was likely renamed or deleted.
+     */
+    private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    private static volatile UsageHistory instance;
+
+    /**
+     * Keyed by job full name and template name.
+     */
+    private ConcurrentHashMap<String, JobHistory> jobs = new ConcurrentHashMap<String, JobHistory>();
+
+    private transient volatile boolean dirty;
+
+    private UsageHistory() {
+    }
+
+    private Object readResolve() {
+        if (jobs == null) {
+            jobs = new ConcurrentHashMap<String, JobHistory>();
+        }
+        return this;
+    }
+
+    static UsageHistory get() {
+        UsageHistory history = instance;
+        if (history == null) {
+            synchronized (UsageHistory.class) {
+                history = instance;
+                if (history == null) {
+                    history = new UsageHistory();
+                    history.load();
+                    instance = history;
+                }
+            }
+        }
+        return history;
+    }
+
+    void record(String job, String template, BuildUsage usage) {
+        String key = job + '@' + template;
+        JobHistory history = jobs.get(key);
+        if (history == null) {
+            history = new JobHistory(job, template);
+            JobHistory existing = jobs.putIfAbsent(key, history);
+            if (existing != null) {
+                history = existing;
+            }
+        }
+        history.add(usage);
+        dirty = true;
+        LOGGER.log(Level.FINE, "Recorded usage of {0} on {1}: {2}", new Object[]{job, template, usage});
+    }
+
+    /**
+     * @return the histories of the job, one per template it ran on.
+     */
+    List<JobHistory> getHistories(String job) {
+        List<JobHistory> found = new ArrayList<JobHistory>();
+        for (JobHistory history : jobs.values()) {
+            if (history.job.equals(job)) {
+                found.add(history);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the overrides applying the recommended size to the task, when its template applies recommendations
+     * and the recommendation differs from the template size.
+     */
+    @CheckForNull
+    ECSFargateTaskOverrideAction getRecommendedOverrides(Queue.Task task) {
+        Label label = task.getAssignedLabel();
+        ECSFargateConfig config = ECSFargateConfig.getEcsFargateConfig();
+        if (label == null || !label.isAtom() || config == null) {
+            return null;
+        }
+        Pair<ECSCluster, ECSFargateTaskDefinition> template = config.getTemplate(label.getName());
+        if (template == null || !template.getValue().isApplyRecommendedSize()) {
+            return null;
+        }
+        JobHistory history = jobs.get(getJobName(task) + '@' + template.getValue().getName());
+        Size size = history == null ? null : history.getRecommendation();
+        if (size == null || size.matches(template.getValue())) {
+            return null;
+        }
+        return new ECSFargateTaskOverrideAction(null, size.memory, size.cpu, null);
+    }
+
+    static String getJobName(SubTask task) {
+        Queue.Task owner = task.getOwnerTask();
+        return owner instanceof Item ? ((Item) owner).getFullName() : owner.getFullDisplayName();
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getInstance().getRootDir(), UsageHistory.class.getName() + ".xml"));
+    }
+
+    private void load() {
+        XmlFile file = getConfigFile();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            file.unmarshal(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized void save() {
+        if (BulkChange.contains(this)) {
+            return;
+        }
+        try {
+            XmlFile file = getConfigFile();
+            file.write(this);
+            SaveableListener.fireOnChange(this, file);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save usage history", e);
+        }
+    }
+
+    private void expire() {
+        long oldest = System.currentTimeMillis() - RETENTION_MILLIS;
+        for (JobHistory history : jobs.values()) {
+            if (history.getLastBuild() < oldest) {
+                jobs.remove(history.job + '@' + history.template, history);
+                dirty = true;
+            }
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOBS_LOADED)
+    public static void start() {
+        if (!ENABLED) {
+            return;
+        }
+        final UsageHistory history = get();
+        Timer.get().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                history.expire();
+                if (history.dirty) {
+                    history.save();
+                }
+            }
+        }, 10, 10, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Usage of the last builds of a job on a template.
+     */
+    static final class JobHistory {
+        private final String job;
+        private final String template;
+        private final List<BuildUsage> builds = new ArrayList<BuildUsage>();
+
+        private transient Size recommendation;
+        private transient boolean computed;
+
+        JobHistory(String job, String template) {
+            this.job = job;
+            this.template = template;
+        }
+
+        synchronized void add(BuildUsage usage) {
+            builds.add(usage);
+            while (builds.size() > MAX_BUILDS) {
+                builds.remove(0);
+            }
+            computed = false;
+        }
+
+        public String getTemplate() {
+            return template;
+        }
+
+        public synchronized int getBuilds() {
+            return builds.size();
+        }
+
+        synchronized long getLastBuild() {
+            return builds.isEmpty() ? 0 : builds.get(builds.size() - 1).timestamp;
+        }
+
+        public synchronized String getSummary() {
+            double avgCpu = 0, peakCpu = 0, avgMemory = 0, peakMemory = 0;
+            for (BuildUsage build : builds) {
+                avgCpu += build.avgCpu / builds.size();
+                avgMemory += build.avgMemory / builds.size();
+                peakCpu = Math.max(peakCpu, build.peakCpu);
+                peakMemory = Math.max(peakMemory, build.peakMemory);
+            }
+            return String.format(Locale.ENGLISH, "%.2f vCPU on average, %.2f at peak; %.2f GB of memory on average, %.2f at peak",
+                    avgCpu, peakCpu, avgMemory, peakMemory);
+        }
+
+        /**
+         * @return the recommended size, or null while there are too few builds.
+         */
+        @CheckForNull
+        public synchronized Size getRecommendation() {
+            if (!computed) {
+                recommendation = builds.size() < MIN_BUILDS ? null : recommend();
+                computed = true;
+            }
+            return recommendation;
+        }
+
+        private Size recommend() {
+            double[] cpu = new double[builds.size()];
+            double[] memory = new double[builds.size()];
+            for (int i = 0; i < builds.size(); i++) {
+                BuildUsage build = builds.get(i);
+                cpu[i] = build.peakCpu >= 0.9 * build.sizeCpu ? build.sizeCpu * 1.5 : build.peakCpu;
+                memory[i] = build.peakMemory >= 0.9 * build.sizeMemory ? build.sizeMemory * 1.5 : build.peakMemory;
+            }
+            return Size.smallest(p95(cpu) * HEADROOM, p95(memory) * HEADROOM);
+        }
+
+        static double p95(double[] values) {
+            Arrays.sort(values);
+            return values[(int) Math.ceil(0.95 * values.length) - 1];
+        }
+    }
+
+    /**
+     * What a single build used, cpu in vCPU and memory in GB.
+     */
+    static final class BuildUsage {
+        private final long timestamp = System.currentTimeMillis();
+        private final double avgCpu;
+        private final double peakCpu;
+        private final double avgMemory;
+        private final double peakMemory;
+        /**
+         * Size of the task the build ran in.
+         */
+        private final double sizeCpu;
+        private final double sizeMemory;
+
+        BuildUsage(double avgCpu, double peakCpu, double avgMemory, double peakMemory, double sizeCpu, double sizeMemory) {
+            this.avgCpu = avgCpu;
+            this.peakCpu = peakCpu;
+            this.avgMemory = avgMemory;
+            this.peakMemory = peakMemory;
+            this.sizeCpu = sizeCpu;
+            this.sizeMemory = sizeMemory;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "cpu %.2f/%.2f of %.2f, memory %.2f/%.2f of %.2f",
+                    avgCpu, peakCpu, sizeCpu, avgMemory, peakMemory, sizeMemory);
+        }
+    }
+
+    /**
+     * A cpu and memory combination, as values of the template form.
+     */
+    static final class Size {
+        /**
+         * On demand price per vCPU hour and per GB hour, only their ratio matters.
+         */
+        private static final double CPU_PRICE = 0.04048;
+        private static final double MEMORY_PRICE = 0.004445;
+
+        private final String cpu;
+        private final String memory;
+
+        Size(String cpu, String memory) {
+            this.cpu = cpu;
+            this.memory = memory;
+        }
+
+        public String getCpu() {
+            return cpu;
+        }
+
+        public String getMemory() {
+            return memory;
+        }
+
+        /**
+         * @return the cheapest valid size with at least the given cpu and memory, or the largest one.
+         */
+        static Size smallest(double cpu, double memory) {
+            ECSFargateTaskDefinition.DescriptorImpl descriptor = ECSFargateTaskDefinition.getDescriptr();
+            Size best = null;
+            double bestPrice = Double.MAX_VALUE;
+            Size largest = null;
+            for (ListBoxModel.Option memoryOption : descriptor.doFillMemoryItems()) {
+                double gb = Double.parseDouble(memoryOption.value);
+                for (ListBoxModel.Option cpuOption : descriptor.doFillCpuItems(memoryOption.value)) {
+                    double vcpu = Double.parseDouble(cpuOption.value);
+                    Size size = new Size(cpuOption.value, memoryOption.value);
+                    largest = size;
+                    double price = vcpu * CPU_PRICE + gb * MEMORY_PRICE;
+                    if (vcpu >= cpu && gb >= memory && price < bestPrice) {
+                        best = size;
+                        bestPrice = price;
+                    }
+                }
+            }
+            return best != null ? best : largest;
+        }
+
+        boolean matches(ECSFargateTaskDefinition template) {
+            AdmissionController.Usage configured = AdmissionController.Usage.of(template, null);
+            return Double.parseDouble(cpu) == configured.cpu && Double.parseDouble(memory) == configured.memory;
+        }
+
+        @Override
+        public String toString() {
+            return cpu + " vCPU and " + memory + " GB";
+        }
+    }
+}
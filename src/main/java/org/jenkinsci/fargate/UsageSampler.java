@@ -0,0 +1,284 @@
+package org.jenkinsci.fargate;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import jenkins.security.MasterToSlaveCallable;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the CPU and memory used by the container of every fargate agent while it runs a build, and hands the
+ * usage of each build to the {@link UsageHistory}.
+ *
+ * Inside ECS the agent reads the stats of its container from the task metadata endpoint. Elsewhere, for instance when
+ * the agent image runs in a local docker daemon, it reads the cgroup of its container instead.
+ */
+@Extension
+public class UsageSampler extends ComputerListener {
+
+    private static final Logger LOGGER = Logger.getLogger(UsageSampler.class.getName());
+
+    static final long INTERVAL_SECONDS = Long.getLong(UsageSampler.class.getName() + ".intervalSeconds", 15);
+
+    private static final double GB = 1024 * 1024 * 1024;
+
+    /**
+     * Keyed by computer name.
+     */
+    private static final ConcurrentMap<String, Sampling> SAMPLINGS = new ConcurrentHashMap<String, Sampling>();
+
+    @Override
+    public void onOnline(Computer c, TaskListener listener) {
+        Node node = c.getNode();
+        if (!UsageHistory.ENABLED || !(node instanceof FargateAgent)) {
+            return;
+        }
+        Sampling sampling = new Sampling(c, (FargateAgent) node);
+        Sampling previous = SAMPLINGS.put(c.getName(), sampling);
+        if (previous != null) {
+            previous.stop();
+        }
+        sampling.future = Timer.get().scheduleWithFixedDelay(sampling, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void onOffline(Computer c, OfflineCause cause) {
+        Sampling sampling = SAMPLINGS.remove(c.getName());
+        if (sampling != null) {
+            sampling.stop();
+        }
+    }
+
+    /**
+     * Samples a single agent, one build after the other.
+     *
+     * Stats are read asynchronously so a slow agent does not hold the shared timer: every run collects the stats
+     * requested by the previous one, if they arrived, and requests the next ones.
+     */
+    private static final class Sampling implements Runnable {
+        private final Computer computer;
+        private final FargateAgent agent;
+        private volatile ScheduledFuture<?> future;
+        @CheckForNull
+        private Accumulator current;
+        @CheckForNull
+        private Request pending;
+
+        Sampling(Computer computer, FargateAgent agent) {
+            this.computer = computer;
+            this.agent = agent;
+        }
+
+        @Override
+        public synchronized void run() {
+            VirtualChannel channel = computer.getChannel();
+            if (channel == null) {
+                SAMPLINGS.remove(computer.getName(), this);
+                stop();
+                return;
+            }
+            Request request = pending;
+            if (request != null && !request.stats.isDone()) {
+                if (System.nanoTime() - request.nanos < TimeUnit.SECONDS.toNanos(4 * INTERVAL_SECONDS)) {
+                    LOGGER.log(Level.FINE, "Stats of {0} not read yet, skipping a sample", computer.getName());
+                    return;
+                }
+                LOGGER.log(Level.FINE, "Gave up reading the stats of {0}", computer.getName());
+                request.stats.cancel(true);
+                request = null;
+            }
+            pending = null;
+            if (request != null) {
+                try {
+                    long[] stats = request.stats.get();
+                    if (stats == null) {
+                        LOGGER.log(Level.FINE, "No container stats on {0}, not sampling it", computer.getName());
+                        SAMPLINGS.remove(computer.getName(), this);
+                        stop();
+                        return;
+                    }
+                    sample(request, stats);
+                } catch (Exception e) {
+                    LOGGER.log(Level.FINE, "Failed to sample " + computer.getName(), e);
+                }
+            }
+            try {
+                pending = new Request(getCurrentExecutable(), System.nanoTime(), channel.callAsync(new ReadStats()));
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to sample " + computer.getName(), e);
+            }
+        }
+
+        /**
+         * Builds are told apart by their executable, so back to back builds of the same job on a reused agent are
+         * recorded separately.
+         */
+        private void sample(Request request, long[] stats) {
+            if (current != null && current.executable != request.executable) {
+                flush();
+            }
+            if (request.executable != null) {
+                if (current == null) {
+                    current = new Accumulator(request.executable);
+                }
+                current.add(request.nanos, stats[0], stats[1]);
+            }
+        }
+
+        synchronized void stop() {
+            ScheduledFuture<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            if (pending != null) {
+                pending.stats.cancel(true);
+                pending = null;
+            }
+            flush();
+        }
+
+        @CheckForNull
+        private Queue.Executable getCurrentExecutable() {
+            for (Executor executor : computer.getExecutors()) {
+                Queue.Executable executable = executor.getCurrentExecutable();
+                if (executable != null) {
+                    return executable;
+                }
+            }
+            return null;
+        }
+
+        private void flush() {
+            Accumulator done = current;
+            current = null;
+            if (done == null || done.samples < 2) {
+                return;
+            }
+            ECSFargateConfig config = ECSFargateConfig.getEcsFargateConfig();
+            Pair<ECSCluster, ECSFargateTaskDefinition> template = config == null ? null : config.getTemplate(agent.getTemplateLabel(), agent.getClusterArn());
+            if (template == null) {
+                return;
+            }
+            AdmissionController.Usage size = AdmissionController.Usage.of(template.getValue(), agent.getOverrideAction());
+            double avgCpu = (done.lastCpu - done.firstCpu) / (double) (done.lastNanos - done.firstNanos);
+            UsageHistory.get().record(UsageHistory.getJobName(done.executable.getParent()), agent.getTemplateLabel(), new UsageHistory.BuildUsage(
+                    avgCpu, done.peakCpu, done.memory / done.samples, done.peakMemory, size.cpu, size.memory));
+        }
+    }
+
+    /**
+     * Stats requested from an agent, with the build running when they were.
+     */
+    private static final class Request {
+        @CheckForNull
+        private final Queue.Executable executable;
+        private final long nanos;
+        private final Future<long[]> stats;
+
+        Request(@CheckForNull Queue.Executable executable, long nanos, Future<long[]> stats) {
+            this.executable = executable;
+            this.nanos = nanos;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * Usage of the build being sampled, cpu in vCPU and memory in GB.
+     */
+    private static final class Accumulator {
+        private final Queue.Executable executable;
+        private int samples;
+        private long firstNanos;
+        private long firstCpu;
+        private long lastNanos;
+        private long lastCpu;
+        private double peakCpu;
+        private double memory;
+        private double peakMemory;
+
+        Accumulator(Queue.Executable executable) {
+            this.executable = executable;
+        }
+
+        void add(long now, long cpuNanos, long memoryBytes) {
+            if (samples == 0) {
+                firstNanos = now;
+                firstCpu = cpuNanos;
+            } else {
+                peakCpu = Math.max(peakCpu, (cpuNanos - lastCpu) / (double) (now - lastNanos));
+            }
+            lastNanos = now;
+            lastCpu = cpuNanos;
+            memory += memoryBytes / GB;
+            peakMemory = Math.max(peakMemory, memoryBytes / GB);
+            samples++;
+        }
+    }
+
+    /**
+     * Reads the CPU time consumed so far, in nanoseconds, and the memory used without page cache, in bytes, of the
+     * container the agent runs in. Null when neither the metadata endpoint nor a cgroup is available.
+     */
+    private static final class ReadStats extends MasterToSlaveCallable<long[], IOException> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public long[] call() throws IOException {
+            String metadata = System.getenv("ECS_CONTAINER_METADATA_URI_V4");
+            if (metadata != null) {
+                JSONObject stats = JSONObject.fromObject(IOUtils.toString(new URL(metadata + "/stats"), "UTF-8"));
+                JSONObject memory = stats.getJSONObject("memory_stats");
+                JSONObject details = memory.optJSONObject("stats");
+                long cache = details == null ? 0 : details.optLong("cache");
+                return new long[]{stats.getJSONObject("cpu_stats").getJSONObject("cpu_usage").getLong("total_usage"), memory.getLong("usage") - cache};
+            }
+            File cpuacct = new File("/sys/fs/cgroup/cpuacct/cpuacct.usage");
+            if (cpuacct.exists()) {
+                long memory = readLong(new File("/sys/fs/cgroup/memory/memory.usage_in_bytes"));
+                return new long[]{readLong(cpuacct), memory - readStat(new File("/sys/fs/cgroup/memory/memory.stat"), "total_inactive_file")};
+            }
+            File cpuStat = new File("/sys/fs/cgroup/cpu.stat");
+            if (cpuStat.exists()) {
+                long memory = readLong(new File("/sys/fs/cgroup/memory.current"));
+                return new long[]{readStat(cpuStat, "usage_usec") * 1000, memory - readStat(new File("/sys/fs/cgroup/memory.stat"), "inactive_file")};
+            }
+            return null;
+        }
+
+        private static long readLong(File file) throws IOException {
+            return Long.parseLong(FileUtils.readFileToString(file).trim());
+        }
+
+        private static long readStat(File file, String key) throws IOException {
+            for (String line : FileUtils.readLines(file)) {
+                if (line.startsWith(key + ' ')) {
+                    return Long.parseLong(StringUtils.substringAfter(line, " ").trim());
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.codahale.metrics.Timer;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.DirScanner;
+import hudson.util.NamingThreadFactory;
+import hudson.util.io.ArchiverFactory;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import javax.annotation.CheckForNull;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Seeds the workspace of new agents from a snapshot of the workspace left by the last successful build of the job.
+ *
+ * After a successful build, the {@link ECSFargateTaskDefinition#getSnapshotPaths paths} of the template are archived
+ * on the agent and stored under a key named after their sha256, then the {@code latest} pointer of the job is moved to
+ * it. Before a new agent of the job comes online, the latest snapshot is downloaded in parallel ranges, checked and
+ * extracted into the workspace. Snapshots are optional: a missing or broken one only means an empty workspace.
+ *
+ * Previous snapshots are never deleted, an agent may still be downloading one while the pointer moves. They are left
+ * to a lifecycle rule of the bucket expiring objects under {@link #PREFIX}. Saving an unchanged workspace refreshes
+ * its snapshot, so the rule only expires snapshots no longer saved.
+ *
+ * The store is S3 or any S3 compatible one, accessed with the credentials of the cluster. Agents only get presigned
+ * URLs, valid for {@link #URL_EXPIRY_MINUTES}.
+ */
+final class WorkspaceSnapshots {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspaceSnapshots.class.getName());
+
+    static final String PREFIX = "jenkins-fargate-snapshots/";
+
+    static final long URL_EXPIRY_MINUTES = Long.getLong(WorkspaceSnapshots.class.getName() + ".urlExpiryMinutes", 60);
+
+    static final int CHUNK_BYTES = Integer.getInteger(WorkspaceSnapshots.class.getName() + ".chunkBytes", 8 * 1024 * 1024);
+
+    static final int DOWNLOAD_THREADS = Integer.getInteger(WorkspaceSnapshots.class.getName() + ".downloadThreads", 4);
+
+    private WorkspaceSnapshots() {
+    }
+
+    /**
+     * Saves the workspace of the build that just completed on the agent, only when it is known to have succeeded.
+     */
+    static void save(ECSFargateSlave agent, @CheckForNull Run<?, ?> run, TaskListener listener) throws InterruptedException {
+        Result result = run == null ? null : run.getResult();
+        if (result == null || result.isWorseThan(Result.SUCCESS)) {
+            return;
+        }
+        Pair<ECSCluster, ECSFargateTaskDefinition> template = getTemplate(agent);
+        FilePath root = agent.getWorkspaceRoot();
+        if (template == null || root == null) {
+            return;
+        }
+        String bucket = template.getValue().getSnapshotBucket();
+        String prefix = PREFIX + agent.getJobName() + '/';
+        Timer.Context timer = FargateMetrics.timer("snapshots", "save").time();
+        Archive archive = null;
+        try {
+            archive = root.child(agent.getJobName()).act(new Pack(template.getValue().getSnapshotPaths()));
+            if (archive == null) {
+                listener.getLogger().println("Nothing to snapshot in the workspace of " + agent.getJobName());
+                return;
+            }
+            AmazonS3 s3 = getClient(template);
+            String key = prefix + archive.sha256 + ".tar.gz";
+            if (s3.doesObjectExist(bucket, key)) {
+                // copied onto itself so a lifecycle rule counts its age from this save
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentType(Upload.CONTENT_TYPE);
+                metadata.addUserMetadata("saved", Long.toString(System.currentTimeMillis()));
+                s3.copyObject(new CopyObjectRequest(bucket, key, bucket, key).withNewObjectMetadata(metadata));
+                FargateMetrics.meter("snapshots", "unchanged").mark();
+            } else {
+                URL url = s3.generatePresignedUrl(new GeneratePresignedUrlRequest(bucket, key, HttpMethod.PUT)
+                        .withContentType(Upload.CONTENT_TYPE)
+                        .withExpiration(getExpiration()));
+                root.getChannel().call(new Upload(url.toString(), archive.path));
+                FargateMetrics.meter("snapshots", "uploads").mark();
+                FargateMetrics.histogram("snapshots", "bytes").update(archive.size);
+            }
+            s3.putObject(bucket, prefix + "latest", archive.sha256);
+            listener.getLogger().println("Saved workspace snapshot " + archive.sha256 + " of " + agent.getJobName() + " (" + archive.size + " bytes)");
+        } catch (IOException | RuntimeException e) {
+            FargateMetrics.meter("snapshots", "failures").mark();
+            LOGGER.log(Level.WARNING, "Failed to save the workspace snapshot of " + agent.getJobName(), e);
+            listener.getLogger().println("Failed to save the workspace snapshot: " + e);
+        } finally {
+            timer.stop();
+            if (archive != null) {
+                discard(root, archive.path);
+            }
+        }
+    }
+
+    /**
+     * Extracts the latest snapshot of the job of the agent into its workspace, leaving the workspace empty when there
+     * is none or it cannot be restored.
+     */
+    static void restore(ECSFargateSlave agent, FilePath root, TaskListener listener) throws InterruptedException {
+        Pair<ECSCluster, ECSFargateTaskDefinition> template = getTemplate(agent);
+        if (template == null) {
+            return;
+        }
+        String bucket = template.getValue().getSnapshotBucket();
+        String prefix = PREFIX + agent.getJobName() + '/';
+        FilePath workspace = root.child("workspace").child(agent.getJobName());
+        Timer.Context timer = FargateMetrics.timer("snapshots", "restore").time();
+        try {
+            AmazonS3 s3 = getClient(template);
+            if (!s3.doesObjectExist(bucket, prefix + "latest")) {
+                FargateMetrics.meter("snapshots", "misses").mark();
+                listener.getLogger().println("No workspace snapshot of " + agent.getJobName() + " yet");
+                return;
+            }
+            String sha256 = s3.getObjectAsString(bucket, prefix + "latest").trim();
+            String key = prefix + sha256 + ".tar.gz";
+            long size = s3.getObjectMetadata(bucket, key).getContentLength();
+            URL url = s3.generatePresignedUrl(new GeneratePresignedUrlRequest(bucket, key, HttpMethod.GET)
+                    .withExpiration(getExpiration()));
+            workspace.act(new Unpack(url.toString(), size, sha256, CHUNK_BYTES, DOWNLOAD_THREADS));
+            FargateMetrics.meter("snapshots", "hits").mark();
+            listener.getLogger().println("Restored workspace snapshot " + sha256 + " of " + agent.getJobName() + " (" + size + " bytes)");
+        } catch (IOException | RuntimeException e) {
+            FargateMetrics.meter("snapshots", "failures").mark();
+            LOGGER.log(Level.WARNING, "Failed to restore the workspace snapshot of " + agent.getJobName() + ", starting from an empty workspace", e);
+            listener.getLogger().println("Failed to restore the workspace snapshot, starting from an empty workspace: " + e);
+            try {
+                workspace.deleteRecursive();
+            } catch (IOException cleanup) {
+                LOGGER.log(Level.FINE, "Failed to clean the workspace of " + agent.getJobName(), cleanup);
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @CheckForNull
+    private static Pair<ECSCluster, ECSFargateTaskDefinition> getTemplate(ECSFargateSlave agent) {
+        ECSFargateConfig config = ECSFargateConfig.getEcsFargateConfig();
+        Pair<ECSCluster, ECSFargateTaskDefinition> template = config == null ? null
+                : config.getTemplate(agent.getTemplateLabel(), agent.getClusterArn());
+        return template == null || !template.getValue().isSnapshots() || StringUtils.isEmpty(agent.getJobName()) ? null : template;
+    }
+
+    private static AmazonS3 getClient(Pair<ECSCluster, ECSFargateTaskDefinition> template) {
+        return AWSClientRegistry.get().getS3Client(template.getKey().getCredentialId(), template.getKey().getRegion(),
+                template.getValue().getSnapshotEndpoint());
+    }
+
+    private static Date getExpiration() {
+        return new Date(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(URL_EXPIRY_MINUTES));
+    }
+
+    private static void discard(FilePath root, String path) throws InterruptedException {
+        try {
+            new FilePath(root.getChannel(), path).delete();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to delete " + path, e);
+        }
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Restores snapshots before builds can start on the agent.
+     */
+    @Extension
+    public static class RestoreListener extends ComputerListener {
+        @Override
+        public void preOnline(Computer c, Channel channel, FilePath root, TaskListener listener) throws IOException, InterruptedException {
+            Node node = c.getNode();
+            if (node instanceof ECSFargateSlave) {
+                restore((ECSFargateSlave) node, root, listener);
+            }
+        }
+    }
+
+    /**
+     * A snapshot archived in a temporary file of the agent.
+     */
+    private static final class Archive implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String sha256;
+        private final String path;
+        private final long size;
+
+        Archive(String sha256, String path, long size) {
+            this.sha256 = sha256;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Archives the matching files of the workspace. Null when none matches.
+     */
+    private static final class Pack extends MasterToSlaveFileCallable<Archive> {
+        private static final long serialVersionUID = 1L;
+        private final String includes;
+
+        Pack(String includes) {
+            this.includes = includes;
+        }
+
+        @Override
+        public Archive invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            if (!workspace.isDirectory()) {
+                return null;
+            }
+            File archive = File.createTempFile("workspace-snapshot", ".tar.gz");
+            MessageDigest digest = sha256();
+            int files;
+            try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(archive)), digest)) {
+                files = new FilePath(workspace).archive(ArchiverFactory.TARGZ, out, new DirScanner.Glob(includes, null));
+            } catch (IOException | RuntimeException e) {
+                archive.delete();
+                throw e;
+            }
+            if (files == 0) {
+                archive.delete();
+                return null;
+            }
+            return new Archive(Util.toHexString(digest.digest()), archive.getAbsolutePath(), archive.length());
+        }
+    }
+
+    /**
+     * Uploads an archive with a presigned PUT.
+     */
+    private static final class Upload extends MasterToSlaveCallable<Void, IOException> {
+        private static final long serialVersionUID = 1L;
+        static final String CONTENT_TYPE = "application/gzip";
+        private final String url;
+        private final String path;
+
+        Upload(String url, String path) {
+            this.url = url;
+            this.path = path;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            File archive = new File(path);
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+            connection.setFixedLengthStreamingMode(archive.length());
+            try (InputStream in = new FileInputStream(archive); OutputStream out = connection.getOutputStream()) {
+                IOUtils.copy(in, out);
+            }
+            int status = connection.getResponseCode();
+            connection.disconnect();
+            if (status / 100 != 2) {
+                throw new IOException("Upload of the snapshot failed with HTTP " + status);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Downloads an archive in parallel ranges, checks its sha256 and extracts it into the workspace.
+     */
+    private static final class Unpack extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final String url;
+        private final long size;
+        private final String sha256;
+        private final int chunkBytes;
+        private final int threads;
+
+        Unpack(String url, long size, String sha256, int chunkBytes, int threads) {
+            this.url = url;
+            this.size = size;
+            this.sha256 = sha256;
+            this.chunkBytes = chunkBytes;
+            this.threads = threads;
+        }
+
+        @Override
+        public Void invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            File archive = File.createTempFile("workspace-snapshot", ".tar.gz");
+            try {
+                download(archive);
+                MessageDigest digest = sha256();
+                try (InputStream in = new DigestInputStream(new FileInputStream(archive), digest)) {
+                    IOUtils.copy(in, NullOutputStream.NULL_OUTPUT_STREAM);
+                }
+                String actual = Util.toHexString(digest.digest());
+                if (!actual.equals(sha256)) {
+                    throw new IOException("Snapshot checksum mismatch, expected " + sha256 + " but got " + actual);
+                }
+                FilePath target = new FilePath(workspace);
+                target.mkdirs();
+                target.untarFrom(new FileInputStream(archive), FilePath.TarCompression.GZIP);
+            } finally {
+                archive.delete();
+            }
+            return null;
+        }
+
+        private void download(final File archive) throws IOException, InterruptedException {
+            try (RandomAccessFile file = new RandomAccessFile(archive, "rw")) {
+                file.setLength(size);
+            }
+            int chunks = (int) Math.max(1, (size + chunkBytes - 1) / chunkBytes);
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, chunks)),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Workspace snapshot download"));
+            try {
+                List<Future<Void>> parts = new ArrayList<Future<Void>>(chunks);
+                for (int i = 0; i < chunks; i++) {
+                    final long from = (long) i * chunkBytes;
+                    final long to = Math.min(size, from + chunkBytes) - 1;
+                    parts.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            downloadRange(archive, from, to);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> part : parts) {
+                    part.get();
+                }
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        private void downloadRange(File archive, long from, long to) throws IOException {
+            if (to < from) {
+                return;
+            }
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestProperty("Range", "bytes=" + from + '-' + to);
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_PARTIAL && !(status == HttpURLConnection.HTTP_OK && from == 0 && to == size - 1)) {
+                connection.disconnect();
+                throw new IOException("Download of the snapshot failed with HTTP " + status);
+            }
+            long expected = to - from + 1;
+            long written = 0;
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = connection.getInputStream(); RandomAccessFile file = new RandomAccessFile(archive, "rw")) {
+                file.seek(from);
+                int read;
+                while (written < expected && (read = in.read(buffer, 0, (int) Math.min(buffer.length, expected - written))) != -1) {
+                    file.write(buffer, 0, read);
+                    written += read;
+                }
+            } finally {
+                connection.disconnect();
+            }
+            if (written != expected) {
+                throw new IOException("Snapshot range " + from + '-' + to + " truncated after " + written + " bytes");
+            }
+        }
+    }
+}
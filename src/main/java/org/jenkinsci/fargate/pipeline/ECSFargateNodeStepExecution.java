@@ -537,7 +537,7 @@ public class ECSFargateNodeStepExecution extends AbstractStepExecutionImpl imple
 
                 if(runningTask.nodeName != null && execution == null && runningTask.launcher == null){
                     Node node = Jenkins.getInstance().getNode(runningTask.nodeName);
-                    if(node != null){
+                    if(node != null && node.toComputer() instanceof ECSFargateComputer){
                         LOGGER.log(Level.WARNING,"Interrupting before node was provisioned.");
                         ECSFargateComputer ecsFargateComputer = (ECSFargateComputer)node.toComputer();
                         ecsFargateComputer.setIsDead(true);
@@ -641,9 +641,12 @@ public class ECSFargateNodeStepExecution extends AbstractStepExecutionImpl imple
 
                     r = context.get(Run.class);
 
-                    ECSFargateComputer fargateComputer = (ECSFargateComputer) computer;
-                    fargateComputer.setCookie(cookie);
-                    fargateComputer.setParentRun(r.getExternalizableId());
+                    // pooled agents are not tied to a run
+                    if (computer instanceof ECSFargateComputer) {
+                        ECSFargateComputer fargateComputer = (ECSFargateComputer) computer;
+                        fargateComputer.setCookie(cookie);
+                        fargateComputer.setParentRun(r.getExternalizableId());
+                    }
                     listener = context.get(TaskListener.class);
                     launcher = node.createLauncher(listener);
 
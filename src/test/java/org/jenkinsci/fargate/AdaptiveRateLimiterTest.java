@@ -0,0 +1,83 @@
+package org.jenkinsci.fargate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveRateLimiterTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void firstCallDoesNotWait() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter("creds", "us-east-1", "RunTask");
+        assertEquals(0, limiter.reserve());
+    }
+
+    @Test
+    public void burstWaitsForTheRate() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter("creds", "us-east-1", "RunTask");
+        long now = System.nanoTime();
+        limiter.reserve(now);
+        long wait = limiter.reserve(now);
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / AdaptiveRateLimiter.INITIAL_RATE);
+        assertTrue("waited " + wait, wait > 0 && wait <= interval);
+        assertTrue("borrowed tokens add up", limiter.reserve(now) > wait);
+        // the tokens borrowed are paid back over time
+        assertEquals(0, limiter.reserve(now + 3 * interval));
+    }
+
+    @Test
+    public void successesRaiseTheRateUpToTheMaximum() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter("creds", "us-east-1", "RunTask");
+        limiter.onSuccess();
+        assertEquals(AdaptiveRateLimiter.INITIAL_RATE + 0.1, limiter.getRate(), 1e-9);
+        for (int i = 0; i < 10000; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(AdaptiveRateLimiter.MAX_RATE, limiter.getRate(), 1e-9);
+    }
+
+    @Test
+    public void throttlingHalvesTheRateOncePerCooldown() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter("creds", "us-east-1", "RunTask");
+        long now = System.nanoTime();
+        limiter.onThrottled(now);
+        assertEquals(AdaptiveRateLimiter.INITIAL_RATE / 2, limiter.getRate(), 1e-9);
+        // answers to calls sent at the old rate
+        limiter.onThrottled(now + AdaptiveRateLimiter.DECREASE_COOLDOWN_NANOS - 1);
+        assertEquals(AdaptiveRateLimiter.INITIAL_RATE / 2, limiter.getRate(), 1e-9);
+        limiter.onThrottled(now + AdaptiveRateLimiter.DECREASE_COOLDOWN_NANOS);
+        assertEquals(AdaptiveRateLimiter.INITIAL_RATE / 4, limiter.getRate(), 1e-9);
+    }
+
+    @Test
+    public void rateNeverDropsBelowTheMinimum() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter("creds", "us-east-1", "RunTask");
+        long now = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            limiter.onThrottled(now + i * AdaptiveRateLimiter.DECREASE_COOLDOWN_NANOS);
+        }
+        assertEquals(AdaptiveRateLimiter.MIN_RATE, limiter.getRate(), 1e-9);
+    }
+
+    @Test
+    public void limitersAndGaugesArePerAccountRegionAndApi() {
+        AdaptiveRateLimiter a = AdaptiveRateLimiter.get("account-a", "eu-west-1", "DescribeTasks");
+        assertSame(a, AdaptiveRateLimiter.get("account-a", "eu-west-1", "DescribeTasks"));
+        AdaptiveRateLimiter b = AdaptiveRateLimiter.get("account-b", "eu-west-1", "DescribeTasks");
+        assertNotSame(a, b);
+        assertNotSame(a, AdaptiveRateLimiter.get("account-a", "eu-west-1", "RunTask"));
+
+        assertTrue(FargateMetrics.registry().getGauges().containsKey(FargateMetrics.name("api", "account-a", "eu-west-1", "DescribeTasks", "rate")));
+        assertTrue(FargateMetrics.registry().getGauges().containsKey(FargateMetrics.name("api", "account-b", "eu-west-1", "DescribeTasks", "rate")));
+    }
+}
@@ -0,0 +1,122 @@
+package org.jenkinsci.fargate;
+
+import hudson.util.FormValidation;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterRouterTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TestName testName = new TestName();
+
+    /**
+     * Health is kept per cluster arn for the life of the JVM, every test gets clusters of its own.
+     */
+    private ECSCluster cluster(String name, String weight) {
+        ECSCluster cluster = new ECSCluster(name, null, "arn:aws:ecs:us-east-1:1:cluster/" + testName.getMethodName() + '-' + name,
+                "us-east-1", null, Collections.singletonList(TestTemplates.template()));
+        cluster.setWeight(weight);
+        return cluster;
+    }
+
+    private static void configure(ECSCluster... clusters) {
+        ECSFargateConfig.getEcsFargateConfig().setClusters(Arrays.asList(clusters));
+    }
+
+    private static ECSCluster first() {
+        return ClusterRouter.rank("build").get(0).getKey();
+    }
+
+    @Test
+    public void unknownAndSingleTemplates() {
+        ECSCluster only = cluster("only", null);
+        configure(only);
+        assertTrue(ClusterRouter.rank("unknown").isEmpty());
+        assertSame(only, ClusterRouter.route("build").getKey());
+    }
+
+    @Test
+    public void weightsAreWholeNumbersOfAtLeastZero() {
+        assertEquals(1, cluster("default", null).getWeight());
+        assertEquals(0, cluster("negative", "-3").getWeight());
+        assertEquals(1, cluster("invalid", "heavy").getWeight());
+        assertEquals(4, cluster("spaced", " 4 ").getWeight());
+
+        ECSCluster.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(ECSCluster.DescriptorImpl.class);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckWeight("").kind);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckWeight("0").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckWeight("-1").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckWeight("heavy").kind);
+    }
+
+    @Test
+    public void everyClusterIsRankedWhateverTheWeights() {
+        configure(cluster("a", "0"), cluster("b", "-1"), cluster("c", "0"));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(3, ClusterRouter.rank("build").size());
+        }
+    }
+
+    @Test
+    public void launchesFollowTheWeights() {
+        ECSCluster heavy = cluster("heavy", "3");
+        configure(heavy, cluster("light", "1"));
+        int draws = 4000;
+        int heavyFirst = 0;
+        for (int i = 0; i < draws; i++) {
+            List<Pair<ECSCluster, ECSFargateTaskDefinition>> ranked = ClusterRouter.rank("build");
+            assertEquals(2, ranked.size());
+            if (ranked.get(0).getKey() == heavy) {
+                heavyFirst++;
+            }
+        }
+        double share = (double) heavyFirst / draws;
+        assertTrue("heavy cluster first in " + share + " of the draws", share > 0.65 && share < 0.85);
+    }
+
+    @Test
+    public void standbyClustersOnlyTakeOverFromFailingOnes() {
+        ECSCluster primary = cluster("primary", "1");
+        ECSCluster standby = cluster("standby", "0");
+        configure(standby, primary);
+        for (int i = 0; i < 50; i++) {
+            assertSame(primary, first());
+        }
+
+        for (int i = 0; i < 4; i++) {
+            ClusterRouter.failed(primary);
+        }
+        for (int i = 0; i < 50; i++) {
+            assertSame(standby, first());
+        }
+    }
+
+    @Test
+    public void successesDoNotEndTheCooldown() {
+        ECSCluster primary = cluster("primary", "1");
+        ECSCluster standby = cluster("standby", "0");
+        configure(primary, standby);
+        for (int i = 0; i < 4; i++) {
+            ClusterRouter.failed(primary);
+        }
+        // a launch sent before the cluster tripped connects
+        ClusterRouter.succeeded(primary, 1000);
+        for (int i = 0; i < 50; i++) {
+            assertSame(standby, first());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.jenkinsci.fargate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DemandForecastTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long WEEK = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Start of an hour, hours of the week are taken in the default time zone.
+     */
+    private static final long START = 1700000000000L / HOUR * HOUR;
+
+    private TimeZone timeZone;
+
+    @Before
+    public void useUtc() {
+        timeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void restoreTimeZone() {
+        TimeZone.setDefault(timeZone);
+    }
+
+    @Test
+    public void predictsTheRecentRateWithoutHistory() {
+        DemandForecast.LabelForecast forecast = new DemandForecast.LabelForecast(START + 5 * MINUTE);
+        for (int i = 0; i < 10; i++) {
+            forecast.record(START + 5 * MINUTE + i);
+        }
+        assertFalse(forecast.roll(START + 6 * MINUTE));
+        assertEquals(1.0, forecast.predictPerMinute(START + 6 * MINUTE), 1e-9);
+    }
+
+    @Test
+    public void recentRateDecaysWhileIdle() {
+        DemandForecast.LabelForecast forecast = new DemandForecast.LabelForecast(START + 5 * MINUTE);
+        for (int i = 0; i < 10; i++) {
+            forecast.record(START + 5 * MINUTE);
+        }
+        forecast.roll(START + 16 * MINUTE);
+        assertEquals(Math.pow(0.9, 10), forecast.predictPerMinute(START + 16 * MINUTE), 1e-9);
+    }
+
+    @Test
+    public void closedHoursFeedTheSameHourNextWeek() {
+        DemandForecast.LabelForecast forecast = new DemandForecast.LabelForecast(START);
+        for (int i = 0; i < 60; i++) {
+            forecast.record(START + i * MINUTE);
+        }
+        assertTrue("the hour is closed", forecast.roll(START + HOUR));
+
+        // the horizon ends in the same hour of the week, long after the recent rate decayed
+        long now = START + WEEK + HOUR - (DemandForecast.HORIZON_MINUTES + 1) * MINUTE;
+        forecast.roll(now);
+        assertEquals(0.5, forecast.predictPerMinute(now), 1e-6);
+        // the hour after was quiet
+        assertEquals(0.0, forecast.predictPerMinute(now + HOUR), 1e-6);
+    }
+
+    @Test
+    public void arrivalsOlderThanAWeekAreForgotten() {
+        DemandForecast.LabelForecast forecast = new DemandForecast.LabelForecast(START);
+        for (int i = 0; i < 100; i++) {
+            forecast.record(START);
+        }
+        long now = START + 2 * WEEK;
+        assertTrue(forecast.roll(now));
+        assertEquals(0.0, forecast.predictPerMinute(now), 1e-9);
+    }
+}
@@ -0,0 +1,31 @@
+package org.jenkinsci.fargate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ECSServiceTest {
+
+    @Test
+    public void familyNamesStripWhitespaceAndDots() {
+        assertEquals("mycluster-build-025-05",
+                ECSService.fullQualifiedTemplateName("my \tcluster", TestTemplates.template("0.5", "0.25"), ECSFargatePool.NO_OVERRIDES));
+        assertEquals("mycluster-build-4-8",
+                ECSService.fullQualifiedTemplateName("my cluster", TestTemplates.template("0.5", "0.25"), new ECSFargateTaskOverrideAction(null, "8", "4", null)));
+    }
+
+    @Test
+    public void familyNamesKeepNonAsciiWhitespace() {
+        // families registered before must keep their names
+        assertEquals("my\u2003cluster-build-1-2",
+                ECSService.fullQualifiedTemplateName("my\u2003cluster", TestTemplates.template("2", "1"), ECSFargatePool.NO_OVERRIDES));
+        assertEquals("a\u001Cb-", ECSService.familyPrefix("a\u001C b"));
+    }
+
+    @Test
+    public void familiesStartWithTheClusterPrefix() {
+        String family = ECSService.fullQualifiedTemplateName(" my cluster ", TestTemplates.template("2", "1"), ECSFargatePool.NO_OVERRIDES);
+        assertTrue(family, family.startsWith(ECSService.familyPrefix(" my cluster ")));
+    }
+}
@@ -0,0 +1,627 @@
+package org.jenkinsci.fargate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.remoting.Engine;
+import hudson.remoting.EngineListenerAdapter;
+import hudson.remoting.FileSystemJarCache;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stand-in for the ECS and EC2 APIs used by the plugin, served over plain http on the loopback interface.
+ *
+ * ECS calls use the JSON protocol of the real service, so the AWS SDK clients can be pointed at
+ * {@link #getEndpoint()} through the {@link AWSClientRegistry#ECS_ENDPOINT_PROPERTY} and
+ * {@link AWSClientRegistry#EC2_ENDPOINT_PROPERTY} system properties. Started tasks go through PROVISIONING, PENDING
+ * and RUNNING with exponentially distributed durations, and once RUNNING a fake agent connects back to Jenkins over
+ * JNLP with the url, secret and node name found in the command of the task. Calls can be throttled, RunTask can fail
+ * for lack of capacity, and every call is delayed by a random latency. Only what the plugin uses is implemented.
+ */
+class ECSSimulator implements HttpHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSSimulator.class.getName());
+
+    static final String REGION = "us-east-1";
+    static final String ACCOUNT = "123456789012";
+    static final String CAPACITY_FAILURE = "Capacity is unavailable at this time. Please try again later or in a different availability zone";
+
+    /**
+     * Share of the calls answered with a ThrottlingException.
+     */
+    volatile double throttlingRate;
+    /**
+     * Share of the RunTask calls failing for lack of capacity.
+     */
+    volatile double capacityFailureRate;
+    /**
+     * Mean latency added to every call.
+     */
+    volatile long apiLatencyMillis = 20;
+    /**
+     * Mean durations of the task phases, see {@link SimulatedTask}.
+     */
+    volatile long provisionMillis = 200;
+    volatile long pullMillis = 200;
+    volatile long startMillis = 100;
+    /**
+     * Whether running tasks start a fake agent.
+     */
+    volatile boolean connectAgents = true;
+
+    private final HttpServer server;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4,
+            new NamingThreadFactory(new DaemonThreadFactory(), "ECSSimulator"));
+    private final File jarCache;
+
+    private final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+    private final ConcurrentMap<String, SimulatedTask> tasks = new ConcurrentHashMap<String, SimulatedTask>();
+    /**
+     * Registered revisions by family, guarded by itself.
+     */
+    private final Map<String, List<JSONObject>> families = new TreeMap<String, List<JSONObject>>();
+    private final AtomicInteger ids = new AtomicInteger();
+
+    ECSSimulator() throws IOException {
+        jarCache = Files.createTempDirectory("ecs-simulator-jars").toFile();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this);
+        server.setExecutor(Executors.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(), "ECSSimulator HTTP")));
+        server.start();
+    }
+
+    String getEndpoint() {
+        return "http://" + server.getAddress().getHostString() + ':' + server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        scheduler.shutdownNow();
+        for (SimulatedTask task : tasks.values()) {
+            task.stop("Simulator stopped");
+        }
+    }
+
+    /**
+     * @return the number of calls of the given action, or of throttled calls for <code>Throttled</code>.
+     */
+    int getCalls(String action) {
+        AtomicInteger count = calls.get(action);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return the number of calls per action, sorted by action.
+     */
+    Map<String, Integer> getCalls() {
+        Map<String, Integer> snapshot = new TreeMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> entry : calls.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the number of tasks not stopped yet.
+     */
+    int getLiveTasks() {
+        int live = 0;
+        for (SimulatedTask task : tasks.values()) {
+            if (!task.isStopped()) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String body = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+            sleep(sample(apiLatencyMillis));
+            String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+            if (target == null) {
+                handleEc2(exchange, body);
+            } else {
+                handleEcs(exchange, StringUtils.substringAfter(target, "."), body);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Simulator failed to answer", e);
+            respond(exchange, 500, "application/x-amz-json-1.1", error("ServerException", String.valueOf(e)).toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleEcs(HttpExchange exchange, String action, String body) throws IOException {
+        count(action);
+        if (ThreadLocalRandom.current().nextDouble() < throttlingRate) {
+            count("Throttled");
+            respond(exchange, 400, "application/x-amz-json-1.1", error("ThrottlingException", "Rate exceeded").toString());
+            return;
+        }
+        JSONObject request = StringUtils.isBlank(body) ? new JSONObject() : JSONObject.fromObject(body);
+        JSONObject response;
+        try {
+            response = ecs(action, request);
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "application/x-amz-json-1.1", error("ClientException", e.getMessage()).toString());
+            return;
+        }
+        respond(exchange, 200, "application/x-amz-json-1.1", response.toString());
+    }
+
+    private JSONObject ecs(String action, JSONObject request) {
+        JSONObject response = new JSONObject();
+        if ("RegisterTaskDefinition".equals(action)) {
+            JSONObject definition = register(request);
+            response.put("taskDefinition", definition.getJSONObject("taskDefinition"));
+            response.put("tags", definition.getJSONArray("tags"));
+        } else if ("DescribeTaskDefinition".equals(action)) {
+            JSONObject definition = findDefinition(request.getString("taskDefinition"));
+            if (definition == null) {
+                throw new IllegalArgumentException("Unable to describe task definition.");
+            }
+            response.put("taskDefinition", definition.getJSONObject("taskDefinition"));
+            response.put("tags", definition.getJSONArray("tags"));
+        } else if ("DeregisterTaskDefinition".equals(action)) {
+            JSONObject definition = findDefinition(request.getString("taskDefinition"));
+            if (definition == null) {
+                throw new IllegalArgumentException("Unable to describe task definition.");
+            }
+            synchronized (families) {
+                definition.getJSONObject("taskDefinition").put("status", "INACTIVE");
+            }
+            response.put("taskDefinition", definition.getJSONObject("taskDefinition"));
+        } else if ("ListTaskDefinitionFamilies".equals(action)) {
+            response.put("families", listFamilies(request.optString("familyPrefix")));
+        } else if ("ListTaskDefinitions".equals(action)) {
+            response.put("taskDefinitionArns", listDefinitions(request.optString("familyPrefix"), request.optString("status", "ACTIVE")));
+        } else if ("ListTagsForResource".equals(action)) {
+            JSONObject definition = findDefinition(request.getString("resourceArn"));
+            response.put("tags", definition == null ? new JSONArray() : definition.getJSONArray("tags"));
+        } else if ("ListClusters".equals(action)) {
+            response.put("clusterArns", new JSONArray());
+        } else if ("DescribeClusters".equals(action)) {
+            JSONArray clusters = new JSONArray();
+            for (Object arn : request.optJSONArray("clusters") == null ? new JSONArray() : request.getJSONArray("clusters")) {
+                JSONObject cluster = new JSONObject();
+                cluster.put("clusterArn", arn);
+                cluster.put("status", "ACTIVE");
+                clusters.add(cluster);
+            }
+            response.put("clusters", clusters);
+            response.put("failures", new JSONArray());
+        } else if ("RunTask".equals(action)) {
+            return runTask(request);
+        } else if ("DescribeTasks".equals(action)) {
+            JSONArray found = new JSONArray();
+            JSONArray failures = new JSONArray();
+            for (Object arn : request.getJSONArray("tasks")) {
+                SimulatedTask task = tasks.get(String.valueOf(arn));
+                if (task == null) {
+                    JSONObject failure = new JSONObject();
+                    failure.put("arn", arn);
+                    failure.put("reason", "MISSING");
+                    failures.add(failure);
+                } else {
+                    found.add(task.toJson());
+                }
+            }
+            response.put("tasks", found);
+            response.put("failures", failures);
+        } else if ("StopTask".equals(action)) {
+            SimulatedTask task = tasks.get(request.getString("task"));
+            if (task == null) {
+                throw new IllegalArgumentException("The referenced task was not found.");
+            }
+            task.stop(request.optString("reason", "Task stopped by user"));
+            response.put("task", task.toJson());
+        } else {
+            throw new IllegalArgumentException("Action " + action + " is not simulated.");
+        }
+        return response;
+    }
+
+    private JSONObject register(JSONObject request) {
+        String family = request.getString("family");
+        synchronized (families) {
+            List<JSONObject> revisions = families.get(family);
+            if (revisions == null) {
+                revisions = new ArrayList<JSONObject>();
+                families.put(family, revisions);
+            }
+            int revision = revisions.size() + 1;
+            JSONObject definition = new JSONObject();
+            definition.put("taskDefinitionArn", "arn:aws:ecs:" + REGION + ':' + ACCOUNT + ":task-definition/" + family + ':' + revision);
+            definition.put("family", family);
+            definition.put("revision", revision);
+            definition.put("status", "ACTIVE");
+            definition.put("cpu", request.optString("cpu"));
+            definition.put("memory", request.optString("memory"));
+            definition.put("containerDefinitions", request.optJSONArray("containerDefinitions") == null ? new JSONArray() : request.getJSONArray("containerDefinitions"));
+            JSONObject registered = new JSONObject();
+            registered.put("taskDefinition", definition);
+            registered.put("tags", request.optJSONArray("tags") == null ? new JSONArray() : request.getJSONArray("tags"));
+            revisions.add(registered);
+            return registered;
+        }
+    }
+
+    /**
+     * @param reference a family, resolving to its latest active revision, <code>family:revision</code> or an arn.
+     */
+    private JSONObject findDefinition(String reference) {
+        String name = reference.contains("task-definition/") ? StringUtils.substringAfter(reference, "task-definition/") : reference;
+        String family = StringUtils.substringBefore(name, ":");
+        synchronized (families) {
+            List<JSONObject> revisions = families.get(family);
+            if (revisions == null) {
+                return null;
+            }
+            if (name.contains(":")) {
+                int revision = Integer.parseInt(StringUtils.substringAfter(name, ":"));
+                return revision >= 1 && revision <= revisions.size() ? revisions.get(revision - 1) : null;
+            }
+            for (int i = revisions.size() - 1; i >= 0; i--) {
+                if ("ACTIVE".equals(revisions.get(i).getJSONObject("taskDefinition").getString("status"))) {
+                    return revisions.get(i);
+                }
+            }
+            return null;
+        }
+    }
+
+    private JSONArray listFamilies(String prefix) {
+        JSONArray result = new JSONArray();
+        synchronized (families) {
+            for (String family : families.keySet()) {
+                if (family.startsWith(prefix)) {
+                    result.add(family);
+                }
+            }
+        }
+        return result;
+    }
+
+    private JSONArray listDefinitions(String prefix, String status) {
+        JSONArray result = new JSONArray();
+        synchronized (families) {
+            for (Map.Entry<String, List<JSONObject>> entry : families.entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    continue;
+                }
+                for (JSONObject revision : entry.getValue()) {
+                    JSONObject definition = revision.getJSONObject("taskDefinition");
+                    if (status.equals(definition.getString("status"))) {
+                        result.add(definition.getString("taskDefinitionArn"));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private JSONObject runTask(JSONObject request) {
+        JSONObject definition = findDefinition(request.getString("taskDefinition"));
+        if (definition == null || !"ACTIVE".equals(definition.getJSONObject("taskDefinition").getString("status"))) {
+            throw new IllegalArgumentException("TaskDefinition is inactive");
+        }
+        JSONObject response = new JSONObject();
+        JSONArray started = new JSONArray();
+        JSONArray failures = new JSONArray();
+        if (ThreadLocalRandom.current().nextDouble() < capacityFailureRate) {
+            count("CapacityFailure");
+            JSONObject failure = new JSONObject();
+            failure.put("reason", CAPACITY_FAILURE);
+            failures.add(failure);
+        } else {
+            String clusterArn = request.optString("cluster", "default");
+            String arn = "arn:aws:ecs:" + REGION + ':' + ACCOUNT + ":task/" + StringUtils.substringAfterLast(clusterArn, "/")
+                    + '/' + String.format("%032x", ids.incrementAndGet());
+            JSONArray strategy = request.optJSONArray("capacityProviderStrategy");
+            SimulatedTask task = new SimulatedTask(arn, clusterArn, request.getString("taskDefinition"),
+                    strategy != null && !strategy.isEmpty() ? "FARGATE_SPOT" : "FARGATE", getCommand(request));
+            tasks.put(arn, task);
+            task.advance();
+            started.add(task.toJson());
+        }
+        response.put("tasks", started);
+        response.put("failures", failures);
+        return response;
+    }
+
+    private static List<String> getCommand(JSONObject request) {
+        List<String> command = new ArrayList<String>();
+        JSONObject overrides = request.optJSONObject("overrides");
+        JSONArray containers = overrides == null ? null : overrides.optJSONArray("containerOverrides");
+        if (containers != null && !containers.isEmpty()) {
+            JSONArray args = containers.getJSONObject(0).optJSONArray("command");
+            if (args != null) {
+                for (Object arg : args) {
+                    command.add(String.valueOf(arg));
+                }
+            }
+        }
+        return command;
+    }
+
+    /**
+     * Answers the EC2 query protocol, only DescribeSubnets is simulated. Every subnet lives in its own zone and has
+     * plenty of free addresses.
+     */
+    private void handleEc2(HttpExchange exchange, String body) throws IOException {
+        Map<String, String> params = parseForm(body);
+        String action = params.get("Action");
+        count(action);
+        if (!"DescribeSubnets".equals(action)) {
+            respond(exchange, 400, "text/xml", "<Response><Errors><Error><Code>UnsupportedOperation</Code><Message>Action "
+                    + action + " is not simulated.</Message></Error></Errors><RequestID>simulator</RequestID></Response>");
+            return;
+        }
+        StringBuilder xml = new StringBuilder("<DescribeSubnetsResponse xmlns=\"http://ec2.amazonaws.com/doc/2016-11-15/\">")
+                .append("<requestId>simulator</requestId><subnetSet>");
+        int zone = 0;
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (param.getKey().startsWith("SubnetId.")) {
+                xml.append("<item><subnetId>").append(param.getValue()).append("</subnetId>")
+                        .append("<availabilityZone>").append(REGION).append((char) ('a' + zone++ % 6)).append("</availabilityZone>")
+                        .append("<availableIpAddressCount>4000</availableIpAddressCount><state>available</state></item>");
+            }
+        }
+        xml.append("</subnetSet></DescribeSubnetsResponse>");
+        respond(exchange, 200, "text/xml", xml.toString());
+    }
+
+    private static Map<String, String> parseForm(String body) throws UnsupportedEncodingException {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        for (String pair : StringUtils.split(body, '&')) {
+            params.put(URLDecoder.decode(StringUtils.substringBefore(pair, "="), "UTF-8"),
+                    URLDecoder.decode(StringUtils.substringAfter(pair, "="), "UTF-8"));
+        }
+        return params;
+    }
+
+    private void count(String action) {
+        AtomicInteger count = calls.get(action);
+        if (count == null) {
+            count = new AtomicInteger();
+            AtomicInteger existing = calls.putIfAbsent(action, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private static JSONObject error(String type, String message) {
+        JSONObject error = new JSONObject();
+        error.put("__type", type);
+        error.put("message", message);
+        return error;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("x-amzn-RequestId", "simulator");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return an exponentially distributed duration of the given mean.
+     */
+    private static long sample(long meanMillis) {
+        return meanMillis <= 0 ? 0 : (long) (-meanMillis * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Object timestamp(long millis) {
+        return millis == 0 ? null : millis / 1000.0;
+    }
+
+    /**
+     * A task moving from PROVISIONING to RUNNING on the scheduler of the simulator, until stopped.
+     */
+    private final class SimulatedTask {
+        private final String arn;
+        private final String clusterArn;
+        private final String taskDefinitionArn;
+        private final String capacityProviderName;
+        private final List<String> command;
+        private final long createdAt = System.currentTimeMillis();
+        private String lastStatus = "PROVISIONING";
+        private String desiredStatus = "RUNNING";
+        private long pullStartedAt;
+        private long pullStoppedAt;
+        private long startedAt;
+        private long stoppedAt;
+        private String stoppedReason;
+        private Engine agent;
+
+        SimulatedTask(String arn, String clusterArn, String taskDefinitionArn, String capacityProviderName, List<String> command) {
+            this.arn = arn;
+            this.clusterArn = clusterArn;
+            this.taskDefinitionArn = taskDefinitionArn;
+            this.capacityProviderName = capacityProviderName;
+            this.command = command;
+        }
+
+        synchronized boolean isStopped() {
+            return stoppedAt != 0;
+        }
+
+        /**
+         * Schedules the next phase of the task.
+         */
+        synchronized void advance() {
+            if (isStopped()) {
+                return;
+            }
+            long delay;
+            if (pullStartedAt == 0) {
+                delay = sample(provisionMillis);
+            } else if (pullStoppedAt == 0) {
+                delay = sample(pullMillis);
+            } else {
+                delay = sample(startMillis);
+            }
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    step();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void step() {
+            synchronized (this) {
+                if (isStopped()) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                if (pullStartedAt == 0) {
+                    lastStatus = "PENDING";
+                    pullStartedAt = now;
+                } else if (pullStoppedAt == 0) {
+                    pullStoppedAt = now;
+                } else {
+                    lastStatus = "RUNNING";
+                    startedAt = now;
+                }
+                if (startedAt == 0) {
+                    advance();
+                    return;
+                }
+            }
+            if (connectAgents) {
+                connect();
+            }
+        }
+
+        /**
+         * Connects a fake agent with the <code>-url [-tunnel host:port] secret name</code> command of the task.
+         */
+        private void connect() {
+            int url = command.indexOf("-url");
+            if (url < 0 || url + 3 >= command.size()) {
+                stop("Essential container in task exited: no agent command");
+                return;
+            }
+            try {
+                Engine engine = new Engine(new EngineListenerAdapter() {
+                    @Override
+                    public void error(Throwable t) {
+                        LOGGER.log(Level.WARNING, "Fake agent of " + arn + " failed", t);
+                    }
+                }, Collections.singletonList(new URL(command.get(url + 1))),
+                        command.get(command.size() - 2), command.get(command.size() - 1));
+                engine.setNoReconnect(true);
+                engine.setJarCache(new FileSystemJarCache(jarCache, true));
+                engine.setDaemon(true);
+                synchronized (this) {
+                    if (isStopped()) {
+                        return;
+                    }
+                    agent = engine;
+                }
+                engine.start();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to start the fake agent of " + arn, e);
+                stop("Essential container in task exited");
+            }
+        }
+
+        void stop(String reason) {
+            Engine engine;
+            synchronized (this) {
+                if (isStopped()) {
+                    return;
+                }
+                desiredStatus = "STOPPED";
+                lastStatus = "STOPPED";
+                stoppedAt = System.currentTimeMillis();
+                stoppedReason = reason;
+                engine = agent;
+            }
+            if (engine != null) {
+                engine.interrupt();
+            }
+        }
+
+        synchronized JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("taskArn", arn);
+            json.put("clusterArn", clusterArn);
+            json.put("taskDefinitionArn", taskDefinitionArn);
+            json.put("launchType", "FARGATE");
+            json.put("capacityProviderName", capacityProviderName);
+            json.put("lastStatus", lastStatus);
+            json.put("desiredStatus", desiredStatus);
+            json.put("createdAt", timestamp(createdAt));
+            json.put("pullStartedAt", timestamp(pullStartedAt));
+            json.put("pullStoppedAt", timestamp(pullStoppedAt));
+            json.put("startedAt", timestamp(startedAt));
+            json.put("stoppedAt", timestamp(stoppedAt));
+            if (stoppedReason != null) {
+                json.put("stoppedReason", stoppedReason);
+            }
+            JSONObject container = new JSONObject();
+            container.put("name", "agent");
+            container.put("lastStatus", lastStatus);
+            if (isStopped()) {
+                container.put("exitCode", 0);
+            }
+            JSONArray containers = new JSONArray();
+            containers.add(container);
+            json.put("containers", containers);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.AmazonServiceException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LaunchRetryPolicyTest {
+
+    private final LaunchRetryPolicy policy = new LaunchRetryPolicy.DefaultImpl();
+
+    private LaunchRetryPolicy.Action classify(String reason) {
+        return policy.classify(null, reason, null);
+    }
+
+    private static AmazonServiceException serviceException(String code, int status, AmazonServiceException.ErrorType type) {
+        AmazonServiceException e = new AmazonServiceException(code + " happened");
+        e.setErrorCode(code);
+        e.setStatusCode(status);
+        e.setErrorType(type);
+        return e;
+    }
+
+    @Test
+    public void throttlingAndServerErrorsAreRetried() {
+        assertEquals(LaunchRetryPolicy.Action.RETRY, policy.classify(null, "RunTask failed",
+                serviceException("ThrottlingException", 400, AmazonServiceException.ErrorType.Client)));
+        assertEquals(LaunchRetryPolicy.Action.RETRY, policy.classify(null, "RunTask failed",
+                serviceException("ServerException", 500, AmazonServiceException.ErrorType.Service)));
+    }
+
+    @Test
+    public void capacityShortagesAreRetried() {
+        assertEquals(LaunchRetryPolicy.Action.RETRY, classify("Capacity is unavailable at this time. Please try again later or in a different availability zone"));
+    }
+
+    @Test
+    public void permissionAndImageProblemsAreFinal() {
+        assertEquals(LaunchRetryPolicy.Action.PERMANENT, classify("User is not authorized to perform: ecs:RunTask"));
+        assertEquals(LaunchRetryPolicy.Action.PERMANENT, classify("CannotPullContainerError: pull access denied for jenkins/missing"));
+    }
+
+    @Test
+    public void networkProblemsMoveToAnotherSubnet() {
+        assertEquals(LaunchRetryPolicy.Action.RETRY_ELSEWHERE, classify("ResourceInitializationError: failed to configure ENI"));
+        assertEquals(LaunchRetryPolicy.Action.RETRY_ELSEWHERE, classify("There are not enough free IP address in subnet-1234"));
+    }
+
+    @Test
+    public void misconfiguredSubnetsFailFast() {
+        assertEquals(LaunchRetryPolicy.Action.PERMANENT, classify("The subnet ID 'subnet-x' does not exist"));
+        assertEquals(LaunchRetryPolicy.Action.PERMANENT, classify("InvalidParameterException: subnet-x is not valid"));
+        assertEquals(LaunchRetryPolicy.Action.PERMANENT, classify("Invalid security group sg-1 in Subnet subnet-2"));
+    }
+
+    @Test
+    public void unknownFailuresAreRetried() {
+        assertEquals(LaunchRetryPolicy.Action.RETRY, classify("Essential container in task exited"));
+    }
+
+    @Test
+    public void backoffIsJitteredBelowAGrowingCap() {
+        for (int attempt = 1; attempt <= 30; attempt++) {
+            long cap = Math.min(LaunchRetryPolicy.MAX_BACKOFF_MILLIS, 2000L << Math.min(attempt - 1, 16));
+            for (int i = 0; i < 100; i++) {
+                long backoff = policy.getBackoffMillis(null, LaunchRetryPolicy.Action.RETRY, attempt);
+                assertTrue(backoff + " within [0, " + cap + ")", backoff >= 0 && backoff < cap);
+            }
+        }
+    }
+
+    @Test
+    public void backoffElsewhereStartsLower() {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(policy.getBackoffMillis(null, LaunchRetryPolicy.Action.RETRY_ELSEWHERE, 1) < 500);
+        }
+    }
+}
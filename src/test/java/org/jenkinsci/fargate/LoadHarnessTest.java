@@ -0,0 +1,163 @@
+package org.jenkinsci.fargate;
+
+import com.codahale.metrics.Snapshot;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.labels.LabelAtom;
+import hudson.model.queue.QueueTaskFuture;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queues builds on fargate templates of a cluster served by the {@link ECSSimulator} and reports how long they took
+ * to start, the launch phases and the API calls they needed. Skipped by regular builds, run it with
+ * <code>mvn test -Pload</code>, and a real load with for instance
+ * <code>mvn test -Pload -Dorg.jenkinsci.fargate.LoadHarnessTest.builds=2000</code>.
+ */
+public class LoadHarnessTest {
+
+    private static final Logger LOGGER = Logger.getLogger(LoadHarnessTest.class.getName());
+
+    /**
+     * Set by the load profile.
+     */
+    static final boolean ENABLED = Boolean.getBoolean(LoadHarnessTest.class.getName() + ".enabled");
+
+    /**
+     * Number of builds queued by each test.
+     */
+    static final int BUILDS = Integer.getInteger(LoadHarnessTest.class.getName() + ".builds", 20);
+
+    /**
+     * How long each test waits for its builds to complete.
+     */
+    static final long TIMEOUT_MINUTES = Long.getLong(LoadHarnessTest.class.getName() + ".timeoutMinutes", 10);
+
+    private static final String LABEL = "load";
+
+    private static ECSSimulator simulator;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @BeforeClass
+    public static void startSimulator() throws Exception {
+        Assume.assumeTrue("load harness not enabled", ENABLED);
+        simulator = new ECSSimulator();
+        System.setProperty(AWSClientRegistry.ECS_ENDPOINT_PROPERTY, simulator.getEndpoint());
+        System.setProperty(AWSClientRegistry.EC2_ENDPOINT_PROPERTY, simulator.getEndpoint());
+        // picked up by the default credentials chain, the simulator does not check signatures
+        System.setProperty("aws.accessKeyId", "AKIASIMULATOR");
+        System.setProperty("aws.secretKey", "simulator");
+    }
+
+    @AfterClass
+    public static void stopSimulator() {
+        if (simulator == null) {
+            return;
+        }
+        System.clearProperty(AWSClientRegistry.ECS_ENDPOINT_PROPERTY);
+        System.clearProperty(AWSClientRegistry.EC2_ENDPOINT_PROPERTY);
+        System.clearProperty("aws.accessKeyId");
+        System.clearProperty("aws.secretKey");
+        AWSClientRegistry.get().invalidateAll();
+        simulator.stop();
+    }
+
+    @Before
+    public void configure() throws Exception {
+        // clients built by earlier tests of this JVM point at AWS
+        AWSClientRegistry.get().invalidateAll();
+        simulator.throttlingRate = 0;
+        simulator.capacityFailureRate = 0;
+        j.jenkins.setNumExecutors(0);
+        j.jenkins.setSlaveAgentPort(0);
+
+        ECSFargateTaskDefinition template = new ECSFargateTaskDefinition(LABEL, null, "arn:aws:iam::" + ECSSimulator.ACCOUNT + ":role/exec",
+                "2", "1", "jenkins/jnlp-slave", tmp.newFolder().getPath(), null, null, null, null, null, null, null);
+        template.setSubnets("subnet-a,subnet-b,subnet-c");
+        template.setSecurityGroups("sg-load");
+        ECSCluster cluster = new ECSCluster("load-cluster", null, "arn:aws:ecs:" + ECSSimulator.REGION + ':' + ECSSimulator.ACCOUNT + ":cluster/load",
+                ECSSimulator.REGION, null, Collections.singletonList(template));
+        cluster.setMaxRetries(10);
+        cluster.setSlaveTimeout(120);
+        ECSFargateConfig.getEcsFargateConfig().setClusters(Collections.singletonList(cluster));
+    }
+
+    @Test
+    public void buildsStartOnSimulatedAgents() throws Exception {
+        run("steady");
+    }
+
+    @Test
+    public void buildsSurviveThrottlingAndCapacityShortages() throws Exception {
+        simulator.throttlingRate = 0.1;
+        simulator.capacityFailureRate = 0.2;
+        run("degraded");
+        assertTrue("some calls were throttled", simulator.getCalls("Throttled") > 0);
+    }
+
+    private void run(String scenario) throws Exception {
+        int runTasks = simulator.getCalls("RunTask");
+        List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+        List<Long> queuedAt = new ArrayList<Long>();
+        for (int i = 0; i < BUILDS; i++) {
+            FreeStyleProject project = j.createFreeStyleProject(scenario + '-' + i);
+            project.setAssignedLabel(new LabelAtom(LABEL));
+            queuedAt.add(System.currentTimeMillis());
+            futures.add(project.scheduleBuild2(0));
+        }
+
+        List<Long> latencies = new ArrayList<Long>();
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(TIMEOUT_MINUTES);
+        for (int i = 0; i < futures.size(); i++) {
+            FreeStyleBuild build = futures.get(i).get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            assertEquals(build.getFullDisplayName(), Result.SUCCESS, build.getResult());
+            latencies.add(build.getStartTimeInMillis() - queuedAt.get(i));
+        }
+
+        // the agents are gone, their tasks must be stopped too
+        while (simulator.getLiveTasks() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(500);
+        }
+        assertEquals("tasks left running", 0, simulator.getLiveTasks());
+        assertTrue("every build started a task", simulator.getCalls("RunTask") - runTasks >= BUILDS);
+
+        Collections.sort(latencies);
+        Snapshot total = FargateMetrics.timer("launches", "phase", "total").getSnapshot();
+        LOGGER.log(Level.INFO, String.format("[%s] %d builds, queue to start p50=%dms p95=%dms p99=%dms max=%dms",
+                scenario, BUILDS, percentile(latencies, 0.5), percentile(latencies, 0.95), percentile(latencies, 0.99),
+                latencies.get(latencies.size() - 1)));
+        LOGGER.log(Level.INFO, String.format("[%s] launch to online p50=%.0fms p95=%.0fms p99=%.0fms",
+                scenario, nanosToMillis(total.getMedian()), nanosToMillis(total.get95thPercentile()), nanosToMillis(total.get99thPercentile())));
+        LOGGER.log(Level.INFO, String.format("[%s] API calls %s", scenario, simulator.getCalls()));
+    }
+
+    private static long percentile(List<Long> sorted, double quantile) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(quantile * sorted.size()) - 1));
+    }
+
+    private static double nanosToMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
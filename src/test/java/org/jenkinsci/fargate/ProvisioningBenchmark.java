@@ -0,0 +1,147 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.services.ecs.model.ContainerDefinition;
+import com.amazonaws.services.ecs.model.DescribeTaskDefinitionResult;
+import com.amazonaws.services.ecs.model.Tag;
+import com.amazonaws.services.ecs.model.TaskDefinition;
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the code run for queue items and launches, with {@link #CLUSTERS} clusters of {@link #TEMPLATES}
+ * templates, each with {@link #ENTRIES} environment variables, extra hosts and mount points. Run through
+ * {@link ProvisioningBenchmarkRunner}, which also reports the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProvisioningBenchmark {
+
+    static final int CLUSTERS = 50;
+    static final int TEMPLATES = 200;
+    static final int ENTRIES = 40;
+
+    private List<ECSCluster> clusters;
+    private Map<String, List<Pair<ECSCluster, ECSFargateTaskDefinition>>> index;
+    private String[] names;
+    private int next;
+
+    private ECSCluster cluster;
+    private ECSFargateTaskDefinition template;
+    private String family;
+    private String fingerprint;
+    private DescribeTaskDefinitionResult registered;
+
+    @Setup
+    public void setup() {
+        clusters = new ArrayList<ECSCluster>(CLUSTERS);
+        List<String> labels = new ArrayList<String>(CLUSTERS * TEMPLATES);
+        for (int c = 0; c < CLUSTERS; c++) {
+            List<ECSFargateTaskDefinition> templates = new ArrayList<ECSFargateTaskDefinition>(TEMPLATES);
+            for (int t = 0; t < TEMPLATES; t++) {
+                String label = "team-" + c + "-build-" + t;
+                templates.add(template(label));
+                labels.add(label);
+            }
+            clusters.add(new ECSCluster("cluster " + c, "credentials-" + (c % 5), "arn:aws:ecs:us-east-1:123456789012:cluster/cluster-" + c,
+                    "us-east-1", null, templates));
+        }
+        index = ECSFargateConfig.index(clusters);
+        names = labels.toArray(new String[labels.size()]);
+
+        cluster = clusters.get(CLUSTERS / 2);
+        template = cluster.getTaskDefinitionList().get(TEMPLATES / 2);
+        family = ECSService.fullQualifiedTemplateName(cluster.getName(), template, ECSFargatePool.NO_OVERRIDES);
+        fingerprint = TaskDefinitionFingerprint.of(family, template, ECSFargatePool.NO_OVERRIDES);
+        List<Tag> tags = new ArrayList<Tag>();
+        for (int i = 0; i < 10; i++) {
+            tags.add(new Tag().withKey("team-" + i).withValue("value-" + i));
+        }
+        tags.add(new Tag().withKey(TaskDefinitionFingerprint.TAG_KEY).withValue(fingerprint));
+        registered = new DescribeTaskDefinitionResult()
+                .withTaskDefinition(new TaskDefinition().withTaskDefinitionArn("arn:aws:ecs:us-east-1:123456789012:task-definition/" + family + ":3"))
+                .withTags(tags);
+    }
+
+    private static ECSFargateTaskDefinition template(String label) {
+        List<ECSFargateTaskDefinition.EnvironmentEntry> environments = new ArrayList<ECSFargateTaskDefinition.EnvironmentEntry>(ENTRIES);
+        List<ECSFargateTaskDefinition.ExtraHostEntry> extraHosts = new ArrayList<ECSFargateTaskDefinition.ExtraHostEntry>(ENTRIES);
+        List<ECSFargateTaskDefinition.MountPointEntry> mountPoints = new ArrayList<ECSFargateTaskDefinition.MountPointEntry>(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+            environments.add(new ECSFargateTaskDefinition.EnvironmentEntry("VARIABLE_" + i, "some reasonably long value number " + i));
+            extraHosts.add(new ECSFargateTaskDefinition.ExtraHostEntry("10.0." + (i / 250) + '.' + (i % 250), "host-" + i + ".internal"));
+            mountPoints.add(new ECSFargateTaskDefinition.MountPointEntry("volume-" + i, "/mnt/source/" + i, "/mnt/target/" + i, i % 2 == 0));
+        }
+        ECSFargateTaskDefinition template = new ECSFargateTaskDefinition(label, "arn:aws:iam::123456789012:role/task",
+                "arn:aws:iam::123456789012:role/exec", "4", "2", "123456789012.dkr.ecr.us-east-1.amazonaws.com/jenkins/agent:latest",
+                "/home/jenkins", null, null, "-Xmx2g -XX:+UseG1GC", mountPoints, environments, extraHosts, null);
+        template.setSubnets("subnet-a,subnet-b,subnet-c");
+        template.setSecurityGroups("sg-a,sg-b");
+        return template;
+    }
+
+    private String nextName() {
+        String name = names[next];
+        next = (next + 1) % names.length;
+        return name;
+    }
+
+    /**
+     * The lookup behind {@link ECSFargateConfig#getTemplate(String)}, the first check of
+     * {@link ECSFargateProvisioner#usesOneShotExecutor} for every queue item.
+     */
+    @Benchmark
+    public List<Pair<ECSCluster, ECSFargateTaskDefinition>> getTemplate() {
+        return index.get(nextName());
+    }
+
+    /**
+     * Labels that are not fargate templates, the common case on a mixed controller.
+     */
+    @Benchmark
+    public List<Pair<ECSCluster, ECSFargateTaskDefinition>> getTemplateMiss() {
+        return index.get("linux && docker");
+    }
+
+    @Benchmark
+    public Map<String, List<Pair<ECSCluster, ECSFargateTaskDefinition>>> reindex() {
+        return ECSFargateConfig.index(clusters);
+    }
+
+    @Benchmark
+    public String fullQualifiedTemplateName() {
+        return ECSService.fullQualifiedTemplateName(cluster.getName(), template, ECSFargatePool.NO_OVERRIDES);
+    }
+
+    @Benchmark
+    public ContainerDefinition populateContainerDefinition() {
+        return ECSService.populateContainerDefintion(template, family, 4096);
+    }
+
+    @Benchmark
+    public boolean matchesSavedDefinition() {
+        return ECSService.matchesSavedDefinition(registered, fingerprint);
+    }
+
+    @Benchmark
+    public String fingerprint() {
+        return TaskDefinitionFingerprint.of(family, template, ECSFargatePool.NO_OVERRIDES);
+    }
+}
@@ -0,0 +1,24 @@
+package org.jenkinsci.fargate;
+
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link ProvisioningBenchmark} with <code>mvn test -Pbenchmark</code>. Not matched by the default test includes,
+ * so regular builds skip it. The GC profiler adds the allocation rate and bytes allocated per operation.
+ */
+public class ProvisioningBenchmarkRunner {
+
+    @Test
+    public void run() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(ProvisioningBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .shouldFailOnError(true)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,133 @@
+package org.jenkinsci.fargate;
+
+import com.amazonaws.services.ec2.model.Subnet;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class SubnetSchedulerTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TestName testName = new TestName();
+
+    private final Map<String, Subnet> described = new HashMap<String, Subnet>();
+
+    private SubnetScheduler scheduler;
+
+    @Before
+    public void createScheduler() {
+        scheduler = new SubnetScheduler(new EC2Service(null, "us-east-1") {
+            @Override
+            List<Subnet> describeSubnetsById(Collection<String> subnetIds) {
+                List<Subnet> subnets = new ArrayList<Subnet>();
+                synchronized (described) {
+                    for (String id : subnetIds) {
+                        if (described.containsKey(id)) {
+                            subnets.add(described.get(id));
+                        }
+                    }
+                }
+                return subnets;
+            }
+        });
+    }
+
+    /**
+     * Subnet ids are unique per test, their gauges live in the registry of the JVM.
+     */
+    private String subnet(String name, String zone, int free) {
+        String id = testName.getMethodName() + '-' + name;
+        synchronized (described) {
+            described.put(id, new Subnet().withSubnetId(id).withAvailabilityZone(zone).withAvailableIpAddressCount(free));
+        }
+        return id;
+    }
+
+    private ECSFargateTaskDefinition template(String... subnets) {
+        ECSFargateTaskDefinition template = TestTemplates.template();
+        StringBuilder list = new StringBuilder();
+        for (String subnet : subnets) {
+            list.append(list.length() == 0 ? "" : ", ").append(subnet);
+        }
+        template.setSubnets(list.toString());
+        return template;
+    }
+
+    /**
+     * Registers and describes the subnets up front, so picks do not trigger a refresh in the background.
+     */
+    private ECSFargateTaskDefinition described(String... subnets) {
+        for (String subnet : subnets) {
+            scheduler.getState(subnet);
+        }
+        scheduler.refresh();
+        return template(subnets);
+    }
+
+    @Test
+    public void nothingToChooseFrom() {
+        assertNull(scheduler.pick(template()));
+        String only = subnet("a", "us-east-1a", 100);
+        assertArrayEquals(new String[]{only}, scheduler.pick(template(only)));
+    }
+
+    @Test
+    public void launchesAlternateBetweenZones() {
+        String small = subnet("small", "us-east-1a", 100);
+        String large = subnet("large", "us-east-1a", 200);
+        String other = subnet("other", "us-east-1b", 50);
+        ECSFargateTaskDefinition template = described(small, large, other);
+
+        // the subnet with the most room first, then the zone without launches
+        assertArrayEquals(new String[]{large, other}, scheduler.pick(template));
+        assertArrayEquals(new String[]{other, large}, scheduler.pick(template));
+        assertArrayEquals(new String[]{large, other}, scheduler.pick(template));
+    }
+
+    @Test
+    public void fullSubnetsAreSkipped() {
+        String full = subnet("full", "us-east-1a", SubnetScheduler.MIN_FREE_ADDRESSES - 1);
+        String b = subnet("b", "us-east-1b", 100);
+        String c = subnet("c", "us-east-1c", 100);
+        ECSFargateTaskDefinition template = described(full, b, c);
+        for (int i = 0; i < 10; i++) {
+            assertFalse(Arrays.asList(scheduler.pick(template)).contains(full));
+        }
+    }
+
+    @Test
+    public void failedSubnetsAreAvoided() {
+        String a = subnet("a", "us-east-1a", 100);
+        String b = subnet("b", "us-east-1b", 100);
+        String c = subnet("c", "us-east-1c", 100);
+        ECSFargateTaskDefinition template = described(a, b, c);
+        scheduler.failed(new String[]{b});
+        for (int i = 0; i < 10; i++) {
+            assertFalse(Arrays.asList(scheduler.pick(template)).contains(b));
+        }
+    }
+
+    @Test
+    public void letsECSChooseWhenNoSubnetHasRoom() {
+        String a = subnet("a", "us-east-1a", 1);
+        String b = subnet("b", "us-east-1b", 2);
+        ECSFargateTaskDefinition template = described(a, b);
+        assertArrayEquals(new String[]{a, b}, scheduler.pick(template));
+    }
+}
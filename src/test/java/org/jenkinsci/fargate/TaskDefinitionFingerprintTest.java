@@ -0,0 +1,101 @@
+package org.jenkinsci.fargate;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class TaskDefinitionFingerprintTest {
+
+    private static ECSFargateTaskDefinition template(List<ECSFargateTaskDefinition.EnvironmentEntry> environments,
+                                                     List<ECSFargateTaskDefinition.ExtraHostEntry> extraHosts,
+                                                     List<ECSFargateTaskDefinition.MountPointEntry> mountPoints) {
+        return TestTemplates.template("2", "1", mountPoints, environments, extraHosts);
+    }
+
+    private static ECSFargateTaskDefinition.EnvironmentEntry env(String name, String value) {
+        return new ECSFargateTaskDefinition.EnvironmentEntry(name, value);
+    }
+
+    private static String fingerprint(ECSFargateTaskDefinition template) {
+        return TaskDefinitionFingerprint.of("cluster-build", template, ECSFargatePool.NO_OVERRIDES);
+    }
+
+    @Test
+    public void stableAcrossEntryOrder() {
+        String a = fingerprint(template(Arrays.asList(env("A", "1"), env("B", "2")), null, null));
+        String b = fingerprint(template(Arrays.asList(env("B", "2"), env("A", "1")), null, null));
+        assertEquals(a, b);
+    }
+
+    @Test
+    public void changesWithContent() {
+        String a = fingerprint(template(Arrays.asList(env("A", "1")), null, null));
+        String b = fingerprint(template(Arrays.asList(env("A", "2")), null, null));
+        assertNotEquals(a, b);
+        assertNotEquals(a, TaskDefinitionFingerprint.of("other-family", template(Arrays.asList(env("A", "1")), null, null), ECSFargatePool.NO_OVERRIDES));
+    }
+
+    @Test
+    public void overridesChangeTheFingerprint() {
+        ECSFargateTaskDefinition template = template(null, null, null);
+        assertNotEquals(fingerprint(template),
+                TaskDefinitionFingerprint.of("cluster-build", template, new ECSFargateTaskOverrideAction(null, "4", "2", null)));
+    }
+
+    @Test
+    public void duplicateNamesAreKept() {
+        String single = fingerprint(template(Arrays.asList(env("A", "2")), null, null));
+        String duplicate = fingerprint(template(Arrays.asList(env("A", "1"), env("A", "2")), null, null));
+        assertNotEquals(single, duplicate);
+        assertEquals(duplicate, fingerprint(template(Arrays.asList(env("A", "2"), env("A", "1")), null, null)));
+    }
+
+    @Test
+    public void duplicateHostsAndMountsAreKept() {
+        List<ECSFargateTaskDefinition.ExtraHostEntry> oneHost = Arrays.asList(new ECSFargateTaskDefinition.ExtraHostEntry("10.0.0.2", "db"));
+        List<ECSFargateTaskDefinition.ExtraHostEntry> twoHosts = Arrays.asList(
+                new ECSFargateTaskDefinition.ExtraHostEntry("10.0.0.1", "db"), new ECSFargateTaskDefinition.ExtraHostEntry("10.0.0.2", "db"));
+        assertNotEquals(fingerprint(template(null, oneHost, null)), fingerprint(template(null, twoHosts, null)));
+
+        List<ECSFargateTaskDefinition.MountPointEntry> oneMount = Arrays.asList(
+                new ECSFargateTaskDefinition.MountPointEntry("cache", "/a", "/cache", false));
+        List<ECSFargateTaskDefinition.MountPointEntry> twoMounts = Arrays.asList(
+                new ECSFargateTaskDefinition.MountPointEntry("cache", "/a", "/cache", false),
+                new ECSFargateTaskDefinition.MountPointEntry("cache", "/b", "/other", false));
+        assertNotEquals(fingerprint(template(null, null, oneMount)), fingerprint(template(null, null, twoMounts)));
+    }
+
+    private static ECSFargateTaskDefinition.MountPointEntry efs(String accessPointId, boolean iam) {
+        ECSFargateTaskDefinition.MountPointEntry mount = new ECSFargateTaskDefinition.MountPointEntry("cache", null, "/cache", false);
+        mount.setFileSystemId("fs-1");
+        mount.setRootDirectory("/builds");
+        mount.setAccessPointId(accessPointId);
+        mount.setIamAuthorization(iam);
+        return mount;
+    }
+
+    @Test
+    public void efsVolumesAreFingerprintedByTheirSettings() {
+        String plain = fingerprint(template(null, null, Arrays.asList(efs(null, false))));
+        assertEquals(plain, fingerprint(template(null, null, Arrays.asList(efs(null, false)))));
+        assertNotEquals(plain, fingerprint(template(null, null, Arrays.asList(efs("fsap-1", false)))));
+        assertNotEquals(plain, fingerprint(template(null, null, Arrays.asList(efs(null, true)))));
+        assertNotEquals(fingerprint(template(null, null, Arrays.asList(efs("fsap-1", false)))),
+                fingerprint(template(null, null, Arrays.asList(efs("fsap-2", false)))));
+
+        // only affects the environment of the builds
+        ECSFargateTaskDefinition.MountPointEntry perJob = efs(null, false);
+        perJob.setPerJob(true);
+        assertEquals(plain, fingerprint(template(null, null, Arrays.asList(perJob))));
+    }
+
+    @Test
+    public void emptyEntriesAreIgnored() {
+        assertEquals(fingerprint(template(null, null, null)),
+                fingerprint(template(Arrays.asList(env("A", ""), env("", "1")), null, null)));
+    }
+}
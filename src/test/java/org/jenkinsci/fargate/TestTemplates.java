@@ -0,0 +1,29 @@
+package org.jenkinsci.fargate;
+
+import javax.annotation.CheckForNull;
+import java.util.List;
+
+/**
+ * Minimal templates named {@code build} for the tests, with only the fields Fargate requires.
+ */
+final class TestTemplates {
+
+    private TestTemplates() {
+    }
+
+    static ECSFargateTaskDefinition template() {
+        return template("2", "1");
+    }
+
+    static ECSFargateTaskDefinition template(String memory, String cpu) {
+        return template(memory, cpu, null, null, null);
+    }
+
+    static ECSFargateTaskDefinition template(String memory, String cpu,
+                                             @CheckForNull List<ECSFargateTaskDefinition.MountPointEntry> mountPoints,
+                                             @CheckForNull List<ECSFargateTaskDefinition.EnvironmentEntry> environments,
+                                             @CheckForNull List<ECSFargateTaskDefinition.ExtraHostEntry> extraHosts) {
+        return new ECSFargateTaskDefinition("build", null, "arn:aws:iam::1:role/exec", memory, cpu, "jenkins/jnlp-slave",
+                "/home/jenkins", null, null, null, mountPoints, environments, extraHosts, null);
+    }
+}
@@ -0,0 +1,84 @@
+package org.jenkinsci.fargate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UsageHistoryTest {
+
+    /**
+     * Sizes are the choices of the template descriptor.
+     */
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private static void assertSize(String cpu, String memory, UsageHistory.Size size) {
+        assertEquals(cpu + " vCPU and " + memory + " GB", size.toString());
+    }
+
+    @Test
+    public void smallestPicksTheCheapestSizeThatFits() {
+        assertSize(".25", ".5", UsageHistory.Size.smallest(0.1, 0.3));
+        assertSize(".5", "1", UsageHistory.Size.smallest(0.3, 0.6));
+        assertSize(".5", "3", UsageHistory.Size.smallest(0.1, 2.5));
+        assertSize("2", "4", UsageHistory.Size.smallest(1.2, 3));
+    }
+
+    @Test
+    public void smallestFallsBackToTheLargestSize() {
+        assertSize("4", "16", UsageHistory.Size.smallest(8, 64));
+    }
+
+    @Test
+    public void p95() {
+        assertEquals(3.0, UsageHistory.JobHistory.p95(new double[]{3}), 0);
+        assertEquals(5.0, UsageHistory.JobHistory.p95(new double[]{5, 1, 4, 2, 3}), 0);
+        double[] twenty = new double[20];
+        for (int i = 0; i < twenty.length; i++) {
+            twenty[i] = twenty.length - i;
+        }
+        assertEquals(19.0, UsageHistory.JobHistory.p95(twenty), 0);
+    }
+
+    @Test
+    public void recommendsOnceThereAreEnoughBuilds() {
+        UsageHistory.JobHistory history = new UsageHistory.JobHistory("job", "build");
+        for (int i = 0; i < UsageHistory.MIN_BUILDS - 1; i++) {
+            history.add(new UsageHistory.BuildUsage(0.2, 0.3, 0.8, 1.0, 1, 2));
+        }
+        assertNull(history.getRecommendation());
+
+        history.add(new UsageHistory.BuildUsage(0.2, 0.3, 0.8, 1.0, 1, 2));
+        UsageHistory.Size recommendation = history.getRecommendation();
+        assertSize(".5", "2", recommendation);
+        assertTrue(recommendation.matches(TestTemplates.template("2", ".5")));
+        assertFalse(recommendation.matches(TestTemplates.template("2", "1")));
+    }
+
+    @Test
+    public void buildsAtTheirLimitAskForMore() {
+        UsageHistory.JobHistory history = new UsageHistory.JobHistory("job", "build");
+        for (int i = 0; i < UsageHistory.MIN_BUILDS - 1; i++) {
+            history.add(new UsageHistory.BuildUsage(0.2, 0.3, 0.8, 1.0, 1, 2));
+        }
+        // throttled at the cpu of its size
+        history.add(new UsageHistory.BuildUsage(0.9, 0.95, 0.8, 1.0, 1, 2));
+        assertSize("2", "4", history.getRecommendation());
+    }
+
+    @Test
+    public void onlyTheLastBuildsCount() {
+        UsageHistory.JobHistory history = new UsageHistory.JobHistory("job", "build");
+        history.add(new UsageHistory.BuildUsage(3, 4, 12, 15, 4, 16));
+        for (int i = 0; i < UsageHistory.MAX_BUILDS; i++) {
+            history.add(new UsageHistory.BuildUsage(0.05, 0.1, 0.2, 0.3, 1, 2));
+        }
+        assertEquals(UsageHistory.MAX_BUILDS, history.getBuilds());
+        assertSize(".25", ".5", history.getRecommendation());
+    }
+}